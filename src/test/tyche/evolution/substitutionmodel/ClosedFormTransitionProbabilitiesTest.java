@@ -0,0 +1,88 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package test.tyche.evolution.substitutionmodel;
+
+import org.junit.Test;
+import tyche.evolution.substitutionmodel.TycheSVSGeneralSubstitutionModel;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Checks that the closed form transition probabilities of TycheSVSGeneralSubstitutionModel for 2 and 3 types match
+ * those from the eigen decomposition, over random rates and a range of branch lengths.
+ */
+public class ClosedFormTransitionProbabilitiesTest {
+
+    private static final double[] DISTANCES = {0, 1e-6, 1e-3, 0.05, 0.5, 1, 4, 20};
+    private static final double TOLERANCE = 1e-10;
+
+    @Test
+    public void testTwoTypesMatchEigenDecomposition() {
+        Random random = new Random(127);
+        for (int round = 0; round < 20; round++) {
+            double[] rates = {0.1 + random.nextDouble() * 5, 0.1 + random.nextDouble() * 5};
+            // one of the rates may be switched off
+            boolean[] indicators = {round % 3 != 1, round % 3 != 2};
+            TycheSVSGeneralSubstitutionModel closedForm = new TycheSVSGeneralSubstitutionModel();
+            TestSubstitutionModels.initModel(closedForm, 2, rates, indicators, true, false);
+            TycheSVSGeneralSubstitutionModel eigen = new TycheSVSGeneralSubstitutionModel();
+            TestSubstitutionModels.initModel(eigen, 2, rates, indicators, false, false);
+            for (double distance : DISTANCES) {
+                TestSubstitutionModels.assertSameTransitionProbabilities(eigen, closedForm, distance, TOLERANCE);
+            }
+        }
+    }
+
+    @Test
+    public void testThreeTypesMatchEigenDecomposition() {
+        Random random = new Random(127);
+        boolean[] indicators = new boolean[6];
+        Arrays.fill(indicators, true);
+        int closedFormCount = 0;
+        for (int round = 0; round < 20; round++) {
+            double[] rates = new double[6];
+            for (int i = 0; i < rates.length; i++) {
+                rates[i] = 0.1 + random.nextDouble() * 5;
+            }
+            TestSubstitutionModels.ExposedModel closedForm = new TestSubstitutionModels.ExposedModel();
+            TestSubstitutionModels.initModel(closedForm, 3, rates, indicators, true, false);
+            TycheSVSGeneralSubstitutionModel eigen = new TycheSVSGeneralSubstitutionModel();
+            TestSubstitutionModels.initModel(eigen, 3, rates, indicators, false, false);
+            for (double distance : DISTANCES) {
+                if (closedForm.getThreeTypeClosedForm(distance, new double[9])) {
+                    closedFormCount++;
+                }
+                TestSubstitutionModels.assertSameTransitionProbabilities(eigen, closedForm, distance, TOLERANCE);
+            }
+        }
+        // random rates almost never give eigenvalues close enough together to fall back
+        assertTrue(closedFormCount > 0);
+    }
+}
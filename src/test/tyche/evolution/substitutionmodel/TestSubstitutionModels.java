@@ -0,0 +1,109 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package test.tyche.evolution.substitutionmodel;
+
+import beast.base.evolution.substitutionmodel.Frequencies;
+import beast.base.inference.parameter.BooleanParameter;
+import beast.base.inference.parameter.RealParameter;
+import tyche.evolution.substitutionmodel.TycheSVSGeneralSubstitutionModel;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Substitution models shared by the substitution model tests
+ */
+public class TestSubstitutionModels {
+
+    /**
+     * Set up a non-symmetric substitution model with equal frequencies
+     * @param model          the model to set up
+     * @param typeCount      the number of types
+     * @param rates          the relative rates, typeCount * (typeCount - 1) of them
+     * @param indicators     the rate indicators, one for each rate
+     * @param closedForm     whether to use closed form transition probabilities for 2 or 3 types
+     * @param uniformization whether to use uniformization for more than 3 types
+     * @return the model
+     */
+    public static <T extends TycheSVSGeneralSubstitutionModel> T initModel(T model, int typeCount, double[] rates,
+                                                                          boolean[] indicators, boolean closedForm,
+                                                                          boolean uniformization) {
+        Double[] rateValues = new Double[rates.length];
+        Boolean[] indicatorValues = new Boolean[indicators.length];
+        for (int i = 0; i < rates.length; i++) {
+            rateValues[i] = rates[i];
+            indicatorValues[i] = indicators[i];
+        }
+        Double[] frequencyValues = new Double[typeCount];
+        for (int i = 0; i < typeCount; i++) {
+            frequencyValues[i] = 1.0 / typeCount;
+        }
+        Frequencies frequencies = new Frequencies();
+        frequencies.initByName("frequencies", new RealParameter(frequencyValues));
+        model.initByName("rates", new RealParameter(rateValues), "rateIndicator", new BooleanParameter(indicatorValues),
+                "symmetric", false, "frequencies", frequencies, "closedForm", closedForm,
+                "uniformization", uniformization);
+        return model;
+    }
+
+    /**
+     * Get the transition probabilities of a branch of a given length with a rate of 1
+     */
+    public static double[] getTransitionProbabilities(TycheSVSGeneralSubstitutionModel model, double distance) {
+        final int typeCount = model.getStateCount();
+        double[] matrix = new double[typeCount * typeCount];
+        model.getTransitionProbabilities(null, distance, 0, 1.0, matrix);
+        return matrix;
+    }
+
+    /**
+     * Check that two models give the same transition probabilities for a branch of a given length
+     */
+    public static void assertSameTransitionProbabilities(TycheSVSGeneralSubstitutionModel expected,
+                                                         TycheSVSGeneralSubstitutionModel actual, double distance,
+                                                         double tolerance) {
+        double[] expectedMatrix = getTransitionProbabilities(expected, distance);
+        double[] actualMatrix = getTransitionProbabilities(actual, distance);
+        for (int i = 0; i < expectedMatrix.length; i++) {
+            assertEquals("entry " + i + " at distance " + distance, expectedMatrix[i], actualMatrix[i], tolerance);
+        }
+    }
+
+    /**
+     * A model whose closed form and uniformized transition probabilities can be asked for directly, to check that
+     * they are used rather than the eigen decomposition they fall back to
+     */
+    public static class ExposedModel extends TycheSVSGeneralSubstitutionModel {
+
+        public boolean getThreeTypeClosedForm(double distance, double[] matrix) {
+            return getThreeTypeTransitionProbabilities(setupRates(), distance, matrix);
+        }
+
+        public boolean getUniformized(double distance, double[] matrix) {
+            return getUniformizedTransitionProbabilities(setupRates(), distance, matrix);
+        }
+    }
+}
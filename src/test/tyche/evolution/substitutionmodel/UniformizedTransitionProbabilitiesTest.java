@@ -0,0 +1,80 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package test.tyche.evolution.substitutionmodel;
+
+import org.junit.Test;
+import tyche.evolution.substitutionmodel.TycheSVSGeneralSubstitutionModel;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Checks that the uniformized transition probabilities of TycheSVSGeneralSubstitutionModel match those from the eigen
+ * decomposition for many types with few rates switched on, over random rates and a range of branch lengths. Short
+ * branches are uniformized and longer ones fall back to the eigen decomposition.
+ */
+public class UniformizedTransitionProbabilitiesTest {
+
+    private static final int TYPES = 20;
+    private static final double[] DISTANCES = {0, 1e-6, 1e-4, 1e-3, 0.01, 0.05, 0.5, 2};
+    private static final double TOLERANCE = 1e-10;
+
+    @Test
+    public void testSparseRatesMatchEigenDecomposition() {
+        Random random = new Random(127);
+        int uniformizedCount = 0;
+        for (int round = 0; round < 10; round++) {
+            double[] rates = new double[TYPES * (TYPES - 1)];
+            boolean[] indicators = new boolean[rates.length];
+            int index = 0;
+            for (int i = 0; i < TYPES; i++) {
+                for (int j = 0; j < TYPES; j++) {
+                    if (i == j) {
+                        continue;
+                    }
+                    rates[index] = 0.1 + random.nextDouble() * 5;
+                    // a chain of neighbouring types, which keeps the eigen decomposition well conditioned
+                    indicators[index] = Math.abs(i - j) == 1;
+                    index++;
+                }
+            }
+            TestSubstitutionModels.ExposedModel uniformized = new TestSubstitutionModels.ExposedModel();
+            TestSubstitutionModels.initModel(uniformized, TYPES, rates, indicators, true, true);
+            TycheSVSGeneralSubstitutionModel eigen = new TycheSVSGeneralSubstitutionModel();
+            TestSubstitutionModels.initModel(eigen, TYPES, rates, indicators, true, false);
+            for (double distance : DISTANCES) {
+                if (uniformized.getUniformized(distance, new double[TYPES * TYPES])) {
+                    uniformizedCount++;
+                }
+                TestSubstitutionModels.assertSameTransitionProbabilities(eigen, uniformized, distance, TOLERANCE);
+            }
+        }
+        // the shortest branches are always cheaper to uniformize
+        assertTrue(uniformizedCount > 0);
+    }
+}
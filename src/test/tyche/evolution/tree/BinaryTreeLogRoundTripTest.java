@@ -0,0 +1,141 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package test.tyche.evolution.tree;
+
+import beast.base.inference.Logger;
+import org.junit.Test;
+import tyche.evolution.tree.BinaryTreeLogConverter;
+import tyche.evolution.tree.BinaryTreeLogReader;
+import tyche.evolution.tree.BinaryTreeLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Checks that a tree log written by BinaryTreeLogger, read back by BinaryTreeLogReader and converted to Nexus by
+ * BinaryTreeLogConverter has the same trees as GRTRootlessLogger writes for the same samples, including across key
+ * records and when a run is resumed after a sample was only partly written.
+ */
+public class BinaryTreeLogRoundTripTest {
+
+    @Test
+    public void testConvertedLogMatchesRootlessLogger() throws IOException {
+        TestChain chain = new TestChain(30);
+        File file = File.createTempFile("tyche", ".btl");
+        file.deleteOnExit();
+        BinaryTreeLogger binaryLogger = makeBinaryLogger(chain, file);
+        binaryLogger.init(null);
+
+        List<String> expected = new ArrayList<>();
+        for (int sample = 0; sample < 40; sample++) {
+            if (sample > 0) {
+                chain.step(sample);
+            }
+            expected.add(chain.logText(sample));
+            binaryLogger.log(sample, null);
+        }
+        binaryLogger.close(null);
+
+        assertEquals(expected, convert(file));
+    }
+
+    @Test
+    public void testResumeAppendsToLog() throws IOException {
+        TestChain chain = new TestChain(20);
+        File file = File.createTempFile("tyche", ".btl");
+        file.deleteOnExit();
+        List<String> expected = new ArrayList<>();
+
+        BinaryTreeLogger binaryLogger = makeBinaryLogger(chain, file);
+        binaryLogger.init(null);
+        for (int sample = 0; sample < 10; sample++) {
+            if (sample > 0) {
+                chain.step(sample);
+            }
+            expected.add(chain.logText(sample));
+            binaryLogger.log(sample, null);
+        }
+        binaryLogger.close(null);
+        // the start of a sample that was cut off when the run stopped
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{1, 10});
+        }
+
+        Logger.LogFileMode mode = Logger.FILE_MODE;
+        Logger.FILE_MODE = Logger.LogFileMode.resume;
+        try {
+            // a resumed logger doesn't initialise loggables whose log it has already started
+            binaryLogger = makeBinaryLogger(chain, file);
+            for (int sample = 10; sample < 20; sample++) {
+                chain.step(sample);
+                expected.add(chain.logText(sample));
+                binaryLogger.log(sample, null);
+            }
+            binaryLogger.close(null);
+        } finally {
+            Logger.FILE_MODE = mode;
+        }
+
+        assertEquals(expected, convert(file));
+    }
+
+    /**
+     * Read a binary tree log and convert it to Nexus
+     * @return the tree lines of the Nexus log
+     */
+    private static List<String> convert(File file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BinaryTreeLogReader reader = new BinaryTreeLogReader(file.getPath());
+             PrintStream out = new PrintStream(bytes)) {
+            BinaryTreeLogConverter.convert(reader, out, -1, false);
+        }
+        List<String> trees = new ArrayList<>();
+        for (String line : bytes.toString().split("\n")) {
+            if (line.startsWith("tree ")) {
+                trees.add(line);
+            }
+        }
+        return trees;
+    }
+
+    /**
+     * Make a binary tree logger for the tree, node types and clock model of a chain
+     */
+    static BinaryTreeLogger makeBinaryLogger(TestChain chain, File file) {
+        BinaryTreeLogger binaryLogger = new BinaryTreeLogger();
+        binaryLogger.initByName("tree", chain.tree, "nodeTypes", chain.nodeTypes, "branchratemodel", chain.clockModel,
+                "fileName", file.getPath(), "keyRecordEvery", 4);
+        return binaryLogger;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package test.tyche.evolution.tree;
+
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Test;
+import tyche.evolution.tree.GRTBayesianSkyline;
+import tyche.evolution.tree.GRTIntervals;
+import tyche.evolution.tree.GermlineRootTree;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Checks that the incremental GRTIntervals and GRTBayesianSkyline agree with a full recalculation over random height,
+ * topology and population size moves, some accepted and some restored, both when the tree stores from copies and by
+ * copy-on-write. The full recalculation sorts the events again from scratch every time, and its skyline likelihood is
+ * calculated by BayesianSkyline.
+ */
+public class GRTIntervalsRandomMovesTest {
+
+    private static final int GROUPS = 5;
+    private static final double TOLERANCE = 1e-12;
+
+    @Test
+    public void testStoredCopyMatchesFullRecalculation() {
+        checkRandomMoves(false);
+    }
+
+    @Test
+    public void testCopyOnWriteMatchesFullRecalculation() {
+        checkRandomMoves(true);
+    }
+
+    /**
+     * Make random moves the way MCMC would, storing the calculation nodes after each proposal and accepting or
+     * restoring it, and compare the intervals and likelihood with a full recalculation after every proposal and every
+     * restore
+     */
+    private void checkRandomMoves(boolean copyOnWrite) {
+        GermlineRootTree tree = TestTrees.makeTree(40, copyOnWrite);
+        RealParameter popSizes = new RealParameter();
+        popSizes.initByName("value", "1.0", "dimension", GROUPS, "lower", 0.0);
+        GRTIntervals intervals = new GRTIntervals();
+        intervals.initByName("tree", tree);
+        GRTBayesianSkyline skyline = new GRTBayesianSkyline();
+        skyline.initByName("treeIntervals", intervals, "popSizes", popSizes, "groupSizes", makeGroupSizes());
+        State state = TestTrees.makeState(tree, popSizes);
+
+        // made after the state, so that it is not stored or restored
+        FullIntervals fullIntervals = new FullIntervals();
+        fullIntervals.initByName("tree", tree);
+        GRTBayesianSkyline reference = new GRTBayesianSkyline();
+        reference.initByName("treeIntervals", fullIntervals, "popSizes", popSizes, "groupSizes", makeGroupSizes());
+
+        Random random = new Random(127);
+        state.store(0);
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        check(intervals, skyline, fullIntervals, reference);
+        state.acceptCalculationNodes();
+        state.setEverythingDirty(false);
+
+        for (int round = 1; round <= 300; round++) {
+            state.store(round);
+            for (int i = random.nextInt(4); i >= 0; i--) {
+                TestTrees.changeRandomHeight(tree, random);
+                if (random.nextBoolean()) {
+                    TestTrees.exchangeRandomTip(tree, random);
+                }
+            }
+            if (random.nextInt(4) == 0) {
+                popSizes.setValue(random.nextInt(GROUPS), 0.5 + random.nextDouble());
+            }
+            state.storeCalculationNodes();
+            state.checkCalculationNodesDirtiness();
+            check(intervals, skyline, fullIntervals, reference);
+            if (random.nextBoolean()) {
+                state.restore();
+                state.restoreCalculationNodes();
+                check(intervals, skyline, fullIntervals, reference);
+            } else {
+                state.acceptCalculationNodes();
+            }
+            state.setEverythingDirty(false);
+        }
+    }
+
+    /**
+     * Group sizes to be filled in by the skyline
+     */
+    private static IntegerParameter makeGroupSizes() {
+        IntegerParameter groupSizes = new IntegerParameter();
+        groupSizes.initByName("value", "0", "dimension", GROUPS);
+        return groupSizes;
+    }
+
+    /**
+     * Compare the incremental intervals and likelihood with a full recalculation
+     */
+    private static void check(GRTIntervals intervals, GRTBayesianSkyline skyline, FullIntervals fullIntervals,
+                              GRTBayesianSkyline reference) {
+        fullIntervals.recalculate();
+        final int intervalCount = fullIntervals.getIntervalCount();
+        assertEquals(intervalCount, intervals.getIntervalCount());
+        for (int i = 0; i < intervalCount; i++) {
+            assertEquals(fullIntervals.getInterval(i), intervals.getInterval(i), TOLERANCE);
+            assertEquals(fullIntervals.getLineageCount(i), intervals.getLineageCount(i));
+            assertEquals(fullIntervals.getCoalescentEvents(i), intervals.getCoalescentEvents(i));
+        }
+        assertEquals(reference.calculateLogP(), skyline.calculateLogP(), TOLERANCE);
+    }
+
+    /**
+     * Intervals that are recalculated from scratch when asked, and that say they are not incremental, so that
+     * GRTBayesianSkyline calculates their likelihood with BayesianSkyline
+     */
+    public static class FullIntervals extends GRTIntervals {
+
+        @Override
+        public boolean isIncremental() {
+            return false;
+        }
+
+        /**
+         * Sort the events again and recalculate every interval, ignoring what was kept from earlier calculations
+         */
+        void recalculate() {
+            eventsKnown = false;
+            intervals = null;
+            calculateIntervals();
+        }
+    }
+}
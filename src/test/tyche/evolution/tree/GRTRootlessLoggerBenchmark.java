@@ -0,0 +1,124 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package test.tyche.evolution.tree;
+
+import beast.base.evolution.TreeWithMetaDataLogger;
+import tyche.evolution.tree.BinaryTreeLogger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Measures the time to log one tree with node types and branch rates, on a 10k-tip tree by default, with
+ * GRTRootlessLogger, with BinaryTreeLogger, and with BEAST's TreeWithMetaDataLogger for reference. Between logs a few
+ * heights, types and one branch change, as they would between samples of a run. This is not run with the unit tests.
+ * Usage: java test.tyche.evolution.tree.GRTRootlessLoggerBenchmark [tipCount] [logCount]
+ */
+public class GRTRootlessLoggerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int tipCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        final int logCount = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        // setting up the tree and the reference logger walk it recursively, so give them room
+        Thread thread = new Thread(null, () -> {
+            try {
+                run(tipCount, logCount);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "benchmark", 1 << 28);
+        thread.start();
+        thread.join();
+    }
+
+    private static void run(int tipCount, int logCount) throws IOException {
+        TestChain chain = new TestChain(tipCount);
+        TreeWithMetaDataLogger referenceLogger = new TreeWithMetaDataLogger();
+        referenceLogger.initByName("tree", chain.tree, "metadata", chain.nodeTypes, "branchratemodel", chain.clockModel, "sort", false);
+        CountingPrintStream textOut = new CountingPrintStream();
+        PrintStream referenceOut = new CountingPrintStream();
+        File file = File.createTempFile("tyche", ".btl");
+        file.deleteOnExit();
+        BinaryTreeLogger binaryLogger = BinaryTreeLogRoundTripTest.makeBinaryLogger(chain, file);
+        binaryLogger.init(null);
+
+        // warm up, then time each logger over the same changes
+        for (int sample = 0; sample < logCount; sample++) {
+            chain.step(sample);
+            chain.textLogger.log(sample, textOut);
+            referenceLogger.log(sample, referenceOut);
+            binaryLogger.log(sample, null);
+        }
+        textOut.count = 0;
+        long textNanos = 0;
+        long binaryNanos = 0;
+        long referenceNanos = 0;
+        for (int sample = logCount; sample < 2 * logCount; sample++) {
+            chain.step(sample);
+            long start = System.nanoTime();
+            chain.textLogger.log(sample, textOut);
+            textNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            referenceLogger.log(sample, referenceOut);
+            referenceNanos += System.nanoTime() - start;
+            start = System.nanoTime();
+            binaryLogger.log(sample, null);
+            binaryNanos += System.nanoTime() - start;
+        }
+        binaryLogger.close(null);
+
+        System.out.println(tipCount + " tips, " + logCount + " logs");
+        System.out.printf("GRTRootlessLogger:      %.3f ms per tree, %d bytes per tree%n", textNanos / 1e6 / logCount,
+                textOut.count / logCount);
+        System.out.printf("BinaryTreeLogger:       %.3f ms per tree, %d bytes per tree%n", binaryNanos / 1e6 / logCount,
+                file.length() / (2L * logCount));
+        System.out.printf("TreeWithMetaDataLogger: %.3f ms per tree%n", referenceNanos / 1e6 / logCount);
+    }
+
+    /**
+     * Throws away what is logged, counting the bytes
+     */
+    private static class CountingPrintStream extends PrintStream {
+        long count = 0;
+
+        CountingPrintStream() {
+            super(OutputStream.nullOutputStream());
+        }
+
+        @Override
+        public void print(String s) {
+            count += s.length();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
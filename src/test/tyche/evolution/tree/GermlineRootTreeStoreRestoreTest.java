@@ -0,0 +1,226 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package test.tyche.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+import beast.base.inference.State;
+import org.junit.Test;
+import tyche.evolution.tree.GermlineRootTree;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Checks that a GermlineRootTree comes back exactly as it was stored after a rejected proposal, both when it restores
+ * from stored copies and by copy-on-write, including when the first change of the proposal is the one that stores it,
+ * and that its primitive mirror and cached traversals match the nodes during and after the proposal, including over
+ * random moves where restore puts back only the heights of the nodes that changed.
+ */
+public class GermlineRootTreeStoreRestoreTest {
+
+    @Test
+    public void testCopyOnWriteRestoresHeights() {
+        checkRoundTrips(true, Edit.HEIGHT);
+    }
+
+    @Test
+    public void testCopyOnWriteRestoresTopology() {
+        checkRoundTrips(true, Edit.TOPOLOGY);
+    }
+
+    @Test
+    public void testCopyOnWriteRestoresHeightsAndTopology() {
+        checkRoundTrips(true, Edit.BOTH);
+    }
+
+    @Test
+    public void testStoredCopyRestoresHeightsAndTopology() {
+        checkRoundTrips(false, Edit.BOTH);
+    }
+
+    @Test
+    public void testCopyOnWriteRestoresRootHeight() {
+        GermlineRootTree tree = TestTrees.makeTree(6, true);
+        State state = TestTrees.makeState(tree);
+        for (int round = 0; round < 3; round++) {
+            Snapshot before = new Snapshot(tree);
+            state.store(round);
+            Node root = tree.getRoot();
+            root.setHeight(root.getHeight() * 1.5);
+            state.restore();
+            before.assertSame(tree);
+        }
+    }
+
+    @Test
+    public void testCopyOnWriteMirrorFollowsRandomMoves() {
+        checkRandomMoves(true);
+    }
+
+    @Test
+    public void testStoredCopyMirrorFollowsRandomMoves() {
+        checkRandomMoves(false);
+    }
+
+    private enum Edit { HEIGHT, TOPOLOGY, BOTH }
+
+    /**
+     * Make random height and topology moves, accepting some and rejecting others, with the mirror read before each
+     * store so that restore puts back the stored heights rather than rebuilding them
+     */
+    private void checkRandomMoves(boolean copyOnWrite) {
+        GermlineRootTree tree = TestTrees.makeTree(40, copyOnWrite);
+        State state = TestTrees.makeState(tree);
+        Random random = new Random(127);
+        for (int round = 0; round < 200; round++) {
+            Snapshot before = new Snapshot(tree);
+            before.assertMirrorMatches(tree);
+            state.store(round);
+            for (int i = random.nextInt(4); i >= 0; i--) {
+                TestTrees.changeRandomHeight(tree, random);
+                if (random.nextBoolean()) {
+                    TestTrees.exchangeRandomTip(tree, random);
+                }
+            }
+            new Snapshot(tree).assertMirrorMatches(tree);
+            if (random.nextBoolean()) {
+                state.restore();
+                before.assertSame(tree);
+            } else {
+                state.acceptCalculationNodes();
+                state.setEverythingDirty(false);
+            }
+        }
+    }
+
+    /**
+     * Store, change and restore the tree several times, checking it comes back as it was each time
+     */
+    private void checkRoundTrips(boolean copyOnWrite, Edit edit) {
+        GermlineRootTree tree = TestTrees.makeTree(6, copyOnWrite);
+        State state = TestTrees.makeState(tree);
+        for (int round = 0; round < 3; round++) {
+            Snapshot before = new Snapshot(tree);
+            state.store(round);
+            // the first change made here is the one that stores the tree
+            if (edit != Edit.TOPOLOGY) {
+                changeHeight(tree);
+            }
+            if (edit != Edit.HEIGHT) {
+                exchange(tree);
+            }
+            new Snapshot(tree).assertMirrorMatches(tree);
+            state.restore();
+            before.assertSame(tree);
+        }
+    }
+
+    /**
+     * Move the parent of the first tip to halfway between its children and its parent
+     */
+    private void changeHeight(GermlineRootTree tree) {
+        Node node = TestTrees.getTip(tree, "t0").getParent();
+        double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        node.setHeight((lower + node.getParent().getHeight()) / 2);
+    }
+
+    /**
+     * Swap the first tip with its parent's sibling, like a narrow exchange
+     */
+    private void exchange(GermlineRootTree tree) {
+        Node tip = TestTrees.getTip(tree, "t0");
+        Node parent = tip.getParent();
+        Node grandparent = parent.getParent();
+        Node uncle = grandparent.getLeft() == parent ? grandparent.getRight() : grandparent.getLeft();
+        parent.removeChild(tip);
+        grandparent.removeChild(uncle);
+        parent.addChild(uncle);
+        grandparent.addChild(tip);
+    }
+
+    /**
+     * The heights and topology of a tree by node number
+     */
+    private static class Snapshot {
+        final double[] heights;
+        final int[] parents;
+        final int[] lefts;
+        final int[] rights;
+        final int root;
+
+        Snapshot(GermlineRootTree tree) {
+            int nodeCount = tree.getNodeCount();
+            heights = new double[nodeCount];
+            parents = new int[nodeCount];
+            lefts = new int[nodeCount];
+            rights = new int[nodeCount];
+            for (int i = 0; i < nodeCount; i++) {
+                Node node = tree.getNode(i);
+                assertEquals(i, node.getNr());
+                heights[i] = node.getHeight();
+                parents[i] = node.getParent() == null ? -1 : node.getParent().getNr();
+                lefts[i] = node.getLeft() == null ? -1 : node.getLeft().getNr();
+                rights[i] = node.getRight() == null ? -1 : node.getRight().getNr();
+            }
+            root = tree.getRoot().getNr();
+        }
+
+        void assertMirrorMatches(GermlineRootTree tree) {
+            assertArrayEquals(heights, tree.getNodeHeights(), 0.0);
+            assertArrayEquals(parents, tree.getParentNums());
+            assertArrayEquals(lefts, tree.getLeftNums());
+            assertArrayEquals(rights, tree.getRightNums());
+            // the cached traversals must refer to the current nodes, with each parent before its children
+            Node[] preOrder = tree.getPreOrder();
+            assertEquals(heights.length, preOrder.length);
+            for (int i = 0; i < preOrder.length; i++) {
+                Node node = preOrder[i];
+                assertTrue(tree.getNode(node.getNr()) == node);
+                assertEquals(i, tree.getPreOrderPosition(node.getNr()));
+                if (node.getParent() != null) {
+                    assertTrue(tree.getPreOrderPosition(node.getParent().getNr()) < i);
+                }
+            }
+            for (Node node : tree.getPostOrder()) {
+                assertTrue(tree.getNode(node.getNr()) == node);
+            }
+        }
+
+        void assertSame(GermlineRootTree tree) {
+            Snapshot after = new Snapshot(tree);
+            assertArrayEquals(heights, after.heights, 0.0);
+            assertArrayEquals(parents, after.parents);
+            assertArrayEquals(lefts, after.lefts);
+            assertArrayEquals(rights, after.rights);
+            assertEquals(root, after.root);
+            after.assertMirrorMatches(tree);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package test.tyche.evolution.tree;
+
+import beast.base.evolution.branchratemodel.StrictClockModel;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import tyche.evolution.tree.GRTRootlessLogger;
+import tyche.evolution.tree.GermlineRootTree;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * A tree with node types and a clock model, changed at random between samples like a short MCMC run, and logged by
+ * GRTRootlessLogger, for the logger tests and benchmarks
+ */
+public class TestChain {
+
+    public final GermlineRootTree tree;
+    public final IntegerParameter nodeTypes;
+    public final StrictClockModel clockModel;
+    public final State state;
+    public final GRTRootlessLogger textLogger;
+    private final Random random = new Random(127);
+
+    /**
+     * @param tipCount the number of tips, including the germline
+     */
+    public TestChain(int tipCount) {
+        tree = TestTrees.makeTree(tipCount, false);
+        nodeTypes = new IntegerParameter();
+        nodeTypes.initByName("value", "0", "dimension", tree.getNodeCount(), "lower", 0, "upper", 2);
+        nodeTypes.setID("nodeTypes");
+        clockModel = new StrictClockModel();
+        clockModel.initByName("clock.rate", new RealParameter("0.5"));
+        state = TestTrees.makeState(tree, nodeTypes);
+        textLogger = new GRTRootlessLogger();
+        textLogger.initByName("tree", tree, "metadata", nodeTypes, "branchratemodel", clockModel, "sort", false);
+    }
+
+    /**
+     * Change some heights, the topology and some types, as accepted proposals would
+     */
+    public void step(int sample) {
+        state.store(sample);
+        for (int i = 0; i < 3; i++) {
+            TestTrees.changeRandomHeight(tree, random);
+            nodeTypes.setValue(random.nextInt(tree.getNodeCount()), random.nextInt(3));
+        }
+        TestTrees.exchangeRandomTip(tree, random);
+        state.setEverythingDirty(false);
+    }
+
+    /**
+     * Get the line GRTRootlessLogger writes for a sample
+     */
+    public String logText(int sample) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream out = new PrintStream(bytes);
+        textLogger.log(sample, out);
+        out.flush();
+        return bytes.toString();
+    }
+}
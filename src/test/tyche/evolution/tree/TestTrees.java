@@ -0,0 +1,139 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package test.tyche.evolution.tree;
+
+import beast.base.evolution.alignment.Taxon;
+import beast.base.evolution.alignment.TaxonSet;
+import beast.base.evolution.tree.Node;
+import beast.base.inference.State;
+import beast.base.inference.StateNode;
+import tyche.evolution.tree.GermlineRootTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Trees and states shared by the tree tests
+ */
+public class TestTrees {
+
+    /**
+     * Make a caterpillar GermlineRootTree with the germline as the last taxon, so that it is a child of the root
+     * @param tipCount the number of tips, including the germline
+     * @param copyOnWrite whether the tree stores and restores by copy-on-write
+     * @return the tree
+     */
+    public static GermlineRootTree makeTree(int tipCount, boolean copyOnWrite) {
+        List<Taxon> taxa = new ArrayList<>();
+        for (int i = 0; i < tipCount - 1; i++) {
+            taxa.add(new Taxon("t" + i));
+        }
+        taxa.add(new Taxon("germline"));
+        GermlineRootTree tree = new GermlineRootTree();
+        tree.initByName("taxonset", new TaxonSet(taxa), "copyOnWrite", copyOnWrite);
+        return tree;
+    }
+
+    /**
+     * Make a state holding a tree, so that editing its nodes stores it the way an operator would
+     * @param tree the tree
+     * @return the state
+     */
+    public static State makeState(GermlineRootTree tree) {
+        State state = new State();
+        state.initByName("stateNode", tree);
+        state.initialise();
+        return state;
+    }
+
+    /**
+     * Make a state holding a tree and other state nodes, such as node types, so that they can be edited between logs
+     * @param tree the tree
+     * @param others the other state nodes
+     * @return the state
+     */
+    public static State makeState(GermlineRootTree tree, StateNode... others) {
+        Object[] args = new Object[2 * (others.length + 1)];
+        args[0] = "stateNode";
+        args[1] = tree;
+        for (int i = 0; i < others.length; i++) {
+            args[2 * i + 2] = "stateNode";
+            args[2 * i + 3] = others[i];
+        }
+        State state = new State();
+        state.initByName(args);
+        state.initialise();
+        return state;
+    }
+
+    /**
+     * Move a random internal node other than the root to a random height between its children and its parent
+     */
+    public static void changeRandomHeight(GermlineRootTree tree, Random random) {
+        int leafCount = tree.getLeafNodeCount();
+        Node node;
+        do {
+            node = tree.getNode(leafCount + random.nextInt(tree.getInternalNodeCount()));
+        } while (node.isRoot());
+        double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        node.setHeight(lower + random.nextDouble() * (node.getParent().getHeight() - lower));
+    }
+
+    /**
+     * Swap a random tip other than the germline with its parent's sibling, like a narrow exchange, if the tree stays
+     * valid and the germline stays where it is
+     */
+    public static void exchangeRandomTip(GermlineRootTree tree, Random random) {
+        Node tip = tree.getNode(random.nextInt(tree.getLeafNodeCount()));
+        Node parent = tip.getParent();
+        Node grandparent = parent.getParent();
+        if (tip.getNr() == tree.getGermlineNum() || grandparent == null || grandparent.isRoot()) {
+            return;
+        }
+        Node uncle = grandparent.getLeft() == parent ? grandparent.getRight() : grandparent.getLeft();
+        if (uncle.getHeight() >= parent.getHeight()) {
+            return;
+        }
+        parent.removeChild(tip);
+        grandparent.removeChild(uncle);
+        parent.addChild(uncle);
+        grandparent.addChild(tip);
+    }
+
+    /**
+     * Get the tip with an ID
+     */
+    public static Node getTip(GermlineRootTree tree, String id) {
+        for (Node node : tree.getExternalNodes()) {
+            if (id.equals(node.getID())) {
+                return node;
+            }
+        }
+        throw new IllegalArgumentException("No tip " + id);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package test.tyche.inference.logger;
+
+import beast.base.inference.Logger;
+import beast.base.inference.State;
+import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
+import org.junit.Test;
+import tyche.inference.logger.NodeTraceLogger;
+import tyche.inference.logger.NodeTraceReader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Checks that NodeTraceReader reads back every sample written by NodeTraceLogger, whether the samples are read in
+ * order, out of order, or as the series of one entry, and when a run is resumed after it was closed or after it
+ * stopped part way through a sample.
+ */
+public class NodeTraceRoundTripTest {
+
+    private static final int DIMENSION = 25;
+    private static final int SAMPLES = 30;
+
+    private final IntegerParameter nodeTypes;
+    private final RealParameter rates;
+    private final State state;
+    private final Random random = new Random(127);
+    private final double[][] expectedTypes = new double[SAMPLES][DIMENSION];
+    private final double[][] expectedRates = new double[SAMPLES][DIMENSION];
+
+    public NodeTraceRoundTripTest() {
+        nodeTypes = new IntegerParameter();
+        nodeTypes.initByName("value", "0", "dimension", DIMENSION, "lower", 0, "upper", 3);
+        nodeTypes.setID("nodeTypes");
+        rates = new RealParameter();
+        rates.initByName("value", "1.0", "dimension", DIMENSION);
+        rates.setID("rates");
+        state = new State();
+        state.initByName("stateNode", nodeTypes, "stateNode", rates);
+        state.initialise();
+    }
+
+    @Test
+    public void testReaderReturnsLoggedValues() throws IOException {
+        File file = File.createTempFile("tyche", ".ntl");
+        file.deleteOnExit();
+        NodeTraceLogger logger = makeLogger(file);
+        logger.init(null);
+        logSamples(logger, 0, SAMPLES);
+        logger.close(null);
+        checkTrace(file);
+    }
+
+    @Test
+    public void testResumeAppendsToClosedTrace() throws IOException {
+        File file = File.createTempFile("tyche", ".ntl");
+        file.deleteOnExit();
+        NodeTraceLogger logger = makeLogger(file);
+        logger.init(null);
+        logSamples(logger, 0, 12);
+        logger.close(null);
+        resume(file, 12);
+        checkTrace(file);
+    }
+
+    @Test
+    public void testResumeDropsIncompleteSample() throws IOException {
+        File file = File.createTempFile("tyche", ".ntl");
+        file.deleteOnExit();
+        NodeTraceLogger logger = makeLogger(file);
+        logger.init(null);
+        logSamples(logger, 0, 9);
+        logger.close(null);
+        // as if the run had stopped before the index was written, part way through the next sample
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 16);
+            raf.setLength(raf.readLong());
+        }
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(new byte[]{1, 90, 3});
+        }
+        resume(file, 9);
+        checkTrace(file);
+    }
+
+    private NodeTraceLogger makeLogger(File file) {
+        NodeTraceLogger logger = new NodeTraceLogger();
+        logger.initByName("log", nodeTypes, "log", rates, "fileName", file.getPath(), "keyRecordEvery", 7);
+        return logger;
+    }
+
+    /**
+     * Carry on logging to an existing trace the way a resumed run would, without initialising the logger
+     */
+    private void resume(File file, int from) {
+        Logger.LogFileMode mode = Logger.FILE_MODE;
+        Logger.FILE_MODE = Logger.LogFileMode.resume;
+        try {
+            NodeTraceLogger logger = makeLogger(file);
+            logSamples(logger, from, SAMPLES);
+            logger.close(null);
+        } finally {
+            Logger.FILE_MODE = mode;
+        }
+    }
+
+    /**
+     * Log samples, changing some values before each one as an accepted proposal would, and record the values
+     */
+    private void logSamples(NodeTraceLogger logger, int from, int to) {
+        for (int sample = from; sample < to; sample++) {
+            if (sample > 0) {
+                state.store(sample);
+                for (int i = 0; i < 3; i++) {
+                    nodeTypes.setValue(random.nextInt(DIMENSION), random.nextInt(4));
+                    rates.setValue(random.nextInt(DIMENSION), random.nextDouble());
+                }
+                state.setEverythingDirty(false);
+            }
+            for (int i = 0; i < DIMENSION; i++) {
+                expectedTypes[sample][i] = nodeTypes.getValue(i);
+                expectedRates[sample][i] = rates.getValue(i);
+            }
+            logger.log(sample * 10L, null);
+        }
+    }
+
+    private void checkTrace(File file) throws IOException {
+        try (NodeTraceReader reader = new NodeTraceReader(file.getPath())) {
+            assertEquals(2, reader.getFunctionCount());
+            int typesIndex = reader.getFunctionIndex("nodeTypes");
+            int ratesIndex = reader.getFunctionIndex("rates");
+            assertEquals(DIMENSION, reader.getDimension(typesIndex));
+            assertEquals(DIMENSION, reader.getDimension(ratesIndex));
+            assertEquals(SAMPLES, reader.getRecordCount());
+
+            for (int record = 0; record < SAMPLES; record++) {
+                reader.readRecord(record);
+                assertEquals(record * 10L, reader.getSample(record));
+                assertArrayEquals(expectedTypes[record], reader.getValues(typesIndex), 0.0);
+                assertArrayEquals(expectedRates[record], reader.getValues(ratesIndex), 0.0);
+            }
+
+            // going back, which starts again from the last key record
+            for (int record : new int[]{3, 22, 13, 0, 29, 7}) {
+                reader.readSample(record * 10L);
+                assertEquals(record, reader.getCurrentRecord());
+                assertArrayEquals(expectedTypes[record], reader.getValues(typesIndex), 0.0);
+                assertArrayEquals(expectedRates[record], reader.getValues(ratesIndex), 0.0);
+            }
+
+            for (int i = 0; i < DIMENSION; i++) {
+                double[] series = reader.readSeries(ratesIndex, i);
+                for (int record = 0; record < SAMPLES; record++) {
+                    assertEquals(expectedRates[record][i], series[record], 0.0);
+                }
+            }
+        }
+    }
+}
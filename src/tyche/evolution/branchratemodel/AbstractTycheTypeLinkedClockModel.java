@@ -24,12 +24,20 @@ import beast.base.core.Citation;
 import beast.base.core.Description;
 import beast.base.core.Function;
 import beast.base.core.Input;
+import beast.base.core.Log;
 import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import tyche.evolution.substitutionmodel.TycheSVSGeneralSubstitutionModel;
 import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import tyche.evolution.tree.GermlineRootTree;
+import beast.base.inference.CalculationNode;
+import beast.base.inference.StateNode;
 import beast.base.inference.parameter.IntegerParameter;
 import beast.base.inference.parameter.RealParameter;
 
+import java.util.Arrays;
+
 /**
  * @author Jessie Fielding
  * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
@@ -66,14 +74,19 @@ public abstract class AbstractTycheTypeLinkedClockModel extends BranchRateModel.
     public Input<TycheSVSGeneralSubstitutionModel> svsInput = new Input<TycheSVSGeneralSubstitutionModel>("substitutionModel", "the substitution model input");
 
     /**
-     * input object for a real parameter to log branch rates
+     * input object for a real parameter to log branch rates (deprecated, use TypeLinkedBranchStatistic)
+     */
+    public Input<RealParameter> branchRatesInput = new Input<>("branchRates", "a real parameter to log branch rates (deprecated: this is written every time a rate is calculated, use tyche.evolution.branchratemodel.TypeLinkedBranchStatistic instead)");
+
+    /**
+     * input object for a real parameter to log expected occupancy (deprecated, use TypeLinkedBranchStatistic)
      */
-    public Input<RealParameter> branchRatesInput = new Input<>("branchRates", "a real parameter to log branch rates");
+    public Input<RealParameter> occupanciesInput = new Input<>("expectedOccupancy", "a real parameter to log expected occupancy (deprecated: this is written every time a rate is calculated, use tyche.evolution.branchratemodel.TypeLinkedBranchStatistic instead)");
 
     /**
-     * input object for a real parameter to log expected occupancy
+     * input object for the tolerance of interpolated expected occupancies
      */
-    public Input<RealParameter> occupanciesInput = new Input<>("expectedOccupancy", "a real parameter to log expected occupancy");
+    public Input<Double> occupancyTableToleranceInput = new Input<>("occupancyTableTolerance", "if positive, two-type expected occupancies are interpolated from a table with this maximum absolute error instead of being calculated for each branch. Tables for the most recently used values of Q are kept, and a table is only built once a value of Q has been used for enough branches to pay for it. Default: 0 (disabled)", 0.0);
 
     /**
      * the clock rate for the Ancestral Reconstruction Tree Likelihood
@@ -110,6 +123,97 @@ public abstract class AbstractTycheTypeLinkedClockModel extends BranchRateModel.
 
     Function muParameter;
 
+    /**
+     * the cached rate of each branch, and the version of the rate inputs it was calculated with, compared against
+     * ratesVersion. Both are double buffered per node, so that a rejected proposal only needs to swap back the buffer
+     * index of the branches whose rates it changed.
+     */
+    protected double[][] cachedRates;
+    protected long[][] cachedRateVersions;
+    protected int[] rateIndex;
+
+    /**
+     * the store each node's rate buffer was last swapped in, so that it is only swapped once per proposal, and the
+     * nodes swapped since the last store, so that restore only has to swap those back
+     */
+    protected long[] rateStamps;
+    protected long storeStamp = 1;
+    protected int[] changedNodes;
+    protected int changedNodeCount = 0;
+
+    /**
+     * incremented whenever an input that affects every branch (type-linked rates, switch rate, Q matrix) changes
+     */
+    protected long ratesVersion = 1;
+    protected long storedRatesVersion = 1;
+
+    /**
+     * the number of types, set for expected occupancy models
+     */
+    protected int typeCount;
+
+    /**
+     * the eigen decomposition of Q that the cached multi-type occupancy terms were calculated from, and a version that
+     * is incremented whenever it changes
+     */
+    protected EigenDecomposition occupancyEigenDecomposition;
+    protected long occupancyEigenVersion = 0;
+
+    /**
+     * the type-linked rates projected onto the eigenvectors of Q, inverse(U) * diag(rates) * U, for more than two types
+     */
+    protected double[] projectedRates;
+    protected double[] projectedRateValues;
+    protected boolean projectedRatesKnown = false;
+
+    /**
+     * scratch weights used when reporting the occupancy of a single type for more than two types
+     */
+    protected double[] occupancyWeights;
+
+    /**
+     * per branch cache of the matrix exponential terms for more than two types, keyed by the branch's type-switch time
+     * and the eigen decomposition version: exp(lambda_i * t) and the integrals of exp(lambda_i * s + lambda_j * (t - s))
+     * over the branch
+     */
+    protected double[] occupancyTypeTimes;
+    protected long[] occupancyVersions;
+    protected double[][] occupancyExponentials;
+    protected double[][] occupancyIntegrals;
+
+    /**
+     * the tolerance of interpolated expected occupancies, or 0 if they are not interpolated
+     */
+    protected double occupancyTableTolerance;
+
+    /**
+     * the interpolation tables for the most recently used values of Q, most recent first, including tables that could
+     * not be built within the tolerance so that they are not built again
+     */
+    protected ExpectedOccupancyTable[] occupancyTables = new ExpectedOccupancyTable[OCCUPANCY_TABLE_CACHE_SIZE];
+    protected static final int OCCUPANCY_TABLE_CACHE_SIZE = 4;
+    private boolean occupancyTableWarned = false;
+
+    /**
+     * the switch rates the occupancy was last calculated directly for, and how many times in a row
+     */
+    private double directOccupancyAlpha = Double.NaN;
+    private double directOccupancyBeta = Double.NaN;
+    private int directOccupancyCount = 0;
+
+    /**
+     * marks the root in the parent types passed to computeBranchRates
+     */
+    protected static final int ROOT_BRANCH = -1;
+
+    /**
+     * primitive scratch arrays reused by getRatesForBranches
+     */
+    protected int[] batchTypes;
+    protected int[] batchParentTypes;
+    protected double[] batchTypeTimes;
+    protected double[] batchTypeLinkedRates;
+
     /**
      * Initialize and validate inputs that are required for all TyCHE branch models
      */
@@ -118,6 +222,9 @@ public abstract class AbstractTycheTypeLinkedClockModel extends BranchRateModel.
         nodeTypes = nodeTypesInput.get();
         typeLinkedRates = typeLinkedRatesInput.get();
         branchRates = branchRatesInput.get();
+        if (branchRates != null) {
+            Log.warning("Clock model " + this.getID() + " was given a branchRates parameter, which is updated every time a branch rate is calculated. Consider logging a tyche.evolution.branchratemodel.TypeLinkedBranchStatistic instead.");
+        }
 
         // ensure we have enough type-linked rates for the types in nodeTypes
         if (nodeTypes.getUpper() != null) {
@@ -133,11 +240,39 @@ public abstract class AbstractTycheTypeLinkedClockModel extends BranchRateModel.
             typeSwitchClockRate = typeSwitchClockRateInput.get();
             svs = svsInput.get();
             occupancies = occupanciesInput.get();
-            if (nodeTypes.getUpper() != 1 && nodeTypes.getLower() != 0) {
-                throw new IllegalArgumentException("Node types should have upper of 1 and lower of 0 for expected occupancy models.");
+            if (occupancies != null) {
+                Log.warning("Clock model " + this.getID() + " was given an expectedOccupancy parameter, which is updated every time a branch rate is calculated. Consider logging a tyche.evolution.branchratemodel.TypeLinkedBranchStatistic with expectedOccupancy=\"true\" instead.");
+            }
+            if (nodeTypes.getLower() != null && nodeTypes.getLower() != 0) {
+                throw new IllegalArgumentException("Node types should have lower of 0 for expected occupancy models.");
+            }
+            typeCount = typeLinkedRates.getDimension();
+            if (svs.getStateCount() != typeCount) {
+                throw new IllegalArgumentException("Number of type rates should match the number of states in the substitution model for expected occupancy models. The substitution model has " + svs.getStateCount() + " states but typeLinkedRates has " + typeCount + " values.");
+            }
+            qMatrix = svs.getCurrentRateMatrix();
+            occupancyTableTolerance = occupancyTableToleranceInput.get();
+            if (occupancyTableTolerance > 0.0 && typeCount != 2) {
+                Log.warning("Clock model " + this.getID() + " only interpolates expected occupancy for two types, so occupancyTableTolerance will be ignored.");
+                occupancyTableTolerance = 0.0;
             }
-            qMatrix = svs.getRateMatrix();
         }
+
+        int nodeCount = nodeTypes.getDimension();
+        if (typeCount > 2) {
+            projectedRates = new double[typeCount * typeCount];
+            projectedRateValues = new double[typeCount];
+            occupancyWeights = new double[typeCount * typeCount];
+            occupancyTypeTimes = new double[nodeCount];
+            occupancyVersions = new long[nodeCount];
+            occupancyExponentials = new double[nodeCount][typeCount];
+            occupancyIntegrals = new double[nodeCount][typeCount * typeCount];
+        }
+        cachedRates = new double[2][nodeCount];
+        cachedRateVersions = new long[2][nodeCount];
+        rateIndex = new int[nodeCount];
+        rateStamps = new long[nodeCount];
+        changedNodes = new int[nodeCount];
     }
 
     /**
@@ -159,12 +294,128 @@ public abstract class AbstractTycheTypeLinkedClockModel extends BranchRateModel.
      * @return      a double array listing the expected occupancy for each type
      */
     public double[] getOccupancy(final int parentType, final int currentType, final Double time, final int nodeNum) {
+        double[] occupancy = new double[2];
+        occupancy[0] = getFirstTypeOccupancy(parentType, currentType, time, nodeNum);
+
+        // set occupancy of second type so that occupancies sum to 1
+        occupancy[1] = 1 - occupancy[0];
+        return occupancy;
+    }
+
+    /**
+     * Get the occupancy in the first type (type 0) for a branch, without allocating an array for both types
+     * @param parentType  an integer representing the type of the parent of this branch
+     * @param currentType an integer representing the type of the child of this branch (current node)
+     * @param time        the timespan of the branch
+     * @param nodeNum     an integer representing the node number of the child of this branch (current node)
+     * @return      the expected occupancy proportion in type 0; the occupancy in type 1 is one minus this
+     */
+    public double getFirstTypeOccupancy(final int parentType, final int currentType, final double time, final int nodeNum) {
+        // the substitution model swaps rate matrix buffers on store/restore, so get the current one
+        qMatrix = svs.getCurrentRateMatrix();
+        double occupancy = lookupFirstTypeOccupancy(qMatrix[0][1], qMatrix[1][0], parentType, currentType, time);
+
+        // record occupancies if a parameter was provided for logging
+        if (occupancies != null) {
+            occupancies.setValue(nodeNum, occupancy);
+        }
+        return occupancy;
+    }
+
+    /**
+     * Get the occupancy in the first type (type 0) for the branch above this node, for reporting.
+     * By default the branch is assumed to be entirely in the child type; expected occupancy models override this.
+     * @param node  the current node (child of this branch)
+     * @return      the occupancy proportion in type 0
+     */
+    public double getFirstTypeOccupancy(final Node node) {
+        return nodeTypes.getArrayValue(node.getNr()) == 0 ? 1.0 : 0.0;
+    }
+
+    /**
+     * Get the expected occupancy in the first type (type 0) for the branch above this node, without recording it
+     * @param node  the current node (child of this branch), which must not be the root
+     * @return      the expected occupancy proportion in type 0
+     */
+    protected double getExpectedFirstTypeOccupancy(final Node node) {
+        int type = (int) nodeTypes.getArrayValue(node.getNr());
+        int parentType = (int) nodeTypes.getArrayValue(node.getParent().getNr());
+        double typeTime = node.getLength() * typeSwitchClockRate.getArrayValue();
+        if (typeCount > 2) {
+            return getMultiTypeFirstTypeOccupancy(node.getNr(), parentType, type, typeTime);
+        }
+        qMatrix = svs.getCurrentRateMatrix();
+        return lookupFirstTypeOccupancy(qMatrix[0][1], qMatrix[1][0], parentType, type, typeTime);
+    }
+
+    /**
+     * Get the occupancy in the first type (type 0) for a branch with two types, from the interpolation table if one is
+     * used, and otherwise by calculating it directly
+     * @param alpha       the rate of switching from type 0 to type 1
+     * @param beta        the rate of switching from type 1 to type 0
+     * @param parentType  an integer representing the type of the parent of this branch
+     * @param currentType an integer representing the type of the child of this branch (current node)
+     * @param time        the timespan of the branch
+     * @return      the expected occupancy proportion in type 0
+     */
+    protected double lookupFirstTypeOccupancy(final double alpha, final double beta, final int parentType, final int currentType, final double time) {
+        if (occupancyTableTolerance > 0.0) {
+            final ExpectedOccupancyTable table = getOccupancyTable(alpha, beta);
+            if (table != null && table.covers(time)) {
+                return table.getFirstTypeOccupancy(parentType, currentType, time);
+            }
+        }
+        return getFirstTypeOccupancy(alpha, beta, parentType, currentType, time);
+    }
+
+    /**
+     * Get the interpolation table for these switch rates from the most recently used tables. A new table is only
+     * built once the occupancy has been calculated directly for these rates about as many times as building one
+     * takes, so that values of Q that are proposed and rejected do not each build a table.
+     * @param alpha the rate of switching from type 0 to type 1
+     * @param beta  the rate of switching from type 1 to type 0
+     * @return the table, which may not be valid, or null if there is no table for these rates yet
+     */
+    protected ExpectedOccupancyTable getOccupancyTable(final double alpha, final double beta) {
+        for (int i = 0; i < occupancyTables.length && occupancyTables[i] != null; i++) {
+            final ExpectedOccupancyTable table = occupancyTables[i];
+            if (table.isFor(alpha, beta)) {
+                // move to the front, so that the least recently used table is dropped first
+                System.arraycopy(occupancyTables, 0, occupancyTables, 1, i);
+                occupancyTables[0] = table;
+                return table;
+            }
+        }
+        if (alpha != directOccupancyAlpha || beta != directOccupancyBeta) {
+            directOccupancyAlpha = alpha;
+            directOccupancyBeta = beta;
+            directOccupancyCount = 0;
+        }
+        if (++directOccupancyCount < ExpectedOccupancyTable.BUILD_COST) {
+            return null;
+        }
+        final ExpectedOccupancyTable table = new ExpectedOccupancyTable(alpha, beta, occupancyTableTolerance);
+        if (!table.isValid() && !occupancyTableWarned) {
+            occupancyTableWarned = true;
+            Log.warning("Clock model " + this.getID() + " could not interpolate expected occupancy within " + occupancyTableTolerance + " for alpha=" + alpha + " and beta=" + beta + ", and will calculate it directly.");
+        }
+        System.arraycopy(occupancyTables, 0, occupancyTables, 1, occupancyTables.length - 1);
+        occupancyTables[0] = table;
+        return table;
+    }
 
-        double alpha = qMatrix[0][1];
-        double beta = qMatrix[1][0];
+    /**
+     * Get the occupancy in the first type (type 0) for a branch given the two type switch rates
+     * @param alpha       the rate of switching from type 0 to type 1
+     * @param beta        the rate of switching from type 1 to type 0
+     * @param parentType  an integer representing the type of the parent of this branch
+     * @param currentType an integer representing the type of the child of this branch (current node)
+     * @param time        the timespan of the branch
+     * @return      the expected occupancy proportion in type 0
+     */
+    protected static double getFirstTypeOccupancy(final double alpha, final double beta, final int parentType, final int currentType, final double time) {
         double k = alpha + beta;
         double expmkt = Math.exp(-k * time); // exp minus k * time
-        double[] occupancy = new double[2];
         double occupancyTimeA; // occupancy time in state 0, calculated as in [reference when we have this paper]
 
         // see calculations in [reference]
@@ -187,16 +438,331 @@ public abstract class AbstractTycheTypeLinkedClockModel extends BranchRateModel.
             throw new RuntimeException("Types should be either 0 or 1, not " + wrongType);
         }
 
-        occupancy[0] = occupancyTimeA/time; // get occupancy proportion in state 0
+        return occupancyTimeA/time; // get occupancy proportion in state 0
+    }
 
-        // set occupancy of second type so that occupancies sum to 1
-        occupancy[1] = 1 - occupancy[0];
+    /**
+     * Get the rate of a branch from the expected occupancy in each of more than two types.
+     * With Q = U diag(lambda) inverse(U), the expected time spent in type k on a branch from type a to type b is
+     * the integral of P_ak(s) P_kb(t - s) over the branch, divided by P_ab(t). Weighting by the type-linked rates, the
+     * sum over all types only needs the rates projected onto the eigenvectors and the integrals of
+     * exp(lambda_i * s + lambda_j * (t - s)), which are cached per branch length, so the cost per branch is O(K^2).
+     * As for the transition probabilities of the substitution model, the eigenvalues of Q are assumed to be real.
+     * @param nodeNum     an integer representing the node number of the child of this branch (current node)
+     * @param parentType  an integer representing the type of the parent of this branch
+     * @param currentType an integer representing the type of the child of this branch (current node)
+     * @param time        the timespan of the branch, multiplied by the type switch clock rate
+     * @return      the occupancy-weighted rate for this branch
+     */
+    protected double getMultiTypeOccupancyRate(final int nodeNum, final int parentType, final int currentType, final double time) {
+        updateProjectedRates();
+        if (time <= 0.0) {
+            // the limit as the branch length goes to zero is half of the branch in each end type
+            return 0.5 * (projectedRateValues[parentType] + projectedRateValues[currentType]);
+        }
+        updateOccupancyIntegrals(nodeNum, time);
+        return getMultiTypeOccupancy(projectedRates, nodeNum, parentType, currentType, time);
+    }
 
-        // record occupancies if a parameter was provided for logging
-        if (occupancies != null) {
-            occupancies.setValue(nodeNum, occupancy[0]);
+    /**
+     * Get the expected occupancy in the first type (type 0) for a branch when there are more than two types
+     * @param nodeNum     an integer representing the node number of the child of this branch (current node)
+     * @param parentType  an integer representing the type of the parent of this branch
+     * @param currentType an integer representing the type of the child of this branch (current node)
+     * @param time        the timespan of the branch, multiplied by the type switch clock rate
+     * @return      the expected occupancy proportion in type 0
+     */
+    protected double getMultiTypeFirstTypeOccupancy(final int nodeNum, final int parentType, final int currentType, final double time) {
+        updateProjectedRates();
+        if (time <= 0.0) {
+            return 0.5 * ((parentType == 0 ? 1.0 : 0.0) + (currentType == 0 ? 1.0 : 0.0));
         }
-        return occupancy;
+        updateOccupancyIntegrals(nodeNum, time);
+        final double[] eigenVectors = occupancyEigenDecomposition.getEigenVectors();
+        final double[] inverseEigenVectors = occupancyEigenDecomposition.getInverseEigenVectors();
+        for (int i = 0; i < typeCount; i++) {
+            for (int j = 0; j < typeCount; j++) {
+                occupancyWeights[i * typeCount + j] = inverseEigenVectors[i * typeCount] * eigenVectors[j];
+            }
+        }
+        return getMultiTypeOccupancy(occupancyWeights, nodeNum, parentType, currentType, time);
+    }
+
+    /**
+     * Get the weighted expected occupancy of a branch from the cached matrix exponential terms of the branch
+     * @param weights     the per-type weights projected onto the eigenvectors of Q
+     * @param nodeNum     an integer representing the node number of the child of this branch (current node)
+     * @param parentType  an integer representing the type of the parent of this branch
+     * @param currentType an integer representing the type of the child of this branch (current node)
+     * @param time        the timespan of the branch, multiplied by the type switch clock rate
+     * @return      the expected occupancy of the branch, weighted by type
+     */
+    private double getMultiTypeOccupancy(final double[] weights, final int nodeNum, final int parentType, final int currentType, final double time) {
+        final double[] eigenVectors = occupancyEigenDecomposition.getEigenVectors();
+        final double[] inverseEigenVectors = occupancyEigenDecomposition.getInverseEigenVectors();
+        final double[] exponentials = occupancyExponentials[nodeNum];
+        final double[] integrals = occupancyIntegrals[nodeNum];
+        double weightedTime = 0.0;
+        double transitionProbability = 0.0;
+        for (int i = 0; i < typeCount; i++) {
+            final double parentComponent = eigenVectors[parentType * typeCount + i];
+            transitionProbability += parentComponent * exponentials[i] * inverseEigenVectors[i * typeCount + currentType];
+            double inner = 0.0;
+            for (int j = 0; j < typeCount; j++) {
+                inner += weights[i * typeCount + j] * integrals[i * typeCount + j] * inverseEigenVectors[j * typeCount + currentType];
+            }
+            weightedTime += parentComponent * inner;
+        }
+        return weightedTime / (time * transitionProbability);
+    }
+
+    /**
+     * Project the type-linked rates onto the eigenvectors of Q if either Q or the rates have changed
+     */
+    protected void updateProjectedRates() {
+        EigenDecomposition eigenDecomposition = svs.getEigenDecomposition(null);
+        if (eigenDecomposition != occupancyEigenDecomposition) {
+            occupancyEigenDecomposition = eigenDecomposition;
+            occupancyEigenVersion++;
+            projectedRatesKnown = false;
+        }
+        final double[] rates = getTypeLinkedRates();
+        if (projectedRatesKnown && Arrays.equals(rates, projectedRateValues)) {
+            return;
+        }
+        final double[] eigenVectors = eigenDecomposition.getEigenVectors();
+        final double[] inverseEigenVectors = eigenDecomposition.getInverseEigenVectors();
+        for (int i = 0; i < typeCount; i++) {
+            for (int j = 0; j < typeCount; j++) {
+                double projected = 0.0;
+                for (int k = 0; k < typeCount; k++) {
+                    projected += inverseEigenVectors[i * typeCount + k] * rates[k] * eigenVectors[k * typeCount + j];
+                }
+                projectedRates[i * typeCount + j] = projected;
+            }
+        }
+        System.arraycopy(rates, 0, projectedRateValues, 0, typeCount);
+        projectedRatesKnown = true;
+    }
+
+    /**
+     * Calculate the matrix exponential terms for a branch, unless they are cached for this branch length and Q
+     * @param nodeNum  an integer representing the node number of the child of this branch (current node)
+     * @param time     the timespan of the branch, multiplied by the type switch clock rate
+     */
+    protected void updateOccupancyIntegrals(final int nodeNum, final double time) {
+        if (occupancyVersions[nodeNum] == occupancyEigenVersion && occupancyTypeTimes[nodeNum] == time) {
+            return;
+        }
+        final double[] eigenValues = occupancyEigenDecomposition.getEigenValues();
+        final double[] exponentials = occupancyExponentials[nodeNum];
+        final double[] integrals = occupancyIntegrals[nodeNum];
+        for (int i = 0; i < typeCount; i++) {
+            exponentials[i] = Math.exp(eigenValues[i] * time);
+        }
+        for (int i = 0; i < typeCount; i++) {
+            integrals[i * typeCount + i] = time * exponentials[i];
+            for (int j = 0; j < i; j++) {
+                final double difference = eigenValues[i] - eigenValues[j];
+                double integral;
+                if (difference == 0.0) {
+                    integral = time * exponentials[j];
+                } else if (Math.abs(difference * time) < 1e-3) {
+                    // avoid cancellation between nearly equal exponentials
+                    integral = exponentials[j] * Math.expm1(difference * time) / difference;
+                } else {
+                    integral = (exponentials[i] - exponentials[j]) / difference;
+                }
+                integrals[i * typeCount + j] = integral;
+                integrals[j * typeCount + i] = integral;
+            }
+        }
+        occupancyTypeTimes[nodeNum] = time;
+        occupancyVersions[nodeNum] = occupancyEigenVersion;
+    }
+
+    /**
+     * Fill a caller-owned array with the rates of all branches in one pass.
+     * The types and type-switch times of all branches are first gathered into primitive arrays, and the rates are then
+     * calculated by computeBranchRates in a single loop over those arrays. The results are also stored in the
+     * per-branch cache used by getRateForBranch. If the deprecated branchRates or expectedOccupancy parameters are
+     * given, the rates are calculated branch by branch instead so that those parameters are still written.
+     * @param nodes  the nodes of the tree, indexed by node number
+     * @param rates  the array to fill with the rate of the branch above each node, indexed by node number
+     */
+    public void getRatesForBranches(final Node[] nodes, final double[] rates) {
+        final int nodeCount = nodes.length;
+        if (logsDiagnostics()) {
+            for (int i = 0; i < nodeCount; i++) {
+                rates[i] = getRateForBranch(nodes[i]);
+            }
+            return;
+        }
+        ensureBatchCapacity(nodeCount);
+        final double switchRate = isExpectedOccupancy() ? typeSwitchClockRate.getArrayValue() : 0.0;
+
+        // gather types and branch times into primitive arrays
+        for (int i = 0; i < nodeCount; i++) {
+            final Node node = nodes[i];
+            batchTypes[i] = (int) nodeTypes.getArrayValue(i);
+            if (node.isRoot()) {
+                batchParentTypes[i] = ROOT_BRANCH;
+                batchTypeTimes[i] = 0.0;
+            } else {
+                batchParentTypes[i] = (int) nodeTypes.getArrayValue(node.getParent().getNr());
+                batchTypeTimes[i] = node.getLength() * switchRate;
+            }
+        }
+
+        computeAndCacheBranchRates(nodeCount, rates);
+    }
+
+    /**
+     * Fill a caller-owned array with the rates of all branches in one pass, reading the topology and heights from the
+     * primitive mirror of a germline root tree instead of the nodes.
+     * @param tree   the tree the clock model is applied to
+     * @param rates  the array to fill with the rate of the branch above each node, indexed by node number
+     */
+    public void getRatesForBranches(final GermlineRootTree tree, final double[] rates) {
+        if (logsDiagnostics()) {
+            getRatesForBranches(tree.getNodesAsArray(), rates);
+            return;
+        }
+        final int[] parentNums = tree.getParentNums();
+        final double[] heights = tree.getNodeHeights();
+        final int nodeCount = parentNums.length;
+        ensureBatchCapacity(nodeCount);
+        final double switchRate = isExpectedOccupancy() ? typeSwitchClockRate.getArrayValue() : 0.0;
+
+        for (int i = 0; i < nodeCount; i++) {
+            final int parentNum = parentNums[i];
+            batchTypes[i] = (int) nodeTypes.getArrayValue(i);
+            if (parentNum < 0) {
+                batchParentTypes[i] = ROOT_BRANCH;
+                batchTypeTimes[i] = 0.0;
+            } else {
+                batchParentTypes[i] = (int) nodeTypes.getArrayValue(parentNum);
+                batchTypeTimes[i] = (heights[parentNum] - heights[i]) * switchRate;
+            }
+        }
+
+        computeAndCacheBranchRates(nodeCount, rates);
+    }
+
+    /**
+     * Whether any of the deprecated parameters written each time a branch rate is calculated are given
+     * @return true if the branchRates or expectedOccupancy parameter is given, otherwise false
+     */
+    protected boolean logsDiagnostics() {
+        return branchRates != null || occupancies != null;
+    }
+
+    /**
+     * Copy the values that the rates of all branches depend on, which is everything other than the tree and the node
+     * types: the type-linked rates, and for expected occupancy models the type switch clock rate and the rate matrix.
+     * While none of these change, the rate of a branch can only change if the branch or the types at either end of it
+     * change.
+     * @param values the array to fill, which is replaced if it is null or the wrong length
+     * @return the filled array
+     */
+    public double[] getSharedRateInputs(double[] values) {
+        final int rateCount = typeLinkedRates.getDimension();
+        final double[][] matrix = isExpectedOccupancy() ? svs.getCurrentRateMatrix() : null;
+        int length = rateCount;
+        if (matrix != null) {
+            length += 1;
+            for (double[] row : matrix) {
+                length += row.length;
+            }
+        }
+        if (values == null || values.length != length) {
+            values = new double[length];
+        }
+        int k = 0;
+        for (int i = 0; i < rateCount; i++) {
+            values[k++] = typeLinkedRates.getArrayValue(i);
+        }
+        if (matrix != null) {
+            values[k++] = typeSwitchClockRate.getArrayValue();
+            for (double[] row : matrix) {
+                for (double value : row) {
+                    values[k++] = value;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Make sure the batch scratch arrays can hold the given number of branches
+     * @param nodeCount the number of branches
+     */
+    private void ensureBatchCapacity(final int nodeCount) {
+        if (batchTypes == null || batchTypes.length < nodeCount) {
+            batchTypes = new int[nodeCount];
+            batchParentTypes = new int[nodeCount];
+            batchTypeTimes = new double[nodeCount];
+        }
+    }
+
+    /**
+     * Calculate the rates of the gathered batch and store them in the per-branch cache, only writing the rates that
+     * differ from the cached ones so that restore only has to swap back those
+     * @param nodeCount the number of branches
+     * @param rates     the array to fill with the rate of each branch
+     */
+    private void computeAndCacheBranchRates(final int nodeCount, final double[] rates) {
+        computeBranchRates(nodeCount, batchParentTypes, batchTypes, batchTypeTimes, rates);
+
+        for (int i = 0; i < nodeCount; i++) {
+            int index = rateIndex[i];
+            if (cachedRates[index][i] != rates[i] || cachedRateVersions[index][i] != ratesVersion) {
+                index = getWritableRateIndex(i);
+                cachedRates[index][i] = rates[i];
+                cachedRateVersions[index][i] = ratesVersion;
+            }
+        }
+    }
+
+    /**
+     * Get the buffer to write a node's rate to, swapping to the other buffer the first time it is written after a
+     * store so that the stored rate is kept for restore
+     * @param nodeNum the number of the node
+     * @return the buffer index
+     */
+    private int getWritableRateIndex(final int nodeNum) {
+        if (rateStamps[nodeNum] != storeStamp) {
+            rateStamps[nodeNum] = storeStamp;
+            rateIndex[nodeNum] = 1 - rateIndex[nodeNum];
+            changedNodes[changedNodeCount++] = nodeNum;
+        }
+        return rateIndex[nodeNum];
+    }
+
+    /**
+     * Calculate the rates of a batch of branches from primitive arrays of branch types and times.
+     * Implementations should not allocate, and should read the model parameters once before looping over the branches.
+     * @param count        the number of branches
+     * @param parentTypes  the type of the parent of each branch, or ROOT_BRANCH for the root
+     * @param types        the type of the child of each branch
+     * @param typeTimes    the length of each branch multiplied by the type switch clock rate
+     * @param rates        the array to fill with the rate of each branch
+     */
+    protected abstract void computeBranchRates(int count, int[] parentTypes, int[] types, double[] typeTimes, double[] rates);
+
+    /**
+     * Copy the type-linked rates into a primitive array reused between batches
+     * @return      the mutation rate for each type
+     */
+    protected double[] getTypeLinkedRates() {
+        final int typeCount = typeLinkedRates.getDimension();
+        if (batchTypeLinkedRates == null || batchTypeLinkedRates.length != typeCount) {
+            batchTypeLinkedRates = new double[typeCount];
+        }
+        for (int i = 0; i < typeCount; i++) {
+            batchTypeLinkedRates[i] = typeLinkedRates.getArrayValue(i);
+        }
+        return batchTypeLinkedRates;
     }
 
     /**
@@ -207,17 +773,57 @@ public abstract class AbstractTycheTypeLinkedClockModel extends BranchRateModel.
     public abstract double getBranchRate(Node node);
 
     /**
-     * Get the rate for this branch by calling helper getBranchRate method, handling extra logging
+     * Get the rate for this branch by calling helper getBranchRate method, handling extra logging.
+     * The rate is cached per branch, and only recalculated when this node's type, its parent's type, its branch, or
+     * any input that affects all branches has changed.
      * @param node  the current node (child of this branch)
      * @return      the rate to be used for this branch
      */
     @Override
     public double getRateForBranch(Node node) {
-        double branchRate = getBranchRate(node);
-        if (branchRates != null) {
-            branchRates.setValue(node.getNr(), branchRate);
+        final int nodeNum = node.getNr();
+        int index = rateIndex[nodeNum];
+        if (cachedRateVersions[index][nodeNum] != ratesVersion || node.isDirty() != Tree.IS_CLEAN || hasTypeChanged(node)) {
+            double branchRate = getBranchRate(node);
+            index = getWritableRateIndex(nodeNum);
+            cachedRates[index][nodeNum] = branchRate;
+            cachedRateVersions[index][nodeNum] = ratesVersion;
+            if (branchRates != null) {
+                branchRates.setValue(nodeNum, branchRate);
+            }
         }
-        return branchRate;
+        return cachedRates[index][nodeNum];
+    }
+
+    /**
+     * Whether the type of this node or its parent has changed in the current proposal
+     * @param node  the current node (child of this branch)
+     * @return      true if the type of the node or its parent is dirty, otherwise false
+     */
+    protected boolean hasTypeChanged(Node node) {
+        if (!nodeTypes.somethingIsDirty()) {
+            return false;
+        }
+        if (nodeTypes.isDirty(node.getNr())) {
+            return true;
+        }
+        Node parent = node.getParent();
+        return parent != null && nodeTypes.isDirty(parent.getNr());
+    }
+
+    /**
+     * Whether a Function input has changed in the current proposal
+     * @param function the function to check
+     * @return true if the function is a dirty StateNode or CalculationNode, otherwise false
+     */
+    protected static boolean isDirty(Function function) {
+        if (function instanceof StateNode) {
+            return ((StateNode) function).somethingIsDirty();
+        }
+        if (function instanceof CalculationNode) {
+            return ((CalculationNode) function).isDirtyCalculation();
+        }
+        return false;
     }
 
 
@@ -228,10 +834,52 @@ public abstract class AbstractTycheTypeLinkedClockModel extends BranchRateModel.
     public boolean isExpectedOccupancy() { return false; }
 
     /**
-     * Return whether this model requires recalculation
-     * @return      true, so that this model is always recalculated
+     * Return whether this model requires recalculation.
+     * Changes to the type-linked rates, the switch rate, or the substitution model invalidate every cached branch rate;
+     * changes to node types only invalidate the branches of those nodes and their children, which is checked when the
+     * rates are requested. Branch changes are picked up from the tree's node dirty flags in the same way.
+     * Every other branch keeps its cached rate exactly, so a tree likelihood that compares the length of each branch in
+     * substitutions with the one it last used, as BEAST's TreeLikelihood does, only updates the changed branches and
+     * the paths above them. The nodes of the tree are not marked dirty here, as that would make everything else that
+     * depends on the tree recalculate as well.
+     * @return      true if anything the branch rates depend on has changed, otherwise false
      */
+    @Override
     public boolean requiresRecalculation() {
-        return true;
+        boolean allRatesChanged = typeLinkedRates.somethingIsDirty()
+                || isDirty(typeSwitchClockRate)
+                || (svs != null && svs.isDirtyCalculation());
+        if (allRatesChanged) {
+            ratesVersion++;
+        }
+        return allRatesChanged || nodeTypes.somethingIsDirty();
+    }
+
+    /**
+     * Store the cached branch rates so that they can be restored after rejected proposals.
+     * The per-node buffers are swapped as rates change, so only a new store has to be started here.
+     */
+    @Override
+    public void store() {
+        storedRatesVersion = ratesVersion;
+        storeStamp++;
+        changedNodeCount = 0;
+        super.store();
+    }
+
+    /**
+     * Restore the cached branch rates that were stored before the proposal, by swapping back the buffers of the
+     * branches whose rates changed since the store.
+     */
+    @Override
+    public void restore() {
+        for (int k = 0; k < changedNodeCount; k++) {
+            final int nodeNum = changedNodes[k];
+            rateIndex[nodeNum] = 1 - rateIndex[nodeNum];
+        }
+        ratesVersion = storedRatesVersion;
+        storeStamp++;
+        changedNodeCount = 0;
+        super.restore();
     }
 }
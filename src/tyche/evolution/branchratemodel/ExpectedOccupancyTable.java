@@ -0,0 +1,253 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.branchratemodel;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Interpolation table for the two-type expected occupancy in type 0 as a function of type-switch time, for fixed
+ * switch rates alpha (0 to 1) and beta (1 to 0). Occupancies are tabulated for the three distinct endpoint
+ * combinations (0 to 0, 1 to 1, and a switch in either direction) on a uniform grid and interpolated with cubic
+ * Hermite splines. The grid is refined until the interpolation error at the eighth points of every interval is
+ * within half the requested tolerance, which leaves a margin for the error between the checked points. The grid is
+ * capped at MAX_INTERVALS, and if that is not fine enough the table is not valid and the occupancy should be
+ * calculated directly. Beyond the end of the table the exponential terms are negligible, and the occupancy should
+ * also be calculated directly.
+ */
+public class ExpectedOccupancyTable {
+
+    /**
+     * the table covers type-switch times up to this multiple of 1/(alpha + beta), where exp(-(alpha + beta) * t) is
+     * negligible
+     */
+    private static final double MAX_SCALED_TIME = 40.0;
+
+    /**
+     * the starting and largest number of grid intervals tried when refining the table. At the largest grid the table
+     * holds about 50 KB and checking it takes about 25,000 direct calculations.
+     */
+    private static final int MIN_INTERVALS = 64;
+    private static final int MAX_INTERVALS = 1024;
+
+    /**
+     * the number of points checked within each grid interval
+     */
+    private static final int CHECKS_PER_INTERVAL = 7;
+
+    /**
+     * the number of direct calculations that building and checking the smallest table takes, so that a table is only
+     * worth building once the same switch rates have been used for about this many branches
+     */
+    public static final int BUILD_COST = 3 * (CHECKS_PER_INTERVAL + 1) * MIN_INTERVALS;
+
+    /**
+     * index of the table for a branch whose parent and child types differ
+     */
+    private static final int SWITCH = 2;
+
+    /**
+     * the switch rates the table was built for
+     */
+    private final double alpha;
+    private final double beta;
+
+    /**
+     * the largest type-switch time covered by the table
+     */
+    private final double maxTime;
+
+    /**
+     * whether a table within tolerance could be built
+     */
+    private boolean valid = false;
+
+    private double step;
+    private double inverseStep;
+    private int intervals;
+
+    /**
+     * occupancy and its derivative with respect to grid position at each grid point, for each endpoint combination
+     */
+    private double[][] values;
+    private double[][] slopes;
+
+    /**
+     * Build a table for the given switch rates with the requested maximum absolute error
+     * @param alpha     the rate of switching from type 0 to type 1
+     * @param beta      the rate of switching from type 1 to type 0
+     * @param tolerance the maximum absolute interpolation error
+     */
+    public ExpectedOccupancyTable(final double alpha, final double beta, final double tolerance) {
+        this.alpha = alpha;
+        this.beta = beta;
+        final double k = alpha + beta;
+        maxTime = k > 0.0 ? MAX_SCALED_TIME / k : 0.0;
+        if (!(maxTime > 0.0) || Double.isInfinite(maxTime)) {
+            return;
+        }
+        for (int n = MIN_INTERVALS; n <= MAX_INTERVALS; n *= 2) {
+            build(n);
+            if (getMaxGridError() <= 0.5 * tolerance) {
+                valid = true;
+                return;
+            }
+        }
+        values = null;
+        slopes = null;
+    }
+
+    /**
+     * Whether this table was built for the given switch rates and can be used
+     * @param alpha the rate of switching from type 0 to type 1
+     * @param beta  the rate of switching from type 1 to type 0
+     * @return true if the table is valid for these rates, otherwise false
+     */
+    public boolean isFor(final double alpha, final double beta) {
+        return this.alpha == alpha && this.beta == beta;
+    }
+
+    /**
+     * Whether the occupancy for this type-switch time can be looked up in the table
+     * @param time the timespan of the branch, multiplied by the type switch clock rate
+     * @return true if the table is valid and covers this time, otherwise false
+     */
+    public boolean covers(final double time) {
+        return valid && time >= 0.0 && time < maxTime;
+    }
+
+    /**
+     * Whether a table within tolerance could be built
+     * @return true if the table can be used, otherwise false
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Interpolate the expected occupancy in type 0, for a time covered by the table
+     * @param parentType  an integer representing the type of the parent of this branch, 0 or 1
+     * @param currentType an integer representing the type of the child of this branch, 0 or 1
+     * @param time        the timespan of the branch, multiplied by the type switch clock rate
+     * @return the expected occupancy proportion in type 0
+     */
+    public double getFirstTypeOccupancy(final int parentType, final int currentType, final double time) {
+        final double[] tableValues = values[getIndex(parentType, currentType)];
+        final double[] tableSlopes = slopes[getIndex(parentType, currentType)];
+        final double position = time * inverseStep;
+        final int i = Math.min((int) position, intervals - 1);
+        final double s = position - i;
+        return interpolate(tableValues, tableSlopes, i, s);
+    }
+
+    /**
+     * Get the index of the table for an endpoint combination
+     * @param parentType  an integer representing the type of the parent of this branch
+     * @param currentType an integer representing the type of the child of this branch
+     * @return the index of the table
+     */
+    private static int getIndex(final int parentType, final int currentType) {
+        if ((parentType != 0 && parentType != 1) || (currentType != 0 && currentType != 1)) {
+            int wrongType = (parentType < 0 || parentType > 1) ? parentType : currentType;
+            throw new RuntimeException("Types should be either 0 or 1, not " + wrongType);
+        }
+        return parentType == currentType ? parentType : SWITCH;
+    }
+
+    /**
+     * Tabulate the occupancy on a grid with the given number of intervals
+     * @param n the number of grid intervals
+     */
+    private void build(final int n) {
+        intervals = n;
+        step = maxTime / n;
+        inverseStep = n / maxTime;
+        values = new double[3][n + 1];
+        slopes = new double[3][n + 1];
+        for (int index = 0; index < 3; index++) {
+            final int parentType = index == SWITCH ? 0 : index;
+            final int currentType = index == SWITCH ? 1 : index;
+            final double[] tableValues = values[index];
+            final double[] tableSlopes = slopes[index];
+            tableValues[0] = index == SWITCH ? 0.5 : 1.0 - index;
+            for (int i = 1; i <= n; i++) {
+                tableValues[i] = exact(parentType, currentType, i * step);
+            }
+            // derivatives with respect to grid position, from neighbouring grid points
+            tableSlopes[0] = -1.5 * tableValues[0] + 2.0 * tableValues[1] - 0.5 * tableValues[2];
+            for (int i = 1; i < n; i++) {
+                tableSlopes[i] = 0.5 * (tableValues[i + 1] - tableValues[i - 1]);
+            }
+            tableSlopes[n] = 1.5 * tableValues[n] - 2.0 * tableValues[n - 1] + 0.5 * tableValues[n - 2];
+        }
+    }
+
+    /**
+     * Get the largest interpolation error at the eighth points of the grid intervals
+     * @return the largest absolute error
+     */
+    private double getMaxGridError() {
+        double maxError = 0.0;
+        for (int index = 0; index < 3; index++) {
+            final int parentType = index == SWITCH ? 0 : index;
+            final int currentType = index == SWITCH ? 1 : index;
+            for (int i = 0; i < intervals; i++) {
+                for (int check = 1; check <= CHECKS_PER_INTERVAL; check++) {
+                    final double s = (double) check / (CHECKS_PER_INTERVAL + 1);
+                    double error = Math.abs(interpolate(values[index], slopes[index], i, s) - exact(parentType, currentType, (i + s) * step));
+                    // NaN errors also count as failures
+                    if (!(error <= maxError)) {
+                        maxError = error;
+                    }
+                }
+            }
+        }
+        return maxError;
+    }
+
+    /**
+     * Cubic Hermite interpolation within a grid interval
+     * @param tableValues the tabulated values
+     * @param tableSlopes the tabulated derivatives with respect to grid position
+     * @param i           the index of the start of the interval
+     * @param s           the position within the interval, between 0 and 1
+     * @return the interpolated value
+     */
+    private static double interpolate(final double[] tableValues, final double[] tableSlopes, final int i, final double s) {
+        final double s2 = s * s;
+        final double s3 = s2 * s;
+        return (2 * s3 - 3 * s2 + 1) * tableValues[i] + (s3 - 2 * s2 + s) * tableSlopes[i]
+                + (-2 * s3 + 3 * s2) * tableValues[i + 1] + (s3 - s2) * tableSlopes[i + 1];
+    }
+
+    /**
+     * Calculate the occupancy directly
+     * @param parentType  an integer representing the type of the parent of this branch
+     * @param currentType an integer representing the type of the child of this branch
+     * @param time        the timespan of the branch, multiplied by the type switch clock rate
+     * @return the expected occupancy proportion in type 0
+     */
+    private double exact(final int parentType, final int currentType, final double time) {
+        return AbstractTycheTypeLinkedClockModel.getFirstTypeOccupancy(alpha, beta, parentType, currentType, time);
+    }
+}
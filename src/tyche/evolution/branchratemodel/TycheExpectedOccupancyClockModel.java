@@ -63,8 +63,56 @@ public class TycheExpectedOccupancyClockModel extends AbstractTycheTypeLinkedClo
         int type = (int) nodeTypes.getArrayValue(node.getNr());
         int parentType = (int) nodeTypes.getArrayValue(node.getParent().getNr());
         double typeTime = node.getLength() * typeSwitchClockRate.getArrayValue();
-        double[] occupancy = getOccupancy(parentType, type, typeTime, node.getNr());
-        return (getTypeLinkedRate(0)*occupancy[0] + getTypeLinkedRate(1)*occupancy[1]);
+        if (typeCount > 2) {
+            return getMultiTypeOccupancyRate(node.getNr(), parentType, type, typeTime);
+        }
+        double occupancy = getFirstTypeOccupancy(parentType, type, typeTime, node.getNr());
+        return (getTypeLinkedRate(0)*occupancy + getTypeLinkedRate(1)*(1 - occupancy));
+    }
+
+    /**
+     * Returns the expected occupancy in the first type for the branch above this node.
+     * @param node the current node (child node of the branch)
+     * @return the expected occupancy proportion in type 0
+     */
+    @Override
+    public double getFirstTypeOccupancy(final Node node) {
+        if (node.isRoot()) {
+            return super.getFirstTypeOccupancy(node);
+        }
+        return getExpectedFirstTypeOccupancy(node);
+    }
+
+    /**
+     * Calculates the type-linked rates for a batch of branches from the expected occupancy in each type.
+     * @param count        the number of branches
+     * @param parentTypes  the type of the parent of each branch, or ROOT_BRANCH for the root
+     * @param types        the type of the child of each branch
+     * @param typeTimes    the length of each branch multiplied by the type switch clock rate
+     * @param rates        the array to fill with the rate of each branch
+     */
+    @Override
+    protected void computeBranchRates(final int count, final int[] parentTypes, final int[] types, final double[] typeTimes, final double[] rates) {
+        if (typeCount > 2) {
+            // branches are indexed by node number, so the per-branch cache can be used
+            for (int i = 0; i < count; i++) {
+                rates[i] = parentTypes[i] == ROOT_BRANCH ? 1.0 : getMultiTypeOccupancyRate(i, parentTypes[i], types[i], typeTimes[i]);
+            }
+            return;
+        }
+        qMatrix = svs.getCurrentRateMatrix();
+        final double alpha = qMatrix[0][1];
+        final double beta = qMatrix[1][0];
+        final double rateA = getTypeLinkedRate(0);
+        final double rateB = getTypeLinkedRate(1);
+        for (int i = 0; i < count; i++) {
+            if (parentTypes[i] == ROOT_BRANCH) {
+                rates[i] = 1.0;
+            } else {
+                double occupancy = lookupFirstTypeOccupancy(alpha, beta, parentTypes[i], types[i], typeTimes[i]);
+                rates[i] = rateA*occupancy + rateB*(1 - occupancy);
+            }
+        }
     }
 
 }
@@ -54,4 +54,20 @@ public class TycheInstantSwitchClockModel extends AbstractTycheTypeLinkedClockMo
         return getTypeLinkedRate(type);
 
     }
+
+    /**
+     * Calculates the type-linked rates for a batch of branches, where each branch is assumed to be entirely in the child state.
+     * @param count        the number of branches
+     * @param parentTypes  the type of the parent of each branch, or ROOT_BRANCH for the root
+     * @param types        the type of the child of each branch
+     * @param typeTimes    the length of each branch multiplied by the type switch clock rate (unused)
+     * @param rates        the array to fill with the rate of each branch
+     */
+    @Override
+    protected void computeBranchRates(final int count, final int[] parentTypes, final int[] types, final double[] typeTimes, final double[] rates) {
+        final double[] typeRates = getTypeLinkedRates();
+        for (int i = 0; i < count; i++) {
+            rates[i] = parentTypes[i] == ROOT_BRANCH ? 1.0 : typeRates[types[i]];
+        }
+    }
 }
@@ -40,8 +40,55 @@ public class TycheMixedSwitchClockModel extends AbstractTycheTypeLinkedClockMode
             return getTypeLinkedRate(type);
         }
         double typeTime = node.getLength() * typeSwitchClockRate.getArrayValue();
-        double[] occupancy = getOccupancy(parentType, type, typeTime, node.getNr());
-        return (getTypeLinkedRate(0)*occupancy[0] + getTypeLinkedRate(1)*occupancy[1]);
+        if (typeCount > 2) {
+            return getMultiTypeOccupancyRate(node.getNr(), parentType, type, typeTime);
+        }
+        double occupancy = getFirstTypeOccupancy(parentType, type, typeTime, node.getNr());
+        return (getTypeLinkedRate(0)*occupancy + getTypeLinkedRate(1)*(1 - occupancy));
+    }
+
+    /**
+     * Returns the expected occupancy in the first type for the branch above this node if its parent and child types differ, otherwise the occupancy of the shared type.
+     * @param node the current node (child node of the branch)
+     * @return the occupancy proportion in type 0
+     */
+    @Override
+    public double getFirstTypeOccupancy(final Node node) {
+        if (node.isRoot() || nodeTypes.getArrayValue(node.getNr()) == nodeTypes.getArrayValue(node.getParent().getNr())) {
+            return super.getFirstTypeOccupancy(node);
+        }
+        return getExpectedFirstTypeOccupancy(node);
+    }
+
+    /**
+     * Calculates the type-linked rates for a batch of branches, using the expected occupancy only for branches whose parent and child types differ.
+     * @param count        the number of branches
+     * @param parentTypes  the type of the parent of each branch, or ROOT_BRANCH for the root
+     * @param types        the type of the child of each branch
+     * @param typeTimes    the length of each branch multiplied by the type switch clock rate
+     * @param rates        the array to fill with the rate of each branch
+     */
+    @Override
+    protected void computeBranchRates(final int count, final int[] parentTypes, final int[] types, final double[] typeTimes, final double[] rates) {
+        qMatrix = svs.getCurrentRateMatrix();
+        final double alpha = qMatrix[0][1];
+        final double beta = qMatrix[1][0];
+        final double[] typeRates = getTypeLinkedRates();
+        for (int i = 0; i < count; i++) {
+            final int parentType = parentTypes[i];
+            final int type = types[i];
+            if (parentType == ROOT_BRANCH) {
+                rates[i] = 1.0;
+            } else if (parentType == type) {
+                rates[i] = typeRates[type];
+            } else if (typeCount > 2) {
+                // branches are indexed by node number, so the per-branch cache can be used
+                rates[i] = getMultiTypeOccupancyRate(i, parentType, type, typeTimes[i]);
+            } else {
+                double occupancy = lookupFirstTypeOccupancy(alpha, beta, parentType, type, typeTimes[i]);
+                rates[i] = typeRates[0]*occupancy + typeRates[1]*(1 - occupancy);
+            }
+        }
     }
 
 }
@@ -0,0 +1,167 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.branchratemodel;
+
+import beast.base.core.Citation;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Loggable;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.TreeInterface;
+import beast.base.inference.CalculationNode;
+
+import java.io.PrintStream;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Reports the rate or expected occupancy of each branch of a type-linked clock model, calculated only when requested
+ */
+@Description("Reports the rate or expected occupancy in the first type of each branch of a type-linked clock model. " +
+        "Values are calculated from the clock model only when a logger or other consumer asks for them, so they can be logged or used as tree metadata without slowing down the likelihood.")
+@Citation(value="Fielding, J. J., Wu, S., Melton, H. J., Fisk, N., du Plessis, L., & Hoehn, K. B. (2025).\n" +
+        "TyCHE enables time-resolved lineage tracing of heterogeneously-evolving populations.\n" +
+        "bioRxiv https://doi.org/10.1101/2025.10.21.683591 (2025) doi:10.1101/2025.10.21.683591.",
+        year = 2025, firstAuthorSurname = "Fielding", DOI="10.1101/2025.10.21.683591")
+public class TypeLinkedBranchStatistic extends CalculationNode implements Function, Loggable {
+
+    /**
+     * input object for the type-linked clock model to report on
+     */
+    public Input<AbstractTycheTypeLinkedClockModel> clockModelInput = new Input<>("branchRateModel", "the type-linked clock model to report on", Input.Validate.REQUIRED);
+
+    /**
+     * input object for the tree the clock model is applied to
+     */
+    public Input<TreeInterface> treeInput = new Input<>("tree", "the tree the clock model is applied to", Input.Validate.REQUIRED);
+
+    /**
+     * input object for whether to report expected occupancy instead of branch rates
+     */
+    public Input<Boolean> expectedOccupancyInput = new Input<>("expectedOccupancy", "whether to report the expected occupancy in the first type instead of the rate of each branch", false);
+
+    /**
+     * the type-linked clock model to report on
+     */
+    protected AbstractTycheTypeLinkedClockModel clockModel;
+
+    /**
+     * the tree the clock model is applied to
+     */
+    protected TreeInterface tree;
+
+    /**
+     * whether to report expected occupancy instead of branch rates
+     */
+    protected boolean reportOccupancy;
+
+    /**
+     * the reported value for each branch, indexed by node number
+     */
+    protected double[] values;
+
+    /**
+     * whether values are up to date with the current state
+     */
+    protected boolean valuesKnown = false;
+
+    /**
+     * Initialize and validate inputs
+     */
+    @Override
+    public void initAndValidate() {
+        clockModel = clockModelInput.get();
+        tree = treeInput.get();
+        reportOccupancy = expectedOccupancyInput.get();
+        values = new double[tree.getNodeCount()];
+    }
+
+    /**
+     * Calculate the reported value for each branch if the state has changed since they were last calculated
+     */
+    protected void update() {
+        if (valuesKnown) {
+            return;
+        }
+        Node[] nodes = tree.getNodesAsArray();
+        if (values.length != nodes.length) {
+            values = new double[nodes.length];
+        }
+        for (Node node : nodes) {
+            values[node.getNr()] = reportOccupancy ? clockModel.getFirstTypeOccupancy(node) : clockModel.getRateForBranch(node);
+        }
+        valuesKnown = true;
+    }
+
+    @Override
+    public int getDimension() {
+        return tree.getNodeCount();
+    }
+
+    @Override
+    public double getArrayValue() {
+        return getArrayValue(0);
+    }
+
+    @Override
+    public double getArrayValue(int dim) {
+        update();
+        return values[dim];
+    }
+
+    @Override
+    protected boolean requiresRecalculation() {
+        valuesKnown = false;
+        return true;
+    }
+
+    @Override
+    public void restore() {
+        valuesKnown = false;
+        super.restore();
+    }
+
+    @Override
+    public void init(PrintStream out) {
+        for (int i = 0; i < getDimension(); i++) {
+            out.print(getID() + "." + (i + 1) + "\t");
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream out) {
+        // values may be stale if this statistic is only connected to the state through the logger
+        valuesKnown = false;
+        update();
+        for (int i = 0; i < getDimension(); i++) {
+            out.print(values[i] + "\t");
+        }
+    }
+
+    @Override
+    public void close(PrintStream out) {
+        // nothing to do
+    }
+}
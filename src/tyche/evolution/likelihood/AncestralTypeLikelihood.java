@@ -21,16 +21,18 @@
 package tyche.evolution.likelihood;
 
 
-import beagle.Beagle;
 import beast.base.core.Citation;
 import beast.base.core.Description;
 import beast.base.core.Input;
 import beast.base.core.Input.Validate;
 import beast.base.evolution.alignment.Alignment;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.branchratemodel.StrictClockModel;
 import beast.base.evolution.datatype.DataType;
 import beast.base.evolution.datatype.UserDataType;
-import beast.base.evolution.likelihood.TreeLikelihood;
+import beast.base.evolution.likelihood.GenericTreeLikelihood;
 import beast.base.evolution.sitemodel.SiteModel;
+import beast.base.evolution.substitutionmodel.Frequencies;
 import beast.base.evolution.substitutionmodel.GeneralSubstitutionModel;
 import beast.base.evolution.substitutionmodel.SubstitutionModel;
 import beast.base.evolution.tree.Node;
@@ -39,7 +41,10 @@ import beast.base.evolution.tree.TreeInterface;
 import beastclassic.evolution.tree.TreeTrait;
 import beastclassic.evolution.tree.TreeTraitProvider;
 import beast.base.inference.parameter.IntegerParameter;
+import tyche.evolution.branchratemodel.AbstractTycheTypeLinkedClockModel;
 import tyche.evolution.tree.GermlineRootTree;
+import tyche.evolution.tree.TreeTraversal;
+import tyche.inference.parameter.NodeTypeParameter;
 
 import java.util.Arrays;
 import java.util.stream.Collectors;
@@ -51,13 +56,15 @@ import java.util.stream.Collectors;
 
 /**
  * AncestralTypeLikelihood to assess likelihood of internal and ambiguous node types.
+ * Only the per-branch transition probability matrices and the tip states are kept, so no partials or likelihood core
+ * are allocated.
  */
 @Description("AncestralTypeLikelihood to assess likelihood of internal and ambiguous node types.")
 @Citation(value="Fielding, J. J., Wu, S., Melton, H. J., Fisk, N., du Plessis, L., & Hoehn, K. B. (2025).\n" +
         "TyCHE enables time-resolved lineage tracing of heterogeneously-evolving populations.\n" +
         "bioRxiv https://doi.org/10.1101/2025.10.21.683591 (2025) doi:10.1101/2025.10.21.683591.",
         year = 2025, firstAuthorSurname = "Fielding", DOI="10.1101/2025.10.21.683591")
-public class AncestralTypeLikelihood extends TreeLikelihood implements TreeTraitProvider {
+public class AncestralTypeLikelihood extends GenericTreeLikelihood implements TreeTraitProvider {
     public static final String STATES_KEY = "states";
 
     /**
@@ -67,8 +74,19 @@ public class AncestralTypeLikelihood extends TreeLikelihood implements TreeTrait
 
     /**
      * input object, prefer java, even if beagle is available, default: true
+     * Kept for compatibility with existing XML, the type likelihood is always calculated in java.
      */
-    public Input<Boolean> useJava = new Input<Boolean>("useJava", "prefer java, even if beagle is available", true);
+    public Input<Boolean> useJava = new Input<Boolean>("useJava", "prefer java, even if beagle is available (ignored, the type likelihood is always calculated in java)", true);
+
+    /**
+     * input object, flag to indicate that sites containing ambiguous states should be handled instead of ignored
+     */
+    public Input<Boolean> m_useAmbiguities = new Input<>("useAmbiguities", "flag to indicate that sites containing ambiguous states should be handled instead of ignored (the default)", false);
+
+    /**
+     * input object, the root frequencies, if not provided the frequencies of the substitution model are used
+     */
+    public Input<Frequencies> rootFrequenciesInput = new Input<>("rootFrequencies", "prior state frequencies at root, optional", Input.Validate.OPTIONAL);
 
 
     /**
@@ -81,10 +99,74 @@ public class AncestralTypeLikelihood extends TreeLikelihood implements TreeTrait
     double[][] qMatrix;
     int patternCount;
     int stateCount;
-    int[][] tipStates; // used to store tip states
+    int[] tipStates; // used to store tip states
+
+    protected SiteModel.Base m_siteModel;
+    protected SubstitutionModel.Base substitutionModel;
+    protected BranchRateModel.Base branchRateModel;
+
+    /**
+     * flag to indicate the site model or data changed, so that every transition probability matrix needs updating
+     */
+    protected int hasDirt;
+
+    /**
+     * the transition probability matrix of each branch, double buffered so that a rejected proposal only needs to
+     * swap back the buffer index of the branches it changed
+     */
+    protected double[][] transitionMatrices;
+    protected int[] matrixIndex;
+    protected int matrixSize;
+
+    /**
+     * the branch length (in substitutions) each transition probability matrix was calculated for, in the same
+     * buffer as the matrix
+     */
+    protected double[][] branchLengths;
+
+    /**
+     * the store each node's matrix and log probability buffer was last swapped in, so that each is only swapped
+     * once per proposal, and the nodes swapped since the last store, so that restore only has to swap those back
+     */
+    protected long[] matrixStamps;
+    protected long[] logPStamps;
+    protected long storeStamp = 1;
+    protected int[] changedNodes;
+    protected int changedNodeCount = 0;
+
+    /**
+     * the update each node was last recalculated in, so that a node that is reached more than once is only
+     * recalculated once, and the change in the joint log likelihood made by the update
+     */
+    protected long[] updateStamps;
+    protected long updateStamp = 0;
+    protected double updateDelta;
+    protected boolean updateDeltaKnown;
+
+    /**
+     * scratch array for calculating transition probabilities
+     */
+    protected double[] probabilities;
+
+    /**
+     * the rate of every branch, filled in one pass by a type-linked clock model when every branch is recalculated,
+     * and only read while branchRatesKnown is true
+     */
+    protected double[] branchRates;
+    protected boolean branchRatesKnown = false;
 
     protected boolean isGRT = false;
 
+    /**
+     * the tree as a GermlineRootTree, used to identify the germline node and for its cached traversals
+     */
+    protected GermlineRootTree germlineRootTree;
+
+    /**
+     * traversal used when the tree does not cache its own
+     */
+    protected TreeTraversal traversal = new TreeTraversal();
+
     /**
      * Initialize the model and validate inputs
      */
@@ -94,26 +176,24 @@ public class AncestralTypeLikelihood extends TreeLikelihood implements TreeTrait
             return;
         }
 
-        // ensure that super class initiates with java only if useJava is true
-        String sJavaOnly = null;
-        if (useJava.get()) {
-            sJavaOnly = System.getProperty("java.only");
-            System.setProperty("java.only", "" + true);
+        if (!(siteModelInput.get() instanceof SiteModel.Base)) {
+            throw new IllegalArgumentException ("siteModel input should be of type SiteModel.Base");
         }
-        super.initAndValidate();
-        // reset system property
-        if (useJava.get()) {
-            if (sJavaOnly != null) {
-                System.setProperty("java.only", sJavaOnly);
-            } else {
-                System.clearProperty("java.only");
-            }
+        m_siteModel = (SiteModel.Base) siteModelInput.get();
+        m_siteModel.setDataType(dataInput.get().getDataType());
+        substitutionModel = (SubstitutionModel.Base) m_siteModel.substModelInput.get();
+
+        if (branchRateModelInput.get() != null) {
+            branchRateModel = branchRateModelInput.get();
+        } else {
+            branchRateModel = new StrictClockModel();
         }
 
         tag = tagInput.get();
         TreeInterface treeModel = treeInput.get();
-        if (treeModel instanceof GermlineRootTree && ((GermlineRootTree) treeModel).getGermlineNum() > 0) {
-            isGRT = true;
+        if (treeModel instanceof GermlineRootTree) {
+            germlineRootTree = (GermlineRootTree) treeModel;
+            isGRT = germlineRootTree.getGermlineNum() > 0;
         }
         patternCount = dataInput.get().getPatternCount();
 
@@ -126,18 +206,25 @@ public class AncestralTypeLikelihood extends TreeLikelihood implements TreeTrait
 
         nodeTypes = nodeTypesInput.get();
 
-        if (beagle != null) {
-            if (!(siteModelInput.get() instanceof SiteModel.Base)) {
-                throw new IllegalArgumentException ("siteModel input should be of type SiteModel.Base");
-            }
-            m_siteModel = (SiteModel.Base) siteModelInput.get();
-            substitutionModel = (SubstitutionModel.Base) m_siteModel.substModelInput.get();
-            int nStateCount = dataInput.get().getMaxStateCount();
-            probabilities = new double[(nStateCount + 1) * (nStateCount + 1)];
-        }
+        int nodeCount = treeModel.getNodeCount();
+        matrixSize = stateCount * stateCount;
+        probabilities = new double[matrixSize];
+        transitionMatrices = new double[2][nodeCount * matrixSize];
+        matrixIndex = new int[nodeCount];
+        branchLengths = new double[2][nodeCount];
+        matrixStamps = new long[nodeCount];
+        logPStamps = new long[nodeCount];
+        changedNodes = new int[nodeCount];
+        updateStamps = new long[nodeCount];
+        branchRates = new double[nodeCount];
+        hasDirt = Tree.IS_FILTHY;
 
         int tipCount = treeModel.getLeafNodeCount();
-        tipStates = new int[tipCount][];
+        tipStates = new int[tipCount];
+
+        nodeLogProbabilities = new double[2][nodeCount];
+        logPIndex = new int[nodeCount];
+        needsFullRecalculation = true;
 
         // get the state for each leaf
         Alignment data = dataInput.get();
@@ -153,23 +240,21 @@ public class AncestralTypeLikelihood extends TreeLikelihood implements TreeTrait
                     throw new RuntimeException("Could not find sequence " + taxon + " in the alignment");
                 }
             }
-            tipStates[node.getNr()] = new int[patternCount];
+            int code = data.getPattern(taxonIndex, 0);
             if (!m_useAmbiguities.get()) {
-                likelihoodCore.getNodeStates(node.getNr(), tipStates[node.getNr()]);
+                tipStates[node.getNr()] = code;
                 // set the nodeTypes parameter to the tipStates data for all known (not ambiguous) leaves
-                if (!dataType.isAmbiguousCode(tipStates[node.getNr()][0])) {
-                    nodeTypes.setValue(node.getNr(), tipStates[node.getNr()][0]);
+                if (!dataType.isAmbiguousCode(code)) {
+                    nodeTypes.setValue(node.getNr(), code);
                 }
             } else {
-                int [] states = tipStates[node.getNr()];
-                int code = data.getPattern(taxonIndex, 0);
                 int[] statesForCode = dataType.getStatesForCode(code);
                 if (statesForCode.length == 1) {
-                    states[0] = statesForCode[0];
+                    tipStates[node.getNr()] = statesForCode[0];
                 } else {
-                    states[0] = code; // Causes ambiguous states to be ignored.
+                    tipStates[node.getNr()] = code; // Causes ambiguous states to be ignored.
                 }
-                nodeTypes.setValue(node.getNr(), states[0]);
+                nodeTypes.setValue(node.getNr(), tipStates[node.getNr()]);
             }
         }
 
@@ -212,9 +297,25 @@ public class AncestralTypeLikelihood extends TreeLikelihood implements TreeTrait
     @Override
     protected boolean requiresRecalculation() {
 
-        boolean isDirty = super.requiresRecalculation();
+        hasDirt = Tree.IS_CLEAN;
+        if (dataInput.get().isDirtyCalculation()) {
+            hasDirt = Tree.IS_FILTHY;
+        } else if (m_siteModel.isDirtyCalculation()) {
+            hasDirt = Tree.IS_DIRTY;
+        }
+
+        boolean isDirty = hasDirt != Tree.IS_CLEAN || treeInput.get().somethingIsDirty();
+
+        // anything that can change every branch (site model, substitution model, clock, root frequencies) means the
+        // cached per-node terms cannot be patched, so fall back to a full traversal
+        if (hasDirt != Tree.IS_CLEAN
+                || branchRateModel.isDirtyCalculation()
+                || (rootFrequenciesInput.get() != null && rootFrequenciesInput.get().isDirtyCalculation())) {
+            needsFullRecalculation = true;
+            isDirty = true;
+        }
 
-        isDirty |= nodeTypes.isDirty(nodeTypes.getLastDirty());
+        isDirty |= nodeTypes.somethingIsDirty();
 
         return isDirty;
 
@@ -222,49 +323,228 @@ public class AncestralTypeLikelihood extends TreeLikelihood implements TreeTrait
 
     /**
      * Calculate the likelihood of the ancestral type reconstruction.
+     * If only some node types or node heights have changed since the last calculation, only the terms of those nodes
+     * and their children are recalculated.
      * @return the likelihood in log space
      */
     @Override
     public double calculateLogP() {
-        jointLogLikelihood = 0;
         TreeInterface tree = treeInput.get();
-        traverseTypeTree(tree.getRoot(), -1);
+        if (needsFullRecalculation) {
+            jointLogLikelihood = 0;
+            branchRatesKnown = getAllBranchRates(tree);
+            traverseTypeTree(tree.getRoot(), -1);
+            branchRatesKnown = false;
+            needsFullRecalculation = false;
+        } else {
+            updateDirtyNodes(tree);
+        }
         logP = jointLogLikelihood;
         return logP;
     }
 
     /**
-     * Helper to calculate the likelihood of the ancestral type reconstruction by recursively traversing the tree.
+     * Helper to fill branchRates with the rates of all branches in one pass, if the clock model is a type-linked clock
+     * model that can calculate them together
+     * @param tree the tree the types are associated with
+     * @return true if branchRates was filled, otherwise false
+     */
+    protected boolean getAllBranchRates(TreeInterface tree) {
+        if (!(branchRateModel instanceof AbstractTycheTypeLinkedClockModel)) {
+            return false;
+        }
+        final AbstractTycheTypeLinkedClockModel clockModel = (AbstractTycheTypeLinkedClockModel) branchRateModel;
+        if (branchRates.length != tree.getNodeCount()) {
+            branchRates = new double[tree.getNodeCount()];
+        }
+        if (germlineRootTree != null) {
+            clockModel.getRatesForBranches(germlineRootTree, branchRates);
+        } else {
+            clockModel.getRatesForBranches(tree.getNodesAsArray(), branchRates);
+        }
+        return true;
+    }
+
+    /**
+     * Helper to update the likelihood of the ancestral type reconstruction by recalculating only the terms of nodes
+     * whose type, parent's type, or branch has changed.
+     * Updates this.jointLogLikelihood
+     * @param tree the tree the types are associated with
+     */
+    protected void updateDirtyNodes(TreeInterface tree) {
+        final boolean treeIsDirty = tree.somethingIsDirty();
+        final boolean typesAreDirty = nodeTypes.somethingIsDirty();
+        if (!treeIsDirty && !typesAreDirty) {
+            return;
+        }
+
+        updateStamp++;
+        updateDelta = 0;
+        updateDeltaKnown = true;
+        if (!updateChangedNodes(tree, treeIsDirty, typesAreDirty)) {
+            // the changed nodes are not listed, so look for them
+            final int nodeCount = tree.getNodeCount();
+            for (int nodeNum = 0; nodeNum < nodeCount; nodeNum++) {
+                final Node node = tree.getNode(nodeNum);
+                boolean update = treeIsDirty && node.isDirty() != Tree.IS_CLEAN;
+                if (!update && typesAreDirty) {
+                    update = nodeTypes.isDirty(nodeNum) || (!node.isRoot() && nodeTypes.isDirty(node.getParent().getNr()));
+                }
+                if (update) {
+                    updateNode(node);
+                }
+            }
+        }
+
+        if (updateDeltaKnown) {
+            jointLogLikelihood += updateDelta;
+        } else {
+            jointLogLikelihood = 0;
+            final int nodeCount = tree.getNodeCount();
+            for (int nodeNum = 0; nodeNum < nodeCount; nodeNum++) {
+                jointLogLikelihood += nodeLogProbabilities[logPIndex[nodeNum]][nodeNum];
+            }
+        }
+    }
+
+    /**
+     * Helper to recalculate the terms of the nodes listed as changed by the tree and the node types parameter, and of
+     * their children, without scanning the whole tree.
+     * @param tree the tree the types are associated with
+     * @param treeIsDirty whether the tree has changed
+     * @param typesAreDirty whether the node types have changed
+     * @return true if the changed nodes were listed and have been updated, false if they have to be looked for
+     */
+    protected boolean updateChangedNodes(TreeInterface tree, boolean treeIsDirty, boolean typesAreDirty) {
+        if (treeIsDirty && (germlineRootTree == null || !germlineRootTree.knowsChangedNodes())) {
+            return false;
+        }
+        if (typesAreDirty && (!(nodeTypes instanceof NodeTypeParameter) || ((NodeTypeParameter) nodeTypes).isAllDirty())) {
+            return false;
+        }
+        if (treeIsDirty) {
+            for (int k = 0; k < germlineRootTree.getChangedNodeCount(); k++) {
+                updateNodeAndChildren(germlineRootTree.getChangedNode(k));
+            }
+        }
+        if (typesAreDirty) {
+            final NodeTypeParameter types = (NodeTypeParameter) nodeTypes;
+            for (int k = 0; k < types.getDirtyCount(); k++) {
+                updateNodeAndChildren(tree.getNode(types.getDirtyIndex(k)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Helper to recalculate the terms of a node and its children, as the children's terms depend on the node's type
+     * and height
+     * @param node the changed node
+     */
+    private void updateNodeAndChildren(Node node) {
+        updateNode(node);
+        for (int i = 0; i < node.getChildCount(); i++) {
+            updateNode(node.getChild(i));
+        }
+    }
+
+    /**
+     * Helper to recalculate the term of a node, if it has not already been recalculated in this update.
+     * Updates this.updateDelta
+     * @param node the node to recalculate
+     */
+    private void updateNode(Node node) {
+        final int nodeNum = node.getNr();
+        if (updateStamps[nodeNum] == updateStamp) {
+            return;
+        }
+        updateStamps[nodeNum] = updateStamp;
+        final double oldLogP = nodeLogProbabilities[logPIndex[nodeNum]][nodeNum];
+        final int parentState = node.isRoot() ? -1 : nodeTypes.getValue(node.getParent().getNr());
+        final double newLogP = calculateNodeLogP(node, parentState);
+        if (Double.isInfinite(oldLogP) || Double.isInfinite(newLogP)) {
+            // can't take the difference of infinite terms, so sum the cached terms instead
+            updateDeltaKnown = false;
+        } else {
+            updateDelta += newLogP - oldLogP;
+        }
+    }
+
+    /**
+     * Helper to calculate the likelihood of the ancestral type reconstruction by traversing the subtree below a node
+     * in pre-order, without recursion.
      * Updates this.jointLogLikelihood
      * @param node the current node
      * @param parentState the state (type) of the parent of the current node
      */
     public void traverseTypeTree(Node node, int parentState) {
+        final Node[] nodes;
+        int start;
+        final int count;
+        if (germlineRootTree != null && germlineRootTree.getNode(node.getNr()) == node) {
+            // the subtree of a node is a contiguous range of the tree's cached pre-order
+            nodes = germlineRootTree.getPreOrder();
+            start = germlineRootTree.getPreOrderPosition(node.getNr());
+            count = germlineRootTree.getSubtreeSize(node.getNr());
+        } else {
+            count = traversal.preOrder(node);
+            nodes = traversal.getNodes();
+            start = 0;
+        }
+
+        jointLogLikelihood += calculateNodeLogP(node, parentState);
+        for (int i = start + 1; i < start + count; i++) {
+            final Node child = nodes[i];
+            jointLogLikelihood += calculateNodeLogP(child, nodeTypes.getValue(child.getParent().getNr()));
+        }
+    }
+
+    /**
+     * Helper to calculate the log conditional probability of a single node's type given its parent's type, updating
+     * the transition probability matrix for its branch if needed.
+     * Updates this.nodeLogProbabilities for this node.
+     * @param node the current node
+     * @param parentState the state (type) of the parent of the current node
+     * @return the log conditional probability of this node's type
+     */
+    protected double calculateNodeLogP(Node node, int parentState) {
         int nodeNum = node.getNr();
         int update = (node.isDirty() | hasDirt);
 
-        if (isGRT && (node.getID() + "").toUpperCase().contains("germline".toUpperCase()) && node.getParent() != null && node.getParent().isRoot()) {
-            return;
+        if (logPStamps[nodeNum] != storeStamp) {
+            // write into the other buffer so the stored term is kept for restore
+            logPStamps[nodeNum] = storeStamp;
+            logPIndex[nodeNum] = 1 - logPIndex[nodeNum];
+            changedNodes[changedNodeCount++] = nodeNum;
+        }
+
+        if (isGRT && germlineRootTree.isGermlineRootChild(node)) {
+            nodeLogProbabilities[logPIndex[nodeNum]][nodeNum] = 0;
+            return 0;
         }
 
         double conditionalProbability;
         final int thisState = nodeTypes.getValue(nodeNum);
         int parentIndex = parentState * stateCount; // not used if root
 
-        final double branchRate = branchRateModel.getRateForBranch(node);
+        final double branchRate = branchRatesKnown ? branchRates[nodeNum] : branchRateModel.getRateForBranch(node);
         final double branchTime = node.getLength() * branchRate;
 
         // First update the transition probability matrix(ices) for this branch if needed.
-        if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != m_branchLengths[nodeNum])) {
-            m_branchLengths[nodeNum] = branchTime;
-            final Node parent = node.getParent();
-            likelihoodCore.setNodeMatrixForUpdate(nodeNum);
-            for (int i = 0; i < m_siteModel.getCategoryCount(); i++) {
-                final double jointBranchRate = m_siteModel.getRateForCategory(i, node) * branchRate;
-                substitutionModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
-                likelihoodCore.setNodeMatrix(nodeNum, i, probabilities);
+        if (!node.isRoot() && (update != Tree.IS_CLEAN || branchTime != branchLengths[matrixIndex[nodeNum]][nodeNum])) {
+            if (matrixStamps[nodeNum] != storeStamp) {
+                // write into the other buffer so the stored matrix is kept for restore
+                matrixStamps[nodeNum] = storeStamp;
+                matrixIndex[nodeNum] = 1 - matrixIndex[nodeNum];
             }
+            branchLengths[matrixIndex[nodeNum]][nodeNum] = branchTime;
+            final Node parent = node.getParent();
+            final double jointBranchRate = m_siteModel.getRateForCategory(0, node) * branchRate;
+            substitutionModel.getTransitionProbabilities(node, parent.getHeight(), node.getHeight(), jointBranchRate, probabilities);
+            System.arraycopy(probabilities, 0, transitionMatrices[matrixIndex[nodeNum]], nodeNum * matrixSize, matrixSize);
         }
+        final double[] matrix = transitionMatrices[matrixIndex[nodeNum]];
+        final int matrixOffset = nodeNum * matrixSize + parentIndex;
 
         if (!node.isLeaf()) {
             if (node.getParent() == null) {
@@ -278,65 +558,63 @@ public class AncestralTypeLikelihood extends TreeLikelihood implements TreeTrait
             } else {
                 // This is an internal node, but not the root
                 // use the probability from transition matrix, different from root
-                getTransitionMatrix(nodeNum, probabilities);
-                conditionalProbability = probabilities[parentIndex + thisState];
+                conditionalProbability = matrix[matrixOffset + thisState];
             }
-
-            // Traverse down the two child nodes
-            Node child1 = node.getChild(0);
-            traverseTypeTree(child1, thisState);
-
-            Node child2 = node.getChild(1);
-            traverseTypeTree(child2, thisState);
         } else {
             // This is an external leaf, so just use the probability from transition matrix
-            getTransitionMatrix(nodeNum, probabilities);
-
-            // theoretically should work without this line unless we operate on leaf states via the AlignmentFromTrait traitset
-            likelihoodCore.getNodeStates(nodeNum, tipStates[nodeNum]);
-
             // Check for ambiguity codes
-            if (dataType.isAmbiguousCode(tipStates[nodeNum][0])) {
-                boolean [] stateSet = dataType.getStateSet(tipStates[nodeNum][0]);
+            if (dataType.isAmbiguousCode(tipStates[nodeNum])) {
+                boolean [] stateSet = dataType.getStateSet(tipStates[nodeNum]);
                 // ensure that thiState is an allowed type of this ambiguous code
-                conditionalProbability = stateSet[thisState] ? probabilities[parentIndex + thisState] : 0;
+                conditionalProbability = stateSet[thisState] ? matrix[matrixOffset + thisState] : 0;
             } else {
-                conditionalProbability = probabilities[parentIndex + thisState];
+                conditionalProbability = matrix[matrixOffset + thisState];
             }
         }
-        jointLogLikelihood += Math.log(conditionalProbability); // update the jointLogLikelihood
+        final double nodeLogP = Math.log(conditionalProbability);
+        nodeLogProbabilities[logPIndex[nodeNum]][nodeNum] = nodeLogP;
+        return nodeLogP;
     }
 
     /**
      * Store the current values of fields that should be restored after a rejected proposal.
+     * The per-node buffers are swapped as nodes change, so only a new store has to be started here.
      */
     @Override
     public void store() {
         super.store();
         storedJointLogLikelihood = jointLogLikelihood;
+        storeStamp++;
+        changedNodeCount = 0;
     }
 
     /**
-     * Restore the stored values of fields that were saved before a proposal.
+     * Restore the stored values of fields that were saved before a proposal, by swapping back the buffers of the
+     * nodes that changed since the store.
      */
     @Override
     public void restore() {
         super.restore();
+        for (int k = 0; k < changedNodeCount; k++) {
+            final int nodeNum = changedNodes[k];
+            logPIndex[nodeNum] = 1 - logPIndex[nodeNum];
+            if (matrixStamps[nodeNum] == storeStamp) {
+                matrixIndex[nodeNum] = 1 - matrixIndex[nodeNum];
+            }
+        }
         jointLogLikelihood = storedJointLogLikelihood;
+        storeStamp++;
+        changedNodeCount = 0;
     }
 
     /**
-     * Helper method to get the transition matrix, wrapper for beagle/likelihoodCore calls
+     * Helper method to get the transition matrix of the branch above a node
      * @param nodeNum the number of the current node
      * @param probabilities the array to write transition matrix probabilities to
      */
 
     public void getTransitionMatrix(int nodeNum, double[] probabilities) {
-        if (beagle != null) {
-            beagle.getBeagle().getTransitionMatrix(beagle.getMatrixBufferHelper().getOffsetIndex(nodeNum), probabilities);
-        } else {
-            /*((AbstractLikelihoodCore)*/ likelihoodCore.getNodeMatrix(nodeNum, 0, probabilities);
-        }
+        System.arraycopy(transitionMatrices[matrixIndex[nodeNum]], nodeNum * matrixSize, probabilities, 0, matrixSize);
     }
 
     /**
@@ -397,4 +675,12 @@ public class AncestralTypeLikelihood extends TreeLikelihood implements TreeTrait
 
     private double jointLogLikelihood;
     private double storedJointLogLikelihood;
+
+    /**
+     * the log conditional probability of each node's type given its parent's type, so that only changed nodes need
+     * to be recalculated, double buffered like the transition probability matrices
+     */
+    private double[][] nodeLogProbabilities;
+    private int[] logPIndex;
+    private boolean needsFullRecalculation = true;
 }
\ No newline at end of file
@@ -51,7 +51,7 @@ public interface GRTCompatibleOperator {
         Node root = treeInput.get().getRoot();
         if (root instanceof GRTNode) {
             GRTNode rootGRT = (GRTNode) root;
-            boolean hasGermlineChild = (root.getLeft().getID() + root.getRight().getID()).toUpperCase().contains("germline".toUpperCase());
+            boolean hasGermlineChild = ((GRTNode) root.getLeft()).isGermline() || ((GRTNode) root.getRight()).isGermline();
             boolean hasGermline = rootGRT.hasGermline();
             if (hasGermlineChild && !hasGermline) {
                 System.out.println("Why is there no germline associated with this node??" + rootGRT.getNr() + " " + rootGRT.hasGermline() + (root.getLeft().getID() + " " + root.getRight().getID()));
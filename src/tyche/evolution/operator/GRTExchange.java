@@ -72,8 +72,8 @@ public class GRTExchange extends Exchange implements GRTCompatibleOperator {
 
         // TODO for future version for code simplicity: test if we need this
         //  don't even make the change if i or j is the germline child of root
-        if (((i.getID() + " ").toUpperCase().contains("germline".toUpperCase()) && i.getParent().isRoot())
-                || ((j.getID() + " ").toUpperCase().contains("germline".toUpperCase()) && j.getParent().isRoot())) return Double.NEGATIVE_INFINITY;
+        final GermlineRootTree germlineRootTree = (GermlineRootTree) tree;
+        if (germlineRootTree.isGermlineRootChild(i) || germlineRootTree.isGermlineRootChild(j)) return Double.NEGATIVE_INFINITY;
 
         if ((p != jP) && (i != jP) && (j != p)
                 && (j.getHeight() < p.getHeight())
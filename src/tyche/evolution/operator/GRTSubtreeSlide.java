@@ -37,6 +37,7 @@ import java.util.*;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -232,29 +233,43 @@ public class GRTSubtreeSlide extends SubtreeSlide implements GRTCompatibleOperat
     }
 
     private int intersectingEdges(Node node, double height, List<Node> directChildren) {
-        final Node parent = node.getParent();
-
-        if (parent == null) {
-            // can happen with non-standard non-mutable trees
-            return 0;
-        }
+        int count = 0;
+        int top = 0;
+        stack[top++] = node;
+        while (top > 0) {
+            final Node current = stack[--top];
+            stack[top] = null;
+            final Node parent = current.getParent();
+
+            if (parent == null) {
+                // can happen with non-standard non-mutable trees
+                continue;
+            }
 
-        if (parent.getHeight() < height) return 0;
+            if (parent.getHeight() < height) continue;
 
-        if (node.getHeight() < height) {
-            if (directChildren != null) directChildren.add(node);
-            return 1;
-        }
+            if (current.getHeight() < height) {
+                if (directChildren != null) directChildren.add(current);
+                count += 1;
+                continue;
+            }
 
-        if (node.isLeaf()) {
-            return 0;
-        } else {
-            final int count = intersectingEdges(node.getLeft(), height, directChildren) +
-                    intersectingEdges(node.getRight(), height, directChildren);
-            return count;
+            if (!current.isLeaf()) {
+                if (top + 2 > stack.length) {
+                    stack = Arrays.copyOf(stack, stack.length * 2);
+                }
+                // visit left before right, as in the recursive version
+                stack[top++] = current.getRight();
+                stack[top++] = current.getLeft();
+            }
         }
+        return count;
     }
 
+    /**
+     * explicit stack for intersectingEdges, so deep trees cannot overflow the call stack
+     */
+    private Node[] stack = new Node[16];
 
 
 }
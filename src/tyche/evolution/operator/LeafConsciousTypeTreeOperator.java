@@ -34,9 +34,9 @@ import beast.base.util.Randomizer;
 import tyche.evolution.tree.GRTNode;
 import tyche.evolution.tree.GermlineRootTree;
 import tyche.evolution.tree.MetadataTree;
+import tyche.evolution.tree.TipMetaDataColumn;
 
 import java.util.Arrays;
-import java.util.Objects;
 
 /**
  * @author Jessie Fielding
@@ -78,6 +78,16 @@ public class LeafConsciousTypeTreeOperator extends TreeOperator {
 
     protected boolean isGermlineRoot = false;
 
+    /**
+     * node numbers of the nodes this operator can propose a type for: the ambiguous tips, then the internal nodes.
+     * Tips are numbered before internal nodes and keep their numbers when the topology changes, so this only has to
+     * be rebuilt if the number of nodes changes.
+     */
+    protected int[] eligibleNodes = new int[0];
+    protected int eligibleNodeCount = 0;
+    protected int ambiguousTipCount = 0;
+    private int eligibleTreeNodeCount = -1;
+
     /**
      * empty constructor to facilitate construction by XML + initAndValidate
      */
@@ -101,12 +111,14 @@ public class LeafConsciousTypeTreeOperator extends TreeOperator {
      */
     protected void getAmbiguousTips(String traitName, MetadataTree metadataTree) {
 
-        for (Node node : metadataTree.getExternalNodes()) {
-            String taxon = node.getID();
-            int nodeNum = node.getNr();
-
-            Object currentTrait = metadataTree.getTipMetaData(traitName, taxon);
-            if (currentTrait != null && Objects.equals(currentTrait, "?")) {
+        TipMetaDataColumn column = metadataTree.getTipMetaDataColumn(traitName);
+        int ambiguousCode = column.getLevelCode("?");
+        if (ambiguousCode == TipMetaDataColumn.MISSING) {
+            return;
+        }
+        int tipCount = metadataTree.getLeafNodeCount();
+        for (int nodeNum = 0; nodeNum < tipCount; nodeNum++) {
+            if (column.getCode(nodeNum) == ambiguousCode) {
                 isAmbiguous[nodeNum] = true;
             }
         }
@@ -154,6 +166,65 @@ public class LeafConsciousTypeTreeOperator extends TreeOperator {
                 germlineNum = -1;
             }
         }
+        eligibleTreeNodeCount = -1;
+        updateEligibleNodes(tree);
+    }
+
+    /**
+     * Rebuild eligibleNodes if the number of nodes in the tree has changed since it was built
+     * @param tree the tree being operated on
+     */
+    protected void updateEligibleNodes(Tree tree) {
+        final int nodeCount = tree.getNodeCount();
+        if (nodeCount == eligibleTreeNodeCount) {
+            return;
+        }
+        final int leafCount = tree.getLeafNodeCount();
+        if (eligibleNodes.length < nodeCount) {
+            eligibleNodes = new int[nodeCount];
+        }
+        if (isAmbiguous.length < nodeCount) {
+            isAmbiguous = Arrays.copyOf(isAmbiguous, nodeCount);
+        }
+        int count = 0;
+        for (int nodeNum = 0; nodeNum < leafCount; nodeNum++) {
+            if (isAmbiguous[nodeNum]) {
+                eligibleNodes[count++] = nodeNum;
+            }
+        }
+        ambiguousTipCount = count;
+        for (int nodeNum = leafCount; nodeNum < nodeCount; nodeNum++) {
+            eligibleNodes[count++] = nodeNum;
+        }
+        eligibleNodeCount = count;
+        eligibleTreeNodeCount = nodeCount;
+    }
+
+    /**
+     * Pick an internal node or ambiguous tip uniformly at random
+     * @param tree the tree being operated on
+     * @return the node number, or -1 if there are no eligible nodes
+     */
+    protected int getRandomEligibleNode(Tree tree) {
+        updateEligibleNodes(tree);
+        if (eligibleNodeCount == 0) {
+            return -1;
+        }
+        return eligibleNodes[Randomizer.nextInt(eligibleNodeCount)];
+    }
+
+    /**
+     * Pick an internal node uniformly at random
+     * @param tree the tree being operated on
+     * @return the node number, or -1 if there are no internal nodes
+     */
+    protected int getRandomInternalNode(Tree tree) {
+        updateEligibleNodes(tree);
+        final int internalCount = eligibleNodeCount - ambiguousTipCount;
+        if (internalCount == 0) {
+            return -1;
+        }
+        return eligibleNodes[ambiguousTipCount + Randomizer.nextInt(internalCount)];
     }
 
     protected void setNodeType(int nodeNum, int newValue) {
@@ -180,18 +251,12 @@ public class LeafConsciousTypeTreeOperator extends TreeOperator {
     public double proposal() {
         final Tree tree = (Tree) InputUtil.get(treeInput, this);
 
-        // randomly select internal node
-        final int nodeCount = tree.getNodeCount();
-
         // Abort if no non-root internal nodes
         if (tree.getInternalNodeCount() == 1)
             return Double.NEGATIVE_INFINITY;
 
-        Node node;
-        do {
-            final int nodeNr = Randomizer.nextInt(nodeCount);
-            node = tree.getNode(nodeNr);
-        } while ((node.isLeaf() && !isAmbiguous[node.getNr()]));
+        // randomly select internal node or ambiguous tip
+        final Node node = tree.getNode(getRandomEligibleNode(tree));
         int newValue = Randomizer.nextInt(upperInt - lowerInt + 1) + lowerInt; // from 0 to n-1, n must > 0,
         setNodeType(node.getNr(), newValue);
 
@@ -27,9 +27,7 @@ import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.inference.util.InputUtil;
 import beast.base.util.Randomizer;
-
-import java.util.HashMap;
-import java.util.Map;
+import tyche.evolution.tree.TreeTraversal;
 
 /**
  * @author Jessie Fielding
@@ -56,10 +54,7 @@ public abstract class MultiNodeTypeSwitchOperator extends LeafConsciousTypeTreeO
 
     protected int homogenousValue;
 
-    protected enum States {
-        CURRENT,
-        PROPOSAL
-    }
+    protected TreeTraversal traversal = new TreeTraversal();
 
     protected enum ProposalMode {
         HETEROGENOUS,
@@ -78,8 +73,15 @@ public abstract class MultiNodeTypeSwitchOperator extends LeafConsciousTypeTreeO
         BOTH
     }
 
-    protected Map<States, Integer> currentOriginTypes;
-    protected Map<States, Boolean> isHomogenous;
+    /**
+     * the type of the first node changed by this proposal, in the current state and in the proposal, and whether every
+     * node changed so far has that type, for the Hastings ratio of half-homogenous proposals
+     */
+    protected boolean hasOriginType;
+    protected int currentOriginType;
+    protected int proposalOriginType;
+    protected boolean currentIsHomogenous;
+    protected boolean proposalIsHomogenous;
 
 
     /**
@@ -110,7 +112,6 @@ public abstract class MultiNodeTypeSwitchOperator extends LeafConsciousTypeTreeO
         setGenerationsLimit();
         switch (typeSwitchMode) {
             case HALF_HOMOGENOUS:
-                isHomogenous = new HashMap<>();
                 break;
             case RANDOM:
                 currentProposalType = ProposalMode.HETEROGENOUS;
@@ -132,18 +133,12 @@ public abstract class MultiNodeTypeSwitchOperator extends LeafConsciousTypeTreeO
     public double proposal() {
         final Tree tree = (Tree) InputUtil.get(treeInput, this);
 
-        // randomly select internal node
-        final int nodeCount = tree.getNodeCount();
-
         // Abort if no non-root internal nodes
         if (tree.getInternalNodeCount() == 1)
             return Double.NEGATIVE_INFINITY;
 
-        Node node;
-        do {
-            final int nodeNr = Randomizer.nextInt(nodeCount);
-            node = tree.getNode(nodeNr);
-        } while (node.isLeaf()); // operator shouldn't pick a tree section that starts at the leaves
+        // randomly select internal node, as the operator shouldn't pick a tree section that starts at the leaves
+        final Node node = tree.getNode(getRandomInternalNode(tree));
 
         double logHastingsRatio = setNodes(node);
 
@@ -172,13 +167,12 @@ public abstract class MultiNodeTypeSwitchOperator extends LeafConsciousTypeTreeO
                 currentProposalType = (makeHomogenous) ? ProposalMode.HOMOGENOUS : ProposalMode.HETEROGENOUS;
                 homogenousValue = Randomizer.nextInt(upperInt - lowerInt + 1) + lowerInt; // from 0 to n-1, n must > 0,
 
-                // make the isHomogenous map start at true until we find a difference
-                for (States state : States.values()) {
-                    isHomogenous.put(state, true);
-                }
+                // current and proposal start as homogenous until we find a difference
+                currentIsHomogenous = true;
+                proposalIsHomogenous = true;
 
-                // make the map for this origin node's type in current and in the proposal
-                currentOriginTypes = new HashMap<>();
+                // the origin node's type in current and in the proposal is set by the first node changed
+                hasOriginType = false;
                 break;
             case RANDOM:
                 break;
@@ -215,12 +209,12 @@ public abstract class MultiNodeTypeSwitchOperator extends LeafConsciousTypeTreeO
         if (typeSwitchMode == TypeSwitchMode.TYPE_FLIP || typeSwitchMode == TypeSwitchMode.RANDOM) {
             return 0.0;
         }
-        double gCurrentGivenProposal = getProposalDistribution(changedNodes, isHomogenous.get(States.CURRENT));
-        double gProposalGivenCurrent = getProposalDistribution(changedNodes, isHomogenous.get(States.PROPOSAL));
+        double gCurrentGivenProposal = getProposalDistribution(changedNodes, currentIsHomogenous);
+        double gProposalGivenCurrent = getProposalDistribution(changedNodes, proposalIsHomogenous);
         return Math.log(gCurrentGivenProposal/gProposalGivenCurrent);
     }
 
-    protected double getProposalDistribution(int changedNodes, Boolean isHomogenous) {
+    protected double getProposalDistribution(int changedNodes, boolean isHomogenous) {
         double homogenousTerm = isHomogenous ? 1.0/(2*numberOfTypes) : 0.0;
         double heterogenousTerm = 1/(2*Math.pow(numberOfTypes, changedNodes));
         return homogenousTerm + heterogenousTerm;
@@ -249,7 +243,7 @@ public abstract class MultiNodeTypeSwitchOperator extends LeafConsciousTypeTreeO
     }
 
     /**
-     * Helper function to update the Map recording whether the current and proposed states are homogenous
+     * Helper function to update the fields recording whether the current and proposed states are homogenous
      * @param currentType the value of this node in the current state
      * @param proposedType the proposed value of this node
      */
@@ -257,15 +251,14 @@ public abstract class MultiNodeTypeSwitchOperator extends LeafConsciousTypeTreeO
         if (typeSwitchMode != TypeSwitchMode.HALF_HOMOGENOUS) {
             return;
         }
-        for (States state : States.values()) {
-            int comparisonType = state == States.CURRENT ? currentType : proposedType;
-            if (!currentOriginTypes.containsKey(state)) {
-                currentOriginTypes.put(state, comparisonType);
-            }
-            else if (isHomogenous.get(state)) {
-                if (currentOriginTypes.get(state) != comparisonType) isHomogenous.put(state, false);
-            }
+        if (!hasOriginType) {
+            currentOriginType = currentType;
+            proposalOriginType = proposedType;
+            hasOriginType = true;
+            return;
         }
+        if (currentOriginType != currentType) currentIsHomogenous = false;
+        if (proposalOriginType != proposedType) proposalIsHomogenous = false;
     }
 
     protected void setRelatedNodeType(int nodeNum, int newValue) {
@@ -280,20 +273,17 @@ public abstract class MultiNodeTypeSwitchOperator extends LeafConsciousTypeTreeO
      */
     protected int setSubtree(Node node, int generations) {
         int changedNodes = 0;
-        if (generations == 0) {
-            return changedNodes;
-        }
-        int nodeNum = node.getNr();
-        if (node.isLeaf() && !isAmbiguous[nodeNum]) {
-            return changedNodes;
-        }
-
-        int newValue = getRelatedNodeTypeProposalValue(nodeNum);
-        setRelatedNodeType(nodeNum, newValue);
-        changedNodes += 1;
+        final int count = traversal.preOrder(node, generations);
+        final Node[] subtree = traversal.getNodes();
+        for (int i = 0; i < count; i++) {
+            int nodeNum = subtree[i].getNr();
+            if (subtree[i].isLeaf() && !isAmbiguous[nodeNum]) {
+                continue;
+            }
 
-        for (Node childNode : node.getChildren()) {
-            changedNodes += setSubtree(childNode, generations - 1);
+            int newValue = getRelatedNodeTypeProposalValue(nodeNum);
+            setRelatedNodeType(nodeNum, newValue);
+            changedNodes += 1;
         }
         return changedNodes;
     }
@@ -305,27 +295,25 @@ public abstract class MultiNodeTypeSwitchOperator extends LeafConsciousTypeTreeO
      */
     protected int setUptree(Node node, int generations) {
         int changedNodes = 0;
-        if (generations == 0) {
-            return changedNodes;
-        }
-        int nodeNum = node.getNr();
-        if (node.isLeaf() && !isAmbiguous[nodeNum]) {
-            // theoretically upTree should never encounter a tip/leaf, but just in case
-            return changedNodes;
-        }
-
-        int newValue = getRelatedNodeTypeProposalValue(nodeNum);
+        while (node != null && generations != 0) {
+            int nodeNum = node.getNr();
+            if (node.isLeaf() && !isAmbiguous[nodeNum]) {
+                // theoretically upTree should never encounter a tip/leaf, but just in case
+                return changedNodes;
+            }
 
-        setRelatedNodeType(nodeNum, newValue);
-        changedNodes += 1;
+            int newValue = getRelatedNodeTypeProposalValue(nodeNum);
 
-        if (node.isRoot() && isGermlineRoot && germlineNum > 0) {
-            setRelatedNodeType(germlineNum, newValue);
+            setRelatedNodeType(nodeNum, newValue);
             changedNodes += 1;
-        }
 
-        if (node.getParent() != null) {
-            changedNodes += setUptree(node.getParent(), generations - 1);
+            if (node.isRoot() && isGermlineRoot && germlineNum > 0) {
+                setRelatedNodeType(germlineNum, newValue);
+                changedNodes += 1;
+            }
+
+            node = node.getParent();
+            generations--;
         }
 
         return changedNodes;
@@ -27,6 +27,7 @@ import beast.base.evolution.tree.Tree;
 import beast.base.inference.util.InputUtil;
 import beast.base.util.MachineAccuracy;
 import beast.base.util.Randomizer;
+import tyche.evolution.tree.GermlineRootTree;
 
 /**
  * @author Jessie Fielding
@@ -43,6 +44,40 @@ import beast.base.util.Randomizer;
         year = 2025, firstAuthorSurname = "Fielding", DOI="10.1101/2025.10.21.683591")
 public class UniformNodeTypeHeightOperator extends LeafConsciousTypeTreeOperator {
 
+    /**
+     * node numbers of the internal nodes at least three generations below the root, which can be operated on, and the
+     * topology version of the GermlineRootTree they were found for. Other trees don't report topology changes, so for
+     * them the nodes are found again on every proposal.
+     */
+    private int[] candidateNodes = new int[0];
+    private int candidateNodeCount = 0;
+    private long candidateTopologyVersion = -1;
+
+    /**
+     * Find the internal nodes whose parent and grandparent are not the root, if the topology has changed
+     * @param tree the tree being operated on
+     */
+    private void updateCandidateNodes(Tree tree) {
+        final boolean isGRT = tree instanceof GermlineRootTree;
+        if (isGRT && ((GermlineRootTree) tree).getTopologyVersion() == candidateTopologyVersion) {
+            return;
+        }
+        final int nodeCount = tree.getNodeCount();
+        if (candidateNodes.length < nodeCount) {
+            candidateNodes = new int[nodeCount];
+        }
+        int count = 0;
+        for (int nodeNr = tree.getLeafNodeCount(); nodeNr < nodeCount; nodeNr++) {
+            final Node node = tree.getNode(nodeNr);
+            if (node.isRoot() || node.isLeaf() || node.getParent().isRoot() || node.getParent().getParent().isRoot()) {
+                continue;
+            }
+            candidateNodes[count++] = nodeNr;
+        }
+        candidateNodeCount = count;
+        candidateTopologyVersion = isGRT ? ((GermlineRootTree) tree).getTopologyVersion() : -1;
+    }
+
     private int getRandomType() {
         return Randomizer.nextInt(upperInt - lowerInt + 1) + lowerInt; // from 0 to n-1, n must > 0
     }
@@ -55,18 +90,16 @@ public class UniformNodeTypeHeightOperator extends LeafConsciousTypeTreeOperator
     @Override
     public double proposal() {
         final Tree tree = (Tree) InputUtil.get(treeInput, this);
-        // randomly select internal node
-        final int nodeCount = tree.getNodeCount();
 
         // Abort if no non-root internal nodes
         if (tree.getInternalNodeCount()==1)
             return Double.NEGATIVE_INFINITY;
 
-        Node node;
-        do {
-            final int nodeNr = nodeCount / 2 + 1 + Randomizer.nextInt(nodeCount / 2);
-            node = tree.getNode(nodeNr);
-        } while (node.isRoot() || node.isLeaf() || node.getParent().isRoot() || node.getParent().getParent().isRoot());
+        // randomly select internal node with a grandparent below the root
+        updateCandidateNodes(tree);
+        if (candidateNodeCount == 0)
+            return Double.NEGATIVE_INFINITY;
+        final Node node = tree.getNode(candidateNodes[Randomizer.nextInt(candidateNodeCount)]);
 
         Node parent = node.getParent();
         Node sibling = parent.getLeft() == node ? parent.getRight() : parent.getLeft();
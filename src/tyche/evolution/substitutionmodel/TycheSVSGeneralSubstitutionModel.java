@@ -22,12 +22,16 @@ package tyche.evolution.substitutionmodel;
 
 import beast.base.core.Citation;
 import beast.base.core.Description;
+import beast.base.core.Input;
 import beast.base.core.Log;
+import beast.base.evolution.substitutionmodel.EigenDecomposition;
 import beast.base.evolution.tree.Node;
 import beast.base.inference.parameter.BooleanParameter;
 import beastclassic.evolution.substitutionmodel.SVSGeneralSubstitutionModel;
 
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import beast.base.util.MachineAccuracy;
 
 
@@ -38,6 +42,11 @@ import beast.base.util.MachineAccuracy;
 
 /**
  * Extends SVSGeneralSubstitutionModel so that the rate matrix is stored and restored after rejected proposals.
+ * Eigen decompositions are cached by rate matrix, so returning to a previously visited indicator configuration does
+ * not need a new decomposition.
+ * For 2 or 3 types, transition probabilities are calculated in closed form instead of through the eigen decomposition.
+ * For more types, transition probabilities of short branches are calculated by uniformization over the rates whose
+ * indicator is on, so that the cost grows with the number of active rates rather than the square of the number of types.
  */
 @Description("Extends SVSGeneralSubstitutionModel so that the rate matrix is stored and restored after rejected proposals.")
 @Citation(value="Fielding, J. J., Wu, S., Melton, H. J., Fisk, N., du Plessis, L., & Hoehn, K. B. (2025).\n" +
@@ -45,22 +54,380 @@ import beast.base.util.MachineAccuracy;
         "bioRxiv https://doi.org/10.1101/2025.10.21.683591 (2025) doi:10.1101/2025.10.21.683591.",
         year = 2025, firstAuthorSurname = "Fielding", DOI="10.1101/2025.10.21.683591")
 public class TycheSVSGeneralSubstitutionModel extends SVSGeneralSubstitutionModel {
+
+    /**
+     * input object for whether to use closed form transition probabilities when there are 2 or 3 types
+     */
+    public Input<Boolean> closedFormInput = new Input<>("closedForm", "calculate transition probabilities in closed form instead of by eigen decomposition when there are 2 or 3 types, default: true", true);
+
+    /**
+     * input object for whether to use uniformization over the active rates when there are more than 3 types
+     */
+    public Input<Boolean> uniformizationInput = new Input<>("uniformization", "calculate transition probabilities by uniformization over the rates whose indicator is on when there are more than 3 types and the branch is short enough for this to be cheaper than the eigen decomposition, default: true", true);
+
+    /**
+     * input object for the maximum error of transition probabilities calculated by uniformization
+     */
+    public Input<Double> uniformizationToleranceInput = new Input<>("uniformizationTolerance", "maximum absolute error of each transition probability calculated by uniformization, default: 1e-12", 1e-12);
+
+    /**
+     * input object for the number of eigen decompositions to keep in the cache
+     */
+    public Input<Integer> eigenCacheSizeInput = new Input<>("eigenCacheSize", "number of most recently used eigen decompositions to keep, keyed by rate matrix, 0 to disable, default: 64", 64);
+
+    /**
+     * the rate matrix at the last store, shared with rateMatrix until the rate matrix is next set up
+     */
     private double[][] storedRateMatrix;
+    private double[][][] rateMatrixBuffers;
+    private EigenDecomposition storedCachedEigenDecomposition;
     private BooleanParameter rateIndicator;
 
+    /**
+     * least recently used cache of eigen decompositions, keyed by the normalised rate matrix, which includes the
+     * indicator configuration, the relative rates, and the frequencies
+     */
+    protected Map<RateMatrixKey, EigenDecomposition> eigenCache;
+    protected long eigenCacheHits = 0;
+    protected long eigenCacheMisses = 0;
+
+    /**
+     * whether closed form transition probabilities are used for this model
+     */
+    protected boolean useClosedForm;
+
+    /**
+     * whether uniformization may be used for this model
+     */
+    protected boolean useUniformization;
+
+    /**
+     * the rates used by the closed form and uniformized transition probabilities, or null if the rates have changed
+     * since they were set up. A RateSnapshot is never modified once published, so likelihood threads can read it
+     * without locking while another thread sets up the rate matrix.
+     */
+    protected volatile RateSnapshot rates;
+    protected RateSnapshot storedRates;
+
+    /**
+     * scratch arrays for the uniformization series, one set per likelihood thread
+     */
+    protected ThreadLocal<UniformizationScratch> uniformizationScratch;
+
     /**
      * Initialize and validate using SVSGeneralSubstitutionModel initAndValidate, and then set up storedRateMatrix.
      */
     @Override
     public void initAndValidate() {
         super.initAndValidate();
-        storedRateMatrix = new double[nrOfStates][nrOfStates];
+        rateMatrixBuffers = new double[][][] {rateMatrix, new double[nrOfStates][nrOfStates]};
+        storedRateMatrix = null;
         rateIndicator = indicator.get();
+        final int eigenCacheSize = eigenCacheSizeInput.get();
+        eigenCache = new LinkedHashMap<RateMatrixKey, EigenDecomposition>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<RateMatrixKey, EigenDecomposition> eldest) {
+                return size() > eigenCacheSize;
+            }
+        };
+        useClosedForm = closedFormInput.get() && (nrOfStates == 2 || nrOfStates == 3);
+        useUniformization = uniformizationInput.get() && nrOfStates > 3;
+        rates = null;
+        storedRates = null;
+        final int stateCount = nrOfStates;
+        uniformizationScratch = ThreadLocal.withInitial(() -> new UniformizationScratch(stateCount));
+    }
+
+    /**
+     * Set up the rate matrix, writing into a different buffer than the stored rate matrix so that store only needs
+     * to keep a reference.
+     */
+    @Override
+    protected void setupRateMatrix() {
+        if (rateMatrix == storedRateMatrix) {
+            rateMatrix = (storedRateMatrix == rateMatrixBuffers[0]) ? rateMatrixBuffers[1] : rateMatrixBuffers[0];
+        }
+        super.setupRateMatrix();
+    }
+
+    /**
+     * Get the current rate matrix, setting it up first if the rates have changed.
+     * The array is a copy that is never changed, so it is safe to read from any thread, but it must not be modified.
+     * @return the current normalised rate matrix
+     */
+    public double[][] getCurrentRateMatrix() {
+        return setupRates().rateMatrix;
+    }
+
+    /**
+     * Set up the rate matrix and its eigen decomposition if the rates have changed, reusing a cached decomposition if
+     * this rate matrix has been seen recently.
+     */
+    protected void setupEigenDecomposition() {
+        // this must be synchronized to avoid being called simultaneously by two different likelihood threads
+        synchronized (this) {
+            if (!updateMatrix) {
+                return;
+            }
+            setupRelativeRates();
+            setupRateMatrix();
+            RateMatrixKey key = new RateMatrixKey(rateMatrix);
+            EigenDecomposition cached = eigenCache.get(key);
+            if (cached != null) {
+                eigenCacheHits++;
+                eigenDecomposition = cached;
+            } else {
+                eigenCacheMisses++;
+                eigenDecomposition = eigenSystem.decomposeMatrix(rateMatrix);
+                if (eigenCacheSizeInput.get() > 0) {
+                    eigenCache.put(key, eigenDecomposition);
+                }
+            }
+            updateMatrix = false;
+        }
+    }
+
+    /**
+     * Get the eigen decomposition of the rate matrix, reusing a cached decomposition if possible.
+     * @param node the current node
+     * @return the eigen decomposition of the current rate matrix
+     */
+    @Override
+    public EigenDecomposition getEigenDecomposition(Node node) {
+        setupEigenDecomposition();
+        return super.getEigenDecomposition(node);
+    }
+
+    /**
+     * Get the number of times an eigen decomposition was found in the cache.
+     * @return the number of cache hits
+     */
+    public synchronized long getEigenCacheHits() {
+        return eigenCacheHits;
+    }
+
+    /**
+     * Get the number of times an eigen decomposition had to be calculated.
+     * @return the number of cache misses
+     */
+    public synchronized long getEigenCacheMisses() {
+        return eigenCacheMisses;
+    }
+
+    /**
+     * Set up the rate matrix for closed form or uniformized transition probabilities if the rates have changed.
+     * @return the rates, which must not be modified
+     */
+    protected RateSnapshot setupRates() {
+        RateSnapshot current = rates;
+        if (current != null) {
+            return current;
+        }
+        // this must be synchronized to avoid being called simultaneously by two different likelihood threads
+        synchronized (this) {
+            if (rates == null) {
+                setupRelativeRates();
+                setupRateMatrix();
+                rates = new RateSnapshot(rateMatrix, useUniformization);
+            }
+            return rates;
+        }
+    }
+
+    /**
+     * Get the number of terms of the uniformization series needed for a given error. Every entry of a power of the
+     * jump matrix is at most 1, so the error of stopping after the N-th power is at most the Poisson tail P(X > N),
+     * which is bounded by exp(-lambda) * (e * lambda / m)^m with m = N + 1 > lambda (Chernoff bound).
+     * @param expectedJumps the Poisson mean, uniformizationRate * distance
+     * @param tolerance the maximum error of each transition probability
+     * @return the highest power of the jump matrix to include
+     */
+    protected static int getSeriesLength(double expectedJumps, double tolerance) {
+        if (expectedJumps <= 0) {
+            return 0;
+        }
+        final double logTolerance = Math.log(tolerance);
+        final double logExpectedJumps = Math.log(expectedJumps);
+        int terms = (int) expectedJumps;
+        while (true) {
+            final int m = terms + 1;
+            if (m > expectedJumps && -expectedJumps + m * (1 + logExpectedJumps - Math.log(m)) <= logTolerance) {
+                return terms;
+            }
+            terms++;
+        }
+    }
+
+    /**
+     * Calculate the transition probabilities by uniformization, P(t) = sum_n Poisson(n; rate*t) * B^n with B the sparse
+     * jump matrix. The series is truncated where the Poisson tail bound is below the tolerance. Each row of a power of
+     * B is only non-zero on the types reachable in that many jumps, so each term only visits those entries and the
+     * rates whose indicator is on, and costs at most one sparse row of B per reachable type.
+     * @param rates the rates to use
+     * @param distance the branch length in expected substitutions
+     * @param matrix the double array to copy the transition probability matrix into
+     * @return false if uniformization would be more expensive than the eigen decomposition, otherwise true
+     */
+    protected boolean getUniformizedTransitionProbabilities(RateSnapshot rates, double distance, double[] matrix) {
+        final int n = nrOfStates;
+        final double expectedJumps = rates.uniformizationRate * distance;
+        if (expectedJumps > 700) {
+            // the first Poisson weight would underflow
+            return false;
+        }
+        final int terms = getSeriesLength(expectedJumps, uniformizationToleranceInput.get());
+        // each term costs at most one sparse row of B for every entry of the term, while the transition probabilities
+        // from the eigen decomposition cost n^3
+        if ((double) terms * n * rates.jumpNonZeroCount > (double) n * n * n) {
+            return false;
+        }
+        final int[] jumpRowStart = rates.jumpRowStart;
+        final int[] jumpColumn = rates.jumpColumn;
+        final double[] jumpValue = rates.jumpValue;
+        final UniformizationScratch scratch = uniformizationScratch.get();
+        double[] seriesTerm = scratch.seriesTerm;
+        double[] nextSeriesTerm = scratch.nextSeriesTerm;
+        final int[] seriesSupport = scratch.seriesSupport;
+        final int[] supportSize = scratch.supportSize;
+        final boolean[] inSupport = scratch.inSupport;
+
+        // the first term of the series is the identity; clear what the previous call left on the supports
+        for (int i = 0; i < n; i++) {
+            final int rowOffset = i * n;
+            for (int s = 0; s < supportSize[i]; s++) {
+                final int j = seriesSupport[rowOffset + s];
+                seriesTerm[rowOffset + j] = 0;
+                nextSeriesTerm[rowOffset + j] = 0;
+                inSupport[rowOffset + j] = false;
+            }
+            seriesTerm[rowOffset + i] = 1;
+            seriesSupport[rowOffset] = i;
+            inSupport[rowOffset + i] = true;
+            supportSize[i] = 1;
+        }
+        double weight = Math.exp(-expectedJumps);
+        Arrays.fill(matrix, 0, n * n, 0);
+        for (int i = 0; i < n; i++) {
+            matrix[i * n + i] = weight;
+        }
+
+        for (int step = 1; step <= terms; step++) {
+            weight *= expectedJumps / step;
+            for (int i = 0; i < n; i++) {
+                final int rowOffset = i * n;
+                final int size = supportSize[i];
+                // both terms are zero outside the support, so only the support needs clearing
+                for (int s = 0; s < size; s++) {
+                    nextSeriesTerm[rowOffset + seriesSupport[rowOffset + s]] = 0;
+                }
+                // next row = row of the term * B, using the sparse rows of B
+                for (int s = 0; s < size; s++) {
+                    final int k = seriesSupport[rowOffset + s];
+                    final double termValue = seriesTerm[rowOffset + k];
+                    if (termValue == 0) {
+                        continue;
+                    }
+                    for (int index = jumpRowStart[k]; index < jumpRowStart[k + 1]; index++) {
+                        final int j = jumpColumn[index];
+                        if (!inSupport[rowOffset + j]) {
+                            inSupport[rowOffset + j] = true;
+                            seriesSupport[rowOffset + supportSize[i]++] = j;
+                        }
+                        nextSeriesTerm[rowOffset + j] += termValue * jumpValue[index];
+                    }
+                }
+                for (int s = 0; s < supportSize[i]; s++) {
+                    final int j = seriesSupport[rowOffset + s];
+                    matrix[rowOffset + j] += weight * nextSeriesTerm[rowOffset + j];
+                }
+            }
+            double[] tmp = seriesTerm;
+            seriesTerm = nextSeriesTerm;
+            nextSeriesTerm = tmp;
+        }
+        scratch.seriesTerm = seriesTerm;
+        scratch.nextSeriesTerm = nextSeriesTerm;
+        return true;
+    }
+
+    /**
+     * Calculate the transition probabilities for two types in closed form.
+     * @param rates the rates to use
+     * @param distance the branch length in expected substitutions
+     * @param matrix the double array to copy the transition probability matrix into
+     */
+    protected void getTwoTypeTransitionProbabilities(RateSnapshot rates, double distance, double[] matrix) {
+        final double alpha = rates.rateMatrix[0][1];
+        final double beta = rates.rateMatrix[1][0];
+        final double k = alpha + beta;
+        if (k <= 0) {
+            // no transitions possible
+            matrix[0] = 1; matrix[1] = 0;
+            matrix[2] = 0; matrix[3] = 1;
+            return;
+        }
+        final double expmkt = Math.exp(-k * distance); // exp minus k * distance
+        final double switched = -Math.expm1(-k * distance) / k; // (1 - exp(-k * distance)) / k
+        matrix[0] = (beta + alpha * expmkt) / k;
+        matrix[1] = alpha * switched;
+        matrix[2] = beta * switched;
+        matrix[3] = (alpha + beta * expmkt) / k;
+    }
+
+    /**
+     * Calculate the transition probabilities for three types in closed form, as exp(Qt) = I + c1*Q + c2*Q^2 where
+     * c1 and c2 are chosen so that the identity holds for each eigenvalue of Q.
+     * @param rates the rates to use
+     * @param distance the branch length in expected substitutions
+     * @param matrix the double array to copy the transition probability matrix into
+     * @return false if the non-zero eigenvalues are too close together for the closed form to be accurate, otherwise true
+     */
+    protected boolean getThreeTypeTransitionProbabilities(RateSnapshot rates, double distance, double[] matrix) {
+        final double halfTrace = rates.trace / 2;
+        final double discriminant = halfTrace * halfTrace - rates.minors;
+        final double c1;
+        final double c2;
+        if (discriminant > 0) {
+            // two distinct real eigenvalues
+            final double root = Math.sqrt(discriminant);
+            if (root <= 1e-6 * Math.abs(halfTrace)) {
+                return false;
+            }
+            final double lambda1 = halfTrace + root;
+            final double lambda2 = halfTrace - root;
+            final double g1 = lambda1 == 0 ? distance : Math.expm1(lambda1 * distance) / lambda1;
+            final double g2 = lambda2 == 0 ? distance : Math.expm1(lambda2 * distance) / lambda2;
+            c2 = (g1 - g2) / (lambda1 - lambda2);
+            c1 = g1 - c2 * lambda1;
+        } else {
+            // complex conjugate eigenvalues mu +/- i*omega
+            final double omega = Math.sqrt(-discriminant);
+            if (omega <= 1e-6 * Math.abs(halfTrace)) {
+                return false;
+            }
+            final double mu = halfTrace;
+            final double expMu = Math.exp(mu * distance);
+            final double a = expMu * Math.cos(omega * distance) - 1;
+            final double b = expMu * Math.sin(omega * distance);
+            final double modulus = mu * mu + omega * omega;
+            final double realG = (a * mu + b * omega) / modulus;
+            final double imaginaryG = (b * mu - a * omega) / modulus;
+            c2 = imaginaryG / omega;
+            c1 = realG - c2 * mu;
+        }
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                matrix[i * 3 + j] = (i == j ? 1 : 0) + c1 * rates.rateMatrix[i][j] + c2 * rates.squared[i * 3 + j];
+            }
+        }
+        return true;
     }
 
 
     /**
-     * Get the transition probabilities, using SVSGeneralSubstitutionModel getTransitionProbabilities, and use rate indicator to address machine accuracy errors.
+     * Get the transition probabilities, in closed form for 2 or 3 types, by uniformization for short branches with more
+     * types, or otherwise using SVSGeneralSubstitutionModel getTransitionProbabilities, and use rate indicator to
+     * address machine accuracy errors.
      * @param node the current node
      * @param startTime the start time of the branch
      * @param endTime the end time of the branch
@@ -71,8 +438,30 @@ public class TycheSVSGeneralSubstitutionModel extends SVSGeneralSubstitutionMode
     @Override
     public void getTransitionProbabilities(Node node, double startTime, double endTime, double rate, double[] matrix) {
 
-        super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
         int stateCount = getStateCount();
+        if (useUniformization) {
+            final RateSnapshot rates = setupRates();
+            final double distance = (startTime - endTime) * rate;
+            if (!getUniformizedTransitionProbabilities(rates, distance, matrix)) {
+                setupEigenDecomposition();
+                super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+            }
+        } else if (useClosedForm) {
+            final RateSnapshot rates = setupRates();
+            final double distance = (startTime - endTime) * rate;
+            if (stateCount == 2) {
+                // transitions with a rate indicator of 0 are exactly 0 in closed form
+                getTwoTypeTransitionProbabilities(rates, distance, matrix);
+                return;
+            }
+            if (!getThreeTypeTransitionProbabilities(rates, distance, matrix)) {
+                setupEigenDecomposition();
+                super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+            }
+        } else {
+            setupEigenDecomposition();
+            super.getTransitionProbabilities(node, startTime, endTime, rate, matrix);
+        }
 
 //      Due to floating point/machine accuracy errors, values are sometimes close to but not quite zero when they should be.
 //      Since we have rateIndicators, we can correct for these inaccuracies easily to improve overall accuracy of our model.
@@ -98,15 +487,29 @@ public class TycheSVSGeneralSubstitutionModel extends SVSGeneralSubstitutionMode
     }
 
 
+    /**
+     * Mark the closed form and uniformized transition probabilities as out of date whenever the rates change.
+     * @return true, as GeneralSubstitutionModel does
+     */
+    @Override
+    protected boolean requiresRecalculation() {
+        rates = null;
+        return super.requiresRecalculation();
+    }
+
     /**
      * Store the rate matrix so that it can be restored after rejected proposals.
      */
     @Override
     public void store() {
-        for (int i = 0; i < nrOfStates; i++) {
-            System.arraycopy(rateMatrix[i], 0, storedRateMatrix[i], 0, nrOfStates);
-        }
+        // copy on write: the next setupRateMatrix writes into the other buffer
+        storedRateMatrix = rateMatrix;
+        storedRates = rates;
+        // cached eigen decompositions are never modified, so keep a reference instead of letting the base class copy
+        storedCachedEigenDecomposition = eigenDecomposition;
+        eigenDecomposition = null;
         super.store();
+        eigenDecomposition = storedCachedEigenDecomposition;
     }
 
     /**
@@ -114,9 +517,153 @@ public class TycheSVSGeneralSubstitutionModel extends SVSGeneralSubstitutionMode
      */
     @Override
     public void restore() {
-        for (int i = 0; i < nrOfStates; i++) {
-            System.arraycopy(storedRateMatrix[i], 0, rateMatrix[i], 0, nrOfStates);
+        if (storedRateMatrix != null) {
+            rateMatrix = storedRateMatrix;
         }
+        // the stored rates were set up from the stored rate matrix, if they were set up at all
+        rates = storedRates;
         super.restore();
+        eigenDecomposition = storedCachedEigenDecomposition;
+    }
+
+    /**
+     * The rates used by the closed form and uniformized transition probabilities, copied from a rate matrix when it is
+     * set up and never modified afterwards.
+     */
+    protected static final class RateSnapshot {
+        /**
+         * copy of the normalised rate matrix
+         */
+        final double[][] rateMatrix;
+
+        /**
+         * trace and sum of principal 2x2 minors of a 3x3 rate matrix, which determine its non-zero eigenvalues, and
+         * its square, flattened
+         */
+        final double trace, minors;
+        final double[] squared;
+
+        /**
+         * uniformization rate, the largest total rate of leaving any type
+         */
+        final double uniformizationRate;
+
+        /**
+         * the uniformized jump matrix I + Q/uniformizationRate in compressed sparse row form, only including the
+         * diagonal and the rates whose indicator is on
+         */
+        final int[] jumpRowStart;
+        final int[] jumpColumn;
+        final double[] jumpValue;
+        final int jumpNonZeroCount;
+
+        RateSnapshot(double[][] rateMatrix, boolean withJumpMatrix) {
+            final int n = rateMatrix.length;
+            this.rateMatrix = new double[n][];
+            for (int i = 0; i < n; i++) {
+                this.rateMatrix[i] = rateMatrix[i].clone();
+            }
+            if (n == 3) {
+                // the eigenvalues of a 3x3 rate matrix are 0 and the roots of x^2 - trace*x + minors
+                trace = rateMatrix[0][0] + rateMatrix[1][1] + rateMatrix[2][2];
+                minors = rateMatrix[0][0] * rateMatrix[1][1] - rateMatrix[0][1] * rateMatrix[1][0]
+                        + rateMatrix[0][0] * rateMatrix[2][2] - rateMatrix[0][2] * rateMatrix[2][0]
+                        + rateMatrix[1][1] * rateMatrix[2][2] - rateMatrix[1][2] * rateMatrix[2][1];
+                squared = new double[9];
+                for (int i = 0; i < 3; i++) {
+                    for (int j = 0; j < 3; j++) {
+                        double sum = 0;
+                        for (int k = 0; k < 3; k++) {
+                            sum += rateMatrix[i][k] * rateMatrix[k][j];
+                        }
+                        squared[i * 3 + j] = sum;
+                    }
+                }
+            } else {
+                trace = 0;
+                minors = 0;
+                squared = null;
+            }
+            if (!withJumpMatrix) {
+                uniformizationRate = 0;
+                jumpRowStart = null;
+                jumpColumn = null;
+                jumpValue = null;
+                jumpNonZeroCount = 0;
+                return;
+            }
+            double maxRate = 0;
+            for (int i = 0; i < n; i++) {
+                maxRate = Math.max(maxRate, -rateMatrix[i][i]);
+            }
+            uniformizationRate = maxRate;
+            jumpRowStart = new int[n + 1];
+            jumpColumn = new int[n * n];
+            jumpValue = new double[n * n];
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                jumpRowStart[i] = count;
+                for (int j = 0; j < n; j++) {
+                    double value = (i == j) ? 1 : 0;
+                    if (uniformizationRate > 0) {
+                        value += rateMatrix[i][j] / uniformizationRate;
+                    }
+                    if (value != 0) {
+                        jumpColumn[count] = j;
+                        jumpValue[count] = value;
+                        count++;
+                    }
+                }
+            }
+            jumpRowStart[n] = count;
+            jumpNonZeroCount = count;
+        }
+    }
+
+    /**
+     * Scratch arrays for the uniformization series of one thread: the current and next term, one row of the
+     * transition probability matrix per type, and the columns each row has reached so far, how many there are, and
+     * whether each column is one of them
+     */
+    protected static final class UniformizationScratch {
+        double[] seriesTerm, nextSeriesTerm;
+        final int[] seriesSupport;
+        final int[] supportSize;
+        final boolean[] inSupport;
+
+        UniformizationScratch(int n) {
+            seriesTerm = new double[n * n];
+            nextSeriesTerm = new double[n * n];
+            seriesSupport = new int[n * n];
+            supportSize = new int[n];
+            inSupport = new boolean[n * n];
+        }
+    }
+
+    /**
+     * Key for the eigen decomposition cache, a copy of a rate matrix compared by value.
+     */
+    protected static final class RateMatrixKey {
+        private final double[] values;
+        private final int hash;
+
+        RateMatrixKey(double[][] rateMatrix) {
+            final int n = rateMatrix.length;
+            values = new double[n * n];
+            for (int i = 0; i < n; i++) {
+                System.arraycopy(rateMatrix[i], 0, values, i * n, n);
+            }
+            hash = Arrays.hashCode(values);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof RateMatrixKey && Arrays.equals(values, ((RateMatrixKey) o).values);
+        }
     }
 }
@@ -0,0 +1,501 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.tree;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Citation;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Logger;
+import beast.base.inference.parameter.IntegerParameter;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Logs a tree with its node types and branch rates as a Nexus tree log, like GRTRootlessLogger, but formats and writes
+ * it on a background thread. On each log the MCMC thread only copies the tree into a TreeSnapshot taken from a fixed
+ * pool, and the background thread turns queued snapshots into Newick, optionally gzips them, writes them and returns
+ * the snapshots to the pool. If the writer falls so far behind that the pool is empty, logging waits for it
+ * (backpressure) rather than dropping samples or growing without bound. The queue depth and the time spent waiting
+ * can be read while running and are reported when the log is closed.
+ * This logger writes its own file rather than to the logger it is placed in, so it should be given a logger of its own.
+ * When resuming, trees are appended to the existing log, in a new gzip member if it is compressed, which readers
+ * decompress as one stream with the earlier members.
+ */
+@Description("Logs a tree with node types and branch rates as a Nexus tree log, formatted, optionally gzipped and written on a background thread. " +
+        "Writes to its own fileName rather than to the logger it is in.")
+@Citation(value="Fielding, J. J., Wu, S., Melton, H. J., Fisk, N., du Plessis, L., & Hoehn, K. B. (2025).\n" +
+        "TyCHE enables time-resolved lineage tracing of heterogeneously-evolving populations.\n" +
+        "bioRxiv https://doi.org/10.1101/2025.10.21.683591 (2025) doi:10.1101/2025.10.21.683591.",
+        year = 2025, firstAuthorSurname = "Fielding", DOI="10.1101/2025.10.21.683591")
+public class AsyncTreeLogger extends BEASTObject implements Loggable {
+
+    /**
+     * input object for the tree to log
+     */
+    public Input<Tree> treeInput = new Input<>("tree", "tree to be logged", Input.Validate.REQUIRED);
+
+    /**
+     * input object for the node types to log
+     */
+    public Input<IntegerParameter> nodeTypesInput = new Input<>("nodeTypes", "node types to log with the tree, indexed by node number (optional)");
+
+    /**
+     * input object for the clock model whose branch rates to log
+     */
+    public Input<BranchRateModel.Base> clockModelInput = new Input<>("branchratemodel", "clock model whose branch rates to log with the tree (optional)");
+
+    /**
+     * input object for the name of the tree log
+     */
+    public Input<String> fileNameInput = new Input<>("fileName", "name of the tree log file to write", Input.Validate.REQUIRED);
+
+    /**
+     * input object for whether to gzip the tree log
+     */
+    public Input<Boolean> compressInput = new Input<>("compress", "whether to gzip the tree log", false);
+
+    /**
+     * input object for the number of snapshots that can wait to be written
+     */
+    public Input<Integer> queueSizeInput = new Input<>("queueSize", "number of samples that can wait to be written before logging waits for the writer", 16);
+
+    /**
+     * input object for the number of decimal places
+     */
+    public Input<Integer> decimalPlacesInput = new Input<>("dp", "the number of decimal places to use writing branch lengths and rates, use -1 for full precision (default = full precision)", -1);
+
+    /**
+     * input object for whether to write the germline
+     */
+    public Input<Boolean> withGermlineInput = new Input<>("withGermline", "whether to write the whole tree rather than the subtree without the germline", false);
+
+    /**
+     * marks the end of the queue
+     */
+    private static final TreeSnapshot END = new TreeSnapshot();
+
+    /**
+     * how long to wait at exit for the writer to write what is queued
+     */
+    private static final long EXIT_WAIT_MILLIS = 30000;
+
+    /**
+     * the end of the trees block, and the gzip member a compressed log ends with, which holds only that
+     */
+    private static final byte[] END_TEXT = "End;\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COMPRESSED_END = compress(END_TEXT);
+
+    private BlockingQueue<TreeSnapshot> free;
+    private BlockingQueue<TreeSnapshot> queued;
+    private volatile Thread writerThread;
+    private volatile Throwable writerError;
+
+    /**
+     * finishes the log if the JVM exits before it is closed
+     */
+    private Thread shutdownHook;
+
+    /**
+     * queue metrics, only updated by the MCMC thread
+     */
+    private int maxQueueDepth = 0;
+    private long waitCount = 0;
+    private long waitNanos = 0;
+    private long logCount = 0;
+
+    /**
+     * Initialize and validate inputs
+     */
+    @Override
+    public void initAndValidate() {
+        if (queueSizeInput.get() < 1) {
+            throw new IllegalArgumentException("queueSize should be at least 1, not " + queueSizeInput.get());
+        }
+    }
+
+    @Override
+    public void init(PrintStream printStream) {
+        final int queueSize = queueSizeInput.get();
+        free = new ArrayBlockingQueue<>(queueSize);
+        // one more place, so that END always fits
+        queued = new ArrayBlockingQueue<>(queueSize + 1);
+        for (int i = 0; i < queueSize; i++) {
+            free.add(new TreeSnapshot());
+        }
+        maxQueueDepth = 0;
+        waitCount = 0;
+        waitNanos = 0;
+        logCount = 0;
+        writerError = null;
+
+        final OutputStream fileStream;
+        final GZIPOutputStream gzip;
+        final Writer writer;
+        try {
+            File file = new File(fileNameInput.get());
+            // like the text loggers, carry on from the end of the existing log without writing the header again
+            boolean resume = Logger.FILE_MODE == Logger.LogFileMode.resume && file.exists() && file.length() > 0
+                    && prepareResume(file);
+            fileStream = new BufferedOutputStream(new FileOutputStream(file, resume), 1 << 16);
+            gzip = compressInput.get() ? new GZIPOutputStream(fileStream, 1 << 16) : null;
+            writer = new OutputStreamWriter(gzip != null ? gzip : fileStream, StandardCharsets.UTF_8);
+            if (!resume) {
+                writeHeader(writer);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open tree log " + fileNameInput.get() + ": " + e.getMessage());
+        }
+
+        final int decimalPlaces = decimalPlacesInput.get();
+        final DecimalFormatter formatter = decimalPlaces < 0 ? null : new DecimalFormatter(decimalPlaces);
+        final boolean withGermline = withGermlineInput.get();
+        writerThread = new Thread(() -> write(writer, gzip, fileStream, formatter, withGermline), "TyCHE tree logger " + fileNameInput.get());
+        writerThread.setDaemon(true);
+        writerThread.start();
+        // the writer is a daemon so that a failed run can still exit, so if the JVM exits before the log is closed,
+        // write what is queued and finish the file, including the gzip trailer
+        shutdownHook = new Thread(this::finishOnExit, "TyCHE tree logger exit " + fileNameInput.get());
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
+    /**
+     * Let the writer write what is queued and close the file, when the JVM exits before the log is closed
+     */
+    private void finishOnExit() {
+        final Thread thread = writerThread;
+        if (thread == null) {
+            return;
+        }
+        queued.offer(END);
+        try {
+            thread.join(EXIT_WAIT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Get a log ready to be appended to when resuming, by dropping the end of the trees block and any tree that was
+     * only partly written
+     * @param file the existing tree log
+     * @return whether anything is left of the log, so that the header needn't be written again
+     * @throws IOException if the log cannot be read or truncated
+     */
+    private boolean prepareResume(File file) throws IOException {
+        if (compressInput.get()) {
+            long length = file.length();
+            if (length >= COMPRESSED_END.length) {
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    byte[] tail = new byte[COMPRESSED_END.length];
+                    raf.seek(length - tail.length);
+                    raf.readFully(tail);
+                    if (Arrays.equals(tail, COMPRESSED_END)) {
+                        // a closed log, whose trees end with a complete gzip member
+                        raf.setLength(length - tail.length);
+                        return true;
+                    }
+                }
+            }
+            // the log wasn't closed, so keep its complete lines
+            return rewriteCompressedLog(file);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            long end = findLineStart(raf, length);
+            if (end < length) {
+                Log.warning("Tree log " + fileNameInput.get() + " ends with an incomplete tree, which is dropped");
+            }
+            if (end > 0) {
+                long start = findLineStart(raf, end - 1);
+                byte[] line = new byte[(int) Math.min(end - start, END_TEXT.length + 1)];
+                raf.seek(start);
+                raf.readFully(line);
+                if (new String(line, StandardCharsets.UTF_8).trim().equals("End;")) {
+                    end = start;
+                }
+            }
+            raf.setLength(end);
+            return end > 0;
+        }
+    }
+
+    /**
+     * Find where the line containing a position starts, reading backwards from it
+     * @param raf the log
+     * @param position the position
+     * @return the position after the last newline before position, or 0 if there is none
+     */
+    private static long findLineStart(RandomAccessFile raf, long position) throws IOException {
+        byte[] chunk = new byte[1 << 16];
+        while (position > 0) {
+            int length = (int) Math.min(chunk.length, position);
+            raf.seek(position - length);
+            raf.readFully(chunk, 0, length);
+            for (int i = length - 1; i >= 0; i--) {
+                if (chunk[i] == '\n') {
+                    return position - length + i + 1;
+                }
+            }
+            position -= length;
+        }
+        return 0;
+    }
+
+    /**
+     * Rewrite a compressed log that wasn't closed with only its complete lines, without the end of the trees block
+     * @param logFile the existing tree log
+     * @return whether any lines were kept
+     * @throws IOException if the log cannot be read or written
+     */
+    private boolean rewriteCompressedLog(File logFile) throws IOException {
+        File temp = new File(logFile.getPath() + ".resume");
+        boolean kept = false;
+        try (InputStream stream = new FileInputStream(logFile);
+             OutputStream out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 1 << 16), 1 << 16)) {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            try {
+                InputStream in = new BufferedInputStream(new GZIPInputStream(stream, 1 << 16), 1 << 16);
+                int b;
+                while ((b = in.read()) >= 0) {
+                    line.write(b);
+                    if (b == '\n') {
+                        if (!line.toString(StandardCharsets.UTF_8.name()).trim().equals("End;")) {
+                            line.writeTo(out);
+                            kept = true;
+                        }
+                        line.reset();
+                    }
+                }
+            } catch (EOFException e) {
+                // the last gzip member was cut off when the run stopped
+            }
+            if (line.size() > 0) {
+                Log.warning("Tree log " + fileNameInput.get() + " ends with an incomplete tree, which is dropped");
+            }
+        }
+        Files.move(temp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        return kept;
+    }
+
+    /**
+     * Gzip some bytes as one gzip member
+     */
+    private static byte[] compress(byte[] bytes) {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return compressed.toByteArray();
+    }
+
+    /**
+     * Write the Nexus header and the translate block
+     */
+    private void writeHeader(Writer writer) throws IOException {
+        Tree tree = treeInput.get();
+        Node[] nodes = tree.getNodesAsArray();
+        StringBuilder buf = new StringBuilder();
+        buf.append("#NEXUS\n\nBegin trees;\n\tTranslate\n");
+        for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+            String id = nodes[i].getID();
+            buf.append("\t\t\t").append(i + 1).append(' ').append(id != null ? id : Integer.toString(i + 1));
+            buf.append(i < tree.getLeafNodeCount() - 1 ? ",\n" : "\n");
+        }
+        buf.append(";\n");
+        writer.write(buf.toString());
+    }
+
+    /**
+     * Write queued snapshots until the end of the queue, on the background thread
+     */
+    private void write(Writer writer, GZIPOutputStream gzip, OutputStream fileStream, DecimalFormatter formatter, boolean withGermline) {
+        StringBuilder buf = new StringBuilder();
+        try {
+            while (true) {
+                TreeSnapshot snapshot = queued.take();
+                if (snapshot == END) {
+                    break;
+                }
+                buf.setLength(0);
+                buf.append("tree STATE_").append(snapshot.getSample()).append(" = ");
+                snapshot.appendNewick(buf, withGermline ? snapshot.getRoot() : snapshot.getMRCA(), formatter);
+                buf.append(";\n");
+                free.put(snapshot);
+                writer.append(buf);
+            }
+            writer.flush();
+            if (gzip != null) {
+                // end the trees block in a gzip member of its own, so that resuming can drop it without decompressing
+                // the log
+                gzip.finish();
+                fileStream.write(COMPRESSED_END);
+            } else {
+                fileStream.write(END_TEXT);
+            }
+        } catch (Throwable e) {
+            writerError = e;
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                if (writerError == null) {
+                    writerError = e;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream printStream) {
+        if (writerThread == null) {
+            // a resumed logger doesn't initialise loggables whose log it has already started
+            init(printStream);
+        }
+        checkWriter();
+        TreeSnapshot snapshot = free.poll();
+        if (snapshot == null) {
+            // the writer is behind, so wait for it
+            long start = System.nanoTime();
+            try {
+                while ((snapshot = free.poll(100, TimeUnit.MILLISECONDS)) == null) {
+                    // stop waiting if the writer has failed
+                    checkWriter();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for tree log " + fileNameInput.get());
+            }
+            waitNanos += System.nanoTime() - start;
+            waitCount++;
+        }
+        // make sure we get the current version of the inputs
+        Tree tree = (Tree) treeInput.get().getCurrent();
+        IntegerParameter nodeTypes = nodeTypesInput.get() != null ? (IntegerParameter) nodeTypesInput.get().getCurrent() : null;
+        snapshot.take(sample, tree, nodeTypes, clockModelInput.get());
+        if (!queued.offer(snapshot)) {
+            // only possible once the writer has stopped
+            checkWriter();
+        }
+        maxQueueDepth = Math.max(maxQueueDepth, queued.size());
+        logCount++;
+    }
+
+    /**
+     * Rethrow an error from the background thread on the MCMC thread
+     */
+    private void checkWriter() {
+        if (writerError != null) {
+            throw new RuntimeException("Failed to write tree log " + fileNameInput.get() + ": " + writerError.getMessage());
+        }
+    }
+
+    @Override
+    public void close(PrintStream printStream) {
+        if (writerThread == null) {
+            return;
+        }
+        if (shutdownHook != null) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // already exiting, and the hook is finishing the log as well
+            }
+            shutdownHook = null;
+        }
+        queued.offer(END);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writerThread = null;
+        Log.info("Tree log " + fileNameInput.get() + ": " + logCount + " samples, at most " + maxQueueDepth + " waiting, "
+                + waitCount + " waits for the writer taking " + (waitNanos / 1000000) + " ms");
+        checkWriter();
+    }
+
+    /**
+     * Get the number of samples waiting to be written
+     * @return the current queue depth
+     */
+    public int getQueueDepth() {
+        return queued == null ? 0 : queued.size();
+    }
+
+    /**
+     * Get the largest number of samples that have been waiting to be written at once
+     * @return the maximum queue depth
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Get the number of times logging had to wait for the writer because the queue was full
+     * @return the number of waits
+     */
+    public long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * Get the total time logging has waited for the writer
+     * @return the time in nanoseconds
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.tree;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Converts a binary tree log written by BinaryTreeLogger to a Nexus tree log like the one GRTRootlessLogger writes,
+ * one sample at a time.
+ * Usage: BinaryTreeLogConverter input.btl output.trees [decimalPlaces] [-withGermline]
+ */
+public class BinaryTreeLogConverter {
+
+    /**
+     * Write the Nexus tree log of a binary tree log
+     * @param reader the binary tree log, before any sample has been read
+     * @param out the output
+     * @param decimalPlaces the number of decimal places for branch lengths and rates, or -1 for full precision
+     * @param withGermline whether to write the whole tree rather than the subtree without the germline
+     * @throws IOException if the binary tree log cannot be read
+     */
+    public static void convert(BinaryTreeLogReader reader, PrintStream out, int decimalPlaces, boolean withGermline) throws IOException {
+        DecimalFormatter formatter = decimalPlaces < 0 ? null : new DecimalFormatter(decimalPlaces);
+        out.println("#NEXUS\n");
+        out.println("Begin trees;");
+        out.println("\tTranslate");
+        for (int i = 0; i < reader.getTipCount(); i++) {
+            out.print("\t\t\t" + (i + 1) + " " + reader.getTaxon(i));
+            out.println(i < reader.getTipCount() - 1 ? "," : "");
+        }
+        out.println(";");
+        StringBuilder buf = new StringBuilder();
+        while (reader.next()) {
+            buf.setLength(0);
+            buf.append("tree STATE_").append(reader.getSample()).append(" = ");
+            reader.appendNewick(buf, withGermline ? reader.getRoot() : reader.getMRCA(), formatter);
+            buf.append(';');
+            out.println(buf);
+        }
+        out.println("End;");
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BinaryTreeLogConverter input.btl output.trees [decimalPlaces] [-withGermline]");
+            System.exit(1);
+        }
+        int decimalPlaces = -1;
+        boolean withGermline = false;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-withGermline")) {
+                withGermline = true;
+            } else {
+                try {
+                    decimalPlaces = Integer.parseInt(args[i]);
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Unknown argument " + args[i]);
+                }
+            }
+        }
+        try (BinaryTreeLogReader reader = new BinaryTreeLogReader(args[0]);
+             PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16))) {
+            convert(reader, out, decimalPlaces, withGermline);
+        }
+    }
+}
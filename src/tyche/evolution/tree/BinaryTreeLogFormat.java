@@ -0,0 +1,122 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.tree;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Constants and variable-length integer encoding shared by BinaryTreeLogger and BinaryTreeLogReader.
+ *
+ * A binary tree log is a header followed by one record per sample:
+ * <pre>
+ * header:  magic "TYCHEBTL", int version, varint nodeCount, varint tipCount, varint germlineNum + 1 (0 if none),
+ *          byte flags, UTF name of the node types, tipCount x UTF taxon
+ * record:  byte RECORD or KEY_RECORD, varlong sample, varint root,
+ *          children block: varint count, count x (varint gap, varint left + 1, varint right + 1)
+ *          heights block:  varint count, count x (varint gap, double height)
+ *          types block (if HAS_TYPES):
+ *              key record:   byte bits, nodeCount zigzag types packed into bits each
+ *              other record: varint count, count x (varint gap, zigzag varint type)
+ *          rates block (if HAS_RATES): varint count, count x (varint gap, double or float rate)
+ * </pre>
+ * A block lists only the nodes whose entries changed since the previous record, except in key records, which list
+ * every node so that reading can start there. Node numbers in a block are increasing and stored as the gap from the
+ * previous one minus one, starting from -1, so a full block has gaps of 0.
+ */
+public final class BinaryTreeLogFormat {
+
+    public static final byte[] MAGIC = {'T', 'Y', 'C', 'H', 'E', 'B', 'T', 'L'};
+    public static final int VERSION = 1;
+
+    /**
+     * header flags
+     */
+    public static final int HAS_TYPES = 1;
+    public static final int HAS_RATES = 2;
+    public static final int FLOAT_RATES = 4;
+
+    /**
+     * record kinds
+     */
+    public static final int RECORD = 1;
+    public static final int KEY_RECORD = 2;
+
+    private BinaryTreeLogFormat() {
+    }
+
+    public static void writeVarInt(final DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    public static void writeVarLong(final DataOutput out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    public static int readVarInt(final DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    public static long readVarLong(final DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+
+    /**
+     * Map signed integers to unsigned ones so that small negative values stay small
+     */
+    public static int zigZag(final int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int unZigZag(final int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.tree;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static tyche.evolution.tree.BinaryTreeLogFormat.*;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Streaming reader for binary tree logs written by BinaryTreeLogger. Samples are read one at a time with next(), which
+ * applies the changes stored in the record to the state of the previous sample, so only one tree is held in memory.
+ * The state of the current sample is available by node number.
+ */
+public class BinaryTreeLogReader implements Closeable {
+
+    private final CountingInputStream counter;
+    private final DataInputStream in;
+
+    private final int nodeCount;
+    private final int tipCount;
+    private final int germlineNum;
+    private final boolean hasTypes;
+    private final boolean hasRates;
+    private final boolean floatRates;
+    private final String typesName;
+    private final String[] taxa;
+
+    /**
+     * the state of the current sample
+     */
+    private final TreeSnapshot snapshot;
+
+    /**
+     * whether a key record has been read, before which the state is incomplete
+     */
+    private boolean keyRead = false;
+
+    /**
+     * Open a binary tree log file and read its header
+     * @param fileName the name of the file
+     * @throws IOException if the file cannot be read or is not a binary tree log
+     */
+    public BinaryTreeLogReader(final String fileName) throws IOException {
+        this(new FileInputStream(fileName));
+    }
+
+    /**
+     * Read the header of a binary tree log
+     * @param stream the binary tree log
+     * @throws IOException if the stream cannot be read or is not a binary tree log
+     */
+    public BinaryTreeLogReader(final InputStream stream) throws IOException {
+        counter = new CountingInputStream(new BufferedInputStream(stream, 1 << 16));
+        in = new DataInputStream(counter);
+        for (byte b : MAGIC) {
+            if (in.readByte() != b) {
+                throw new IOException("Not a binary tree log");
+            }
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary tree log version " + version);
+        }
+        nodeCount = readVarInt(in);
+        tipCount = readVarInt(in);
+        germlineNum = readVarInt(in) - 1;
+        final int flags = in.readUnsignedByte();
+        hasTypes = (flags & HAS_TYPES) != 0;
+        hasRates = (flags & HAS_RATES) != 0;
+        floatRates = (flags & FLOAT_RATES) != 0;
+        typesName = in.readUTF();
+        taxa = new String[tipCount];
+        for (int i = 0; i < tipCount; i++) {
+            taxa[i] = in.readUTF();
+        }
+        snapshot = new TreeSnapshot(nodeCount, germlineNum, hasTypes ? typesName : null, hasRates);
+    }
+
+    /**
+     * Read the next sample
+     * @return true if a sample was read, false at the end of the log
+     * @throws IOException if the log cannot be read, is truncated inside a record, or doesn't start with a key record
+     */
+    public boolean next() throws IOException {
+        final int kind = in.read();
+        if (kind < 0) {
+            return false;
+        }
+        if (kind != RECORD && kind != KEY_RECORD) {
+            throw new IOException("Malformed binary tree log: unknown record kind " + kind);
+        }
+        if (kind == KEY_RECORD) {
+            keyRead = true;
+        } else if (!keyRead) {
+            throw new IOException("Malformed binary tree log: the first record is not a key record");
+        }
+        final int[] left = snapshot.left;
+        final int[] right = snapshot.right;
+        long sample = snapshot.getSample();
+        final int root;
+        try {
+            sample = readVarLong(in);
+            root = readVarInt(in);
+
+            int count = readVarInt(in);
+            for (int k = 0, nr = -1; k < count; k++) {
+                nr += readVarInt(in) + 1;
+                left[nr] = readVarInt(in) - 1;
+                right[nr] = readVarInt(in) - 1;
+            }
+            count = readVarInt(in);
+            for (int k = 0, nr = -1; k < count; k++) {
+                nr += readVarInt(in) + 1;
+                snapshot.heights[nr] = in.readDouble();
+            }
+            if (hasTypes) {
+                readTypes(kind == KEY_RECORD);
+            }
+            if (hasRates) {
+                count = readVarInt(in);
+                for (int k = 0, nr = -1; k < count; k++) {
+                    nr += readVarInt(in) + 1;
+                    snapshot.rates[nr] = floatRates ? in.readFloat() : in.readDouble();
+                }
+            }
+        } catch (EOFException e) {
+            throw new IOException("Binary tree log is truncated in sample " + sample);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Malformed binary tree log: node number out of range in sample " + sample);
+        }
+        if (root < 0 || root >= nodeCount) {
+            throw new IOException("Malformed binary tree log: root out of range in sample " + sample);
+        }
+        snapshot.setSample(sample, root);
+        return true;
+    }
+
+    /**
+     * Read the types block
+     */
+    private void readTypes(final boolean key) throws IOException {
+        final int[] types = snapshot.types;
+        if (key) {
+            final int bits = in.readUnsignedByte();
+            final long mask = (1L << bits) - 1;
+            long word = 0;
+            int available = 0;
+            for (int nr = 0; nr < nodeCount; nr++) {
+                if (bits == 0) {
+                    types[nr] = 0;
+                    continue;
+                }
+                while (available < bits) {
+                    word |= (long) in.readUnsignedByte() << available;
+                    available += 8;
+                }
+                types[nr] = unZigZag((int) (word & mask));
+                word >>>= bits;
+                available -= bits;
+            }
+            return;
+        }
+        final int count = readVarInt(in);
+        for (int k = 0, nr = -1; k < count; k++) {
+            nr += readVarInt(in) + 1;
+            types[nr] = unZigZag(readVarInt(in));
+        }
+    }
+
+    /**
+     * Get the subtree logged by GRTRootlessLogger: the subtree below the germline root without the germline, or the
+     * whole tree if there is no germline
+     * @return the node number of the root of the subtree
+     */
+    public int getMRCA() {
+        return snapshot.getMRCA();
+    }
+
+    /**
+     * Append the Newick string of a subtree of the current sample, in the same layout as GRTRootlessLogger
+     * @param buf the buffer to append to
+     * @param start the node number of the root of the subtree
+     * @param formatter the formatter for heights and rates, or null for full precision
+     */
+    public void appendNewick(final StringBuilder buf, final int start, final DecimalFormatter formatter) {
+        snapshot.appendNewick(buf, start, formatter);
+    }
+
+    /**
+     * Get the state of the current sample. The snapshot is updated in place by next().
+     * @return the current sample
+     */
+    public TreeSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Get the number of bytes read so far, which after next() is where the next record starts
+     * @return the position in the binary tree log
+     */
+    public long getPosition() {
+        return counter.getCount();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    public long getSample() {
+        return snapshot.getSample();
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getTipCount() {
+        return tipCount;
+    }
+
+    public String getTaxon(final int tipNr) {
+        return taxa[tipNr];
+    }
+
+    /**
+     * @return the node number of the germline tip, or -1 if the tree had no germline
+     */
+    public int getGermlineNum() {
+        return germlineNum;
+    }
+
+    public boolean hasTypes() {
+        return hasTypes;
+    }
+
+    public boolean hasRates() {
+        return hasRates;
+    }
+
+    /**
+     * @return whether the rates were stored as 32-bit floats
+     */
+    public boolean hasFloatRates() {
+        return floatRates;
+    }
+
+    public String getTypesName() {
+        return typesName;
+    }
+
+    public int getRoot() {
+        return snapshot.getRoot();
+    }
+
+    public int getLeft(final int nr) {
+        return snapshot.getLeft(nr);
+    }
+
+    public int getRight(final int nr) {
+        return snapshot.getRight(nr);
+    }
+
+    public int getParent(final int nr) {
+        return snapshot.getParent(nr);
+    }
+
+    public double getHeight(final int nr) {
+        return snapshot.getHeight(nr);
+    }
+
+    public int getType(final int nr) {
+        return snapshot.getType(nr);
+    }
+
+    public double getRate(final int nr) {
+        return snapshot.getRate(nr);
+    }
+
+    /**
+     * Counts the bytes read, to know where each record ends
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
@@ -0,0 +1,371 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.tree;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Citation;
+import beast.base.core.Description;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.Logger;
+import beast.base.inference.parameter.IntegerParameter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+
+import static tyche.evolution.tree.BinaryTreeLogFormat.*;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Logs a tree with its node types and branch rates to a compact binary file, in the format described in
+ * BinaryTreeLogFormat. Each sample only stores the children, heights, types and rates that changed since the previous
+ * sample, with a full key record every keyRecordEvery samples. The file can be read with BinaryTreeLogReader and
+ * converted to a Nexus tree log with BinaryTreeLogConverter.
+ * This logger writes its own file rather than to the logger it is placed in, so it should be given a logger of its own.
+ * When resuming, samples are appended to the existing file, starting with a key record.
+ */
+@Description("Logs a tree with node types and branch rates to a compact binary file, storing only what changed since the previous sample. " +
+        "Writes to its own fileName rather than to the logger it is in. Use tyche.evolution.tree.BinaryTreeLogConverter to convert the file to Nexus.")
+@Citation(value="Fielding, J. J., Wu, S., Melton, H. J., Fisk, N., du Plessis, L., & Hoehn, K. B. (2025).\n" +
+        "TyCHE enables time-resolved lineage tracing of heterogeneously-evolving populations.\n" +
+        "bioRxiv https://doi.org/10.1101/2025.10.21.683591 (2025) doi:10.1101/2025.10.21.683591.",
+        year = 2025, firstAuthorSurname = "Fielding", DOI="10.1101/2025.10.21.683591")
+public class BinaryTreeLogger extends BEASTObject implements Loggable {
+
+    /**
+     * input object for the tree to log
+     */
+    public Input<Tree> treeInput = new Input<>("tree", "tree to be logged", Input.Validate.REQUIRED);
+
+    /**
+     * input object for the node types to log
+     */
+    public Input<IntegerParameter> nodeTypesInput = new Input<>("nodeTypes", "node types to log with the tree, indexed by node number (optional)");
+
+    /**
+     * input object for the clock model whose branch rates to log
+     */
+    public Input<BranchRateModel.Base> clockModelInput = new Input<>("branchratemodel", "clock model whose branch rates to log with the tree (optional)");
+
+    /**
+     * input object for the name of the binary file
+     */
+    public Input<String> fileNameInput = new Input<>("fileName", "name of the binary tree log file to write", Input.Validate.REQUIRED);
+
+    /**
+     * input object for whether to store rates as floats
+     */
+    public Input<Boolean> quantizeRatesInput = new Input<>("quantizeRates", "whether to store branch rates as 32-bit floats instead of doubles", false);
+
+    /**
+     * input object for how often to write a full record
+     */
+    public Input<Integer> keyRecordEveryInput = new Input<>("keyRecordEvery", "write every node, rather than only changes, once every this many samples", 100);
+
+    private DataOutputStream out;
+    private boolean hasTypes;
+    private boolean hasRates;
+    private boolean floatRates;
+    private int keyRecordEvery;
+    private int nodeCount;
+    private long recordCount = 0;
+
+    /**
+     * what was written for each node by the previous record, indexed by node number
+     */
+    private int[] loggedLeft;
+    private int[] loggedRight;
+    private double[] loggedHeights;
+    private int[] loggedTypes;
+    private double[] loggedRates;
+
+    /**
+     * node numbers of the entries changed in the current record, and the current values
+     */
+    private int[] changed;
+    private int[] currentLeft;
+    private int[] currentRight;
+    private double[] currentRates;
+
+    /**
+     * Initialize and validate inputs
+     */
+    @Override
+    public void initAndValidate() {
+        hasTypes = nodeTypesInput.get() != null;
+        hasRates = clockModelInput.get() != null;
+        floatRates = quantizeRatesInput.get();
+        keyRecordEvery = keyRecordEveryInput.get();
+        if (keyRecordEvery < 1) {
+            throw new IllegalArgumentException("keyRecordEvery should be at least 1, not " + keyRecordEvery);
+        }
+    }
+
+    @Override
+    public void init(PrintStream printStream) {
+        Tree tree = treeInput.get();
+        nodeCount = tree.getNodeCount();
+        loggedLeft = new int[nodeCount];
+        loggedRight = new int[nodeCount];
+        loggedHeights = new double[nodeCount];
+        loggedTypes = new int[nodeCount];
+        loggedRates = new double[nodeCount];
+        changed = new int[nodeCount];
+        currentLeft = new int[nodeCount];
+        currentRight = new int[nodeCount];
+        currentRates = new double[nodeCount];
+        recordCount = 0;
+
+        int germlineNum = tree instanceof GermlineRootTree ? ((GermlineRootTree) tree).getGermlineNum() : -1;
+        File file = new File(fileNameInput.get());
+        if (Logger.FILE_MODE == Logger.LogFileMode.resume && file.exists() && file.length() > 0) {
+            // like the text loggers, carry on from the end of the existing log without writing the header again
+            try {
+                long end = findLogEnd(file, germlineNum);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(end);
+                }
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to resume binary tree log " + fileNameInput.get() + ": " + e.getMessage());
+            }
+            return;
+        }
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            writeVarInt(out, nodeCount);
+            writeVarInt(out, tree.getLeafNodeCount());
+            writeVarInt(out, germlineNum + 1);
+            out.writeByte((hasTypes ? HAS_TYPES : 0) | (hasRates ? HAS_RATES : 0) | (floatRates ? FLOAT_RATES : 0));
+            out.writeUTF(hasTypes ? nodeTypesInput.get().getID() : "");
+            Node[] nodes = tree.getNodesAsArray();
+            for (int i = 0; i < tree.getLeafNodeCount(); i++) {
+                String id = nodes[i].getID();
+                out.writeUTF(id != null ? id : Integer.toString(i + 1));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open binary tree log " + fileNameInput.get() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Check that an existing binary tree log was written for the same tree and values, and find the end of its last
+     * complete record, dropping a record that was only partly written
+     * @param file the existing binary tree log
+     * @param germlineNum the node number of the germline, or -1 if there is none
+     * @return the position after the last complete record
+     * @throws IOException if the file cannot be read or was written for another tree or other values
+     */
+    private long findLogEnd(File file, int germlineNum) throws IOException {
+        try (BinaryTreeLogReader reader = new BinaryTreeLogReader(file.getPath())) {
+            if (reader.getNodeCount() != nodeCount || reader.getTipCount() != treeInput.get().getLeafNodeCount()
+                    || reader.getGermlineNum() != germlineNum || reader.hasTypes() != hasTypes
+                    || reader.hasRates() != hasRates || reader.hasFloatRates() != floatRates) {
+                throw new IOException("the existing file was written for a different tree or different values");
+            }
+            long end = reader.getPosition();
+            while (true) {
+                try {
+                    if (!reader.next()) {
+                        break;
+                    }
+                } catch (IOException e) {
+                    Log.warning("Binary tree log " + fileNameInput.get() + " ends with an incomplete sample, which is dropped (" + e.getMessage() + ")");
+                    break;
+                }
+                end = reader.getPosition();
+            }
+            return end;
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream printStream) {
+        if (out == null) {
+            // a resumed logger doesn't initialise loggables whose header it has already written
+            init(printStream);
+        }
+        // make sure we get the current version of the inputs
+        Tree tree = (Tree) treeInput.get().getCurrent();
+        Node[] nodes = tree.getNodesAsArray();
+        if (nodes.length != nodeCount) {
+            throw new RuntimeException("Binary tree log " + fileNameInput.get() + " expected " + nodeCount + " nodes, not " + nodes.length);
+        }
+        IntegerParameter nodeTypes = hasTypes ? (IntegerParameter) nodeTypesInput.get().getCurrent() : null;
+        BranchRateModel.Base branchRateModel = clockModelInput.get();
+        boolean key = recordCount % keyRecordEvery == 0;
+        recordCount++;
+
+        try {
+            out.writeByte(key ? KEY_RECORD : RECORD);
+            writeVarLong(out, sample);
+            writeVarInt(out, tree.getRoot().getNr());
+
+            // children
+            int count = 0;
+            for (int nr = 0; nr < nodeCount; nr++) {
+                Node node = nodes[nr];
+                currentLeft[nr] = node.getLeft() == null ? -1 : node.getLeft().getNr();
+                currentRight[nr] = node.getRight() == null ? -1 : node.getRight().getNr();
+                if (key || currentLeft[nr] != loggedLeft[nr] || currentRight[nr] != loggedRight[nr]) {
+                    changed[count++] = nr;
+                }
+            }
+            writeVarInt(out, count);
+            for (int k = 0, previousNr = -1; k < count; k++) {
+                int nr = changed[k];
+                writeVarInt(out, nr - previousNr - 1);
+                writeVarInt(out, currentLeft[nr] + 1);
+                writeVarInt(out, currentRight[nr] + 1);
+                loggedLeft[nr] = currentLeft[nr];
+                loggedRight[nr] = currentRight[nr];
+                previousNr = nr;
+            }
+
+            // heights
+            count = 0;
+            for (int nr = 0; nr < nodeCount; nr++) {
+                if (key || Double.doubleToRawLongBits(nodes[nr].getHeight()) != Double.doubleToRawLongBits(loggedHeights[nr])) {
+                    changed[count++] = nr;
+                }
+            }
+            writeVarInt(out, count);
+            for (int k = 0, previousNr = -1; k < count; k++) {
+                int nr = changed[k];
+                writeVarInt(out, nr - previousNr - 1);
+                loggedHeights[nr] = nodes[nr].getHeight();
+                out.writeDouble(loggedHeights[nr]);
+                previousNr = nr;
+            }
+
+            if (hasTypes) {
+                writeTypes(nodeTypes, key);
+            }
+            if (hasRates) {
+                writeRates(nodes, branchRateModel, key);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write binary tree log " + fileNameInput.get() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write the types block, bit-packed in key records and as changes otherwise
+     */
+    private void writeTypes(IntegerParameter nodeTypes, boolean key) throws IOException {
+        int dimension = Math.min(nodeTypes.getDimension(), nodeCount);
+        if (key) {
+            int max = 0;
+            for (int nr = 0; nr < nodeCount; nr++) {
+                loggedTypes[nr] = nr < dimension ? nodeTypes.getValue(nr) : 0;
+                max |= zigZag(loggedTypes[nr]);
+            }
+            int bits = 32 - Integer.numberOfLeadingZeros(max);
+            out.writeByte(bits);
+            long word = 0;
+            int used = 0;
+            for (int nr = 0; nr < nodeCount && bits > 0; nr++) {
+                word |= (zigZag(loggedTypes[nr]) & 0xFFFFFFFFL) << used;
+                used += bits;
+                while (used >= 8) {
+                    out.writeByte((int) word);
+                    word >>>= 8;
+                    used -= 8;
+                }
+            }
+            if (used > 0) {
+                out.writeByte((int) word);
+            }
+            return;
+        }
+        int count = 0;
+        for (int nr = 0; nr < dimension; nr++) {
+            if (nodeTypes.getValue(nr) != loggedTypes[nr]) {
+                changed[count++] = nr;
+            }
+        }
+        writeVarInt(out, count);
+        for (int k = 0, previousNr = -1; k < count; k++) {
+            int nr = changed[k];
+            writeVarInt(out, nr - previousNr - 1);
+            loggedTypes[nr] = nodeTypes.getValue(nr);
+            writeVarInt(out, zigZag(loggedTypes[nr]));
+            previousNr = nr;
+        }
+    }
+
+    /**
+     * Write the rates block, with each rate read from the clock model once
+     */
+    private void writeRates(Node[] nodes, BranchRateModel.Base branchRateModel, boolean key) throws IOException {
+        int count = 0;
+        for (int nr = 0; nr < nodeCount; nr++) {
+            double rate = branchRateModel.getRateForBranch(nodes[nr]);
+            if (floatRates) {
+                rate = (float) rate;
+            }
+            currentRates[nr] = rate;
+            if (key || Double.doubleToRawLongBits(rate) != Double.doubleToRawLongBits(loggedRates[nr])) {
+                changed[count++] = nr;
+            }
+        }
+        writeVarInt(out, count);
+        for (int k = 0, previousNr = -1; k < count; k++) {
+            int nr = changed[k];
+            writeVarInt(out, nr - previousNr - 1);
+            loggedRates[nr] = currentRates[nr];
+            if (floatRates) {
+                out.writeFloat((float) currentRates[nr]);
+            } else {
+                out.writeDouble(currentRates[nr]);
+            }
+            previousNr = nr;
+        }
+    }
+
+    @Override
+    public void close(PrintStream printStream) {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close binary tree log " + fileNameInput.get() + ": " + e.getMessage());
+        }
+        out = null;
+    }
+}
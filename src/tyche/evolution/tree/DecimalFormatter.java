@@ -0,0 +1,137 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.tree;
+
+import java.math.RoundingMode;
+import java.text.DecimalFormat;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Formats doubles the same way as a DecimalFormat("#.###...") with HALF_UP rounding, as used by the tree loggers for
+ * decimalPlaces, but appends the digits straight to a StringBuilder without allocating. Values are scaled and rounded
+ * with long arithmetic. Values whose scaled value is too close to a tie for the double product to decide the rounding,
+ * values too large for the product to be exact, NaN and infinities are passed to a DecimalFormat.
+ */
+public class DecimalFormatter {
+
+    /**
+     * powers of ten that are exact as both longs and doubles
+     */
+    private static final long[] POWERS_OF_TEN = {
+            1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L, 100000000L, 1000000000L,
+            10000000000L, 100000000000L, 1000000000000L, 10000000000000L, 100000000000000L, 1000000000000000L
+    };
+
+    /**
+     * scaled values must be below this for the product to be accurate to well within one unit
+     */
+    private static final double MAX_SCALED = 1125899906842624.0;
+
+    private final int decimalPlaces;
+    private final long scale;
+    private final DecimalFormat fallback;
+
+    /**
+     * digits of the value being formatted, least significant first
+     */
+    private final char[] digits = new char[20];
+
+    /**
+     * @param decimalPlaces the largest number of digits after the decimal point, at least 0
+     */
+    public DecimalFormatter(final int decimalPlaces) {
+        if (decimalPlaces < 0) {
+            throw new IllegalArgumentException("decimalPlaces should be at least 0, not " + decimalPlaces);
+        }
+        this.decimalPlaces = decimalPlaces;
+        scale = decimalPlaces < POWERS_OF_TEN.length ? POWERS_OF_TEN[decimalPlaces] : 0;
+        // just new DecimalFormat("#.######") (with dp time '#' after the decimal)
+        fallback = new DecimalFormat("#." + new String(new char[decimalPlaces]).replace('\0', '#'));
+        fallback.setRoundingMode(RoundingMode.HALF_UP);
+    }
+
+    /**
+     * Append a formatted double
+     * @param buf the buffer to append to
+     * @param d   the value
+     */
+    public void append(final StringBuilder buf, final double d) {
+        final double abs = Math.abs(d);
+        final double scaled = abs * scale;
+        if (scale == 0 || !(scaled < MAX_SCALED)) {
+            // also NaN and infinities
+            buf.append(fallback.format(d));
+            return;
+        }
+        final long floor = (long) scaled;
+        final double fraction = scaled - floor;
+        if (Math.abs(fraction - 0.5) <= 2 * Math.ulp(scaled)) {
+            // too close to a tie for the product to say which way DecimalFormat rounds
+            buf.append(fallback.format(d));
+            return;
+        }
+        final long rounded = fraction > 0.5 ? floor + 1 : floor;
+
+        // like DecimalFormat, keep the sign of negative values that round to zero
+        if (Double.doubleToRawLongBits(d) < 0) {
+            buf.append('-');
+        }
+        appendDigits(buf, rounded / scale);
+        long fractionDigits = rounded % scale;
+        if (decimalPlaces == 0) {
+            // DecimalFormat shows the decimal point of "#."
+            buf.append('.');
+        } else if (fractionDigits != 0) {
+            int places = decimalPlaces;
+            while (fractionDigits % 10 == 0) {
+                fractionDigits /= 10;
+                places--;
+            }
+            buf.append('.');
+            int count = 0;
+            for (int i = 0; i < places; i++) {
+                digits[count++] = (char) ('0' + fractionDigits % 10);
+                fractionDigits /= 10;
+            }
+            while (count > 0) {
+                buf.append(digits[--count]);
+            }
+        }
+    }
+
+    /**
+     * Append the digits of a non-negative long
+     */
+    private void appendDigits(final StringBuilder buf, long value) {
+        int count = 0;
+        do {
+            digits[count++] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        while (count > 0) {
+            buf.append(digits[--count]);
+        }
+    }
+}
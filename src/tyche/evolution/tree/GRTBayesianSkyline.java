@@ -23,9 +23,70 @@ package tyche.evolution.tree;
 import beast.base.evolution.tree.TreeIntervals;
 import beast.base.evolution.tree.coalescent.BayesianSkyline;
 import beast.base.inference.parameter.IntegerParameter;
+import beast.base.inference.parameter.RealParameter;
 
+/**
+ * Bayesian skyline for germline root trees. With GRTIntervals the likelihood is calculated from cached sums per group:
+ * for a constant population size N_g in group g, the log likelihood is the sum over groups of
+ * -S_g / N_g - c_g * log(N_g), where S_g is the sum of (lineages choose 2) * interval length over the intervals in the
+ * group and c_g is the number of coalescent events in it. Only the group sums touched by changed intervals or changed
+ * group boundaries are recalculated, and population size changes only need the final sum over groups.
+ * If any interval contains more than one coalescent event or a coalescent event of zero length, the calculation falls
+ * back to BayesianSkyline, whose assignment of those events to groups depends on exact time comparisons.
+ */
 public class GRTBayesianSkyline extends BayesianSkyline {
 
+    /**
+     * cached copy of each interval's length, lineage count and number of coalescent events, the number of coalescent
+     * events before it, and its contribution to its group sum
+     */
+    protected double[] widths;
+    protected int[] lineages;
+    protected int[] events;
+    protected int[] eventsBefore;
+    protected double[] areas;
+    protected double[] storedWidths;
+    protected int[] storedLineages;
+    protected int[] storedEvents;
+    protected int[] storedEventsBefore;
+    protected double[] storedAreas;
+    protected int cachedIntervalCount = 0;
+    protected int storedCachedIntervalCount = 0;
+
+    /**
+     * number of intervals the fast calculation can't handle (more than one event, or a coalescent event of zero length)
+     */
+    protected int irregularCount = 0;
+    protected int storedIrregularCount = 0;
+
+    /**
+     * the total number of coalescent events
+     */
+    protected int totalEvents = 0;
+    protected int storedTotalEvents = 0;
+
+    /**
+     * cached cumulative group sizes, and the sum and number of coalescent events of each group
+     */
+    protected int[] groupEnds;
+    protected double[] groupSums;
+    protected int[] groupCounts;
+    protected int[] storedGroupEnds;
+    protected double[] storedGroupSums;
+    protected int[] storedGroupCounts;
+
+    /**
+     * the version of the intervals the cache was built from
+     */
+    protected long cachedVersion = -1;
+    protected long storedCachedVersion = -1;
+
+    /**
+     * whether the cache is consistent with cachedVersion of the intervals
+     */
+    protected boolean cacheKnown = false;
+    protected boolean storedCacheKnown = false;
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
@@ -61,4 +122,270 @@ public class GRTBayesianSkyline extends BayesianSkyline {
             prepare();
         }
     }
+
+    @Override
+    public double calculateLogP() {
+        TreeIntervals intervals = treeIntervalsInput.get();
+        if (!(intervals instanceof GRTIntervals) || !((GRTIntervals) intervals).isIncremental()) {
+            return super.calculateLogP();
+        }
+        GRTIntervals grtIntervals = (GRTIntervals) intervals;
+        RealParameter popSizes = popSizeParamInput.get();
+        IntegerParameter groupSizes = groupSizeParamInput.get();
+        if (popSizes.getDimension() != groupSizes.getDimension()) {
+            cacheKnown = false;
+            return super.calculateLogP();
+        }
+
+        updateIntervals(grtIntervals);
+        if (irregularCount > 0) {
+            return super.calculateLogP();
+        }
+
+        logP = 0.0;
+        for (int g = 0; g < groupEnds.length; g++) {
+            final double popSize = popSizes.getValue(g);
+            logP -= groupSums[g] / popSize;
+            if (groupCounts[g] > 0) {
+                logP -= groupCounts[g] * Math.log(popSize);
+            }
+        }
+        return logP;
+    }
+
+    /**
+     * Bring the cached intervals, group boundaries and group sums up to date
+     * @param grtIntervals the intervals of the germline root tree
+     */
+    protected void updateIntervals(GRTIntervals grtIntervals) {
+        final IntegerParameter groupSizes = groupSizeParamInput.get();
+        final int groupCount = groupSizes.getDimension();
+        final int from = cacheKnown ? grtIntervals.getRecalculatedFrom(cachedVersion) : 0;
+        final int intervalCount = grtIntervals.getIntervalCount();
+        final long version = grtIntervals.getIntervalsVersion();
+
+        boolean full = !cacheKnown || intervalCount != cachedIntervalCount || groupEnds.length != groupCount;
+        if (widths == null || widths.length < intervalCount) {
+            widths = new double[intervalCount];
+            lineages = new int[intervalCount];
+            events = new int[intervalCount];
+            eventsBefore = new int[intervalCount];
+            areas = new double[intervalCount];
+            storedWidths = new double[intervalCount];
+            storedLineages = new int[intervalCount];
+            storedEvents = new int[intervalCount];
+            storedEventsBefore = new int[intervalCount];
+            storedAreas = new double[intervalCount];
+            storedCacheKnown = false;
+            full = true;
+        }
+        if (groupEnds == null || groupEnds.length != groupCount) {
+            groupEnds = new int[groupCount];
+            groupSums = new double[groupCount];
+            groupCounts = new int[groupCount];
+            storedGroupEnds = new int[groupCount];
+            storedGroupSums = new double[groupCount];
+            storedGroupCounts = new int[groupCount];
+            storedCacheKnown = false;
+            full = true;
+        }
+
+        // groups whose sums need recalculating
+        int firstGroup = groupCount;
+        int lastGroup = -1;
+
+        // update the group boundaries
+        int groupEnd = 0;
+        for (int g = 0; g < groupCount; g++) {
+            groupEnd += groupSizes.getValue(g);
+            if (full || groupEnd != groupEnds[g]) {
+                groupEnds[g] = groupEnd;
+                // the groups on both sides of a moved boundary change
+                firstGroup = Math.min(firstGroup, g);
+                lastGroup = Math.max(lastGroup, Math.min(g + 1, groupCount - 1));
+            }
+        }
+
+        // update the cached intervals from the first one that may have changed
+        final int start = full ? 0 : from;
+        if (full) {
+            irregularCount = 0;
+        }
+        int eventCount = start == 0 ? 0 : eventsBefore[start - 1] + events[start - 1];
+        for (int j = start; j < intervalCount; j++) {
+            final double width = grtIntervals.getInterval(j);
+            final int lineageCount = grtIntervals.getLineageCount(j);
+            // sampling intervals have negative coalescent events
+            final int eventsInInterval = Math.max(0, grtIntervals.getCoalescentEvents(j));
+            if (full || width != widths[j] || lineageCount != lineages[j] || eventsInInterval != events[j] || eventCount != eventsBefore[j]) {
+                if (!full) {
+                    if (isIrregular(widths[j], events[j])) {
+                        irregularCount--;
+                    }
+                    // groups whose boundaries are unchanged have the same members under the old and new boundaries,
+                    // and groups whose boundaries changed are recalculated anyway
+                    final int oldGroup = getGroup(eventsBefore[j]);
+                    final int newGroup = getGroup(eventCount);
+                    firstGroup = Math.min(firstGroup, Math.min(oldGroup, newGroup));
+                    lastGroup = Math.max(lastGroup, Math.max(oldGroup, newGroup));
+                }
+                widths[j] = width;
+                lineages[j] = lineageCount;
+                events[j] = eventsInInterval;
+                eventsBefore[j] = eventCount;
+                areas[j] = 0.5 * lineageCount * (lineageCount - 1) * width;
+                if (isIrregular(width, eventsInInterval)) {
+                    irregularCount++;
+                }
+            }
+            eventCount += eventsInInterval;
+        }
+        cachedIntervalCount = intervalCount;
+        totalEvents = eventCount;
+
+        if (full) {
+            firstGroup = 0;
+            lastGroup = groupCount - 1;
+        }
+        for (int g = firstGroup; g <= lastGroup; g++) {
+            updateGroup(g);
+        }
+
+        cachedVersion = version;
+        cacheKnown = true;
+    }
+
+    /**
+     * Whether an interval can't be handled by the cached calculation
+     * @param width  the length of the interval
+     * @param events the number of coalescent events at the end of the interval
+     * @return true if the interval has more than one event, or a coalescent event of zero length
+     */
+    private static boolean isIrregular(double width, int events) {
+        return events > 1 || (events == 1 && width == 0.0);
+    }
+
+    /**
+     * Get the group whose population size applies to intervals after a number of coalescent events, as
+     * BayesianSkyline.getPopSize does
+     * @param eventCount the number of coalescent events before the interval
+     * @return the group index
+     */
+    protected int getGroup(int eventCount) {
+        // the number of groups that end at or before this event count
+        int low = 0;
+        int high = groupEnds.length;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (groupEnds[mid] <= eventCount) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return Math.min(low, groupEnds.length - 1);
+    }
+
+    /**
+     * Get the first event count that belongs to a group
+     * @param g the group index
+     * @return the number of coalescent events before the group starts
+     */
+    private int groupLowerEvent(int g) {
+        return g == 0 ? 0 : groupEnds[g - 1];
+    }
+
+    /**
+     * Recalculate the sum and number of coalescent events of a group from the cached intervals
+     * @param g the group index
+     */
+    protected void updateGroup(int g) {
+        final int lowerEvent = groupLowerEvent(g);
+        final int upperEvent = (g == groupEnds.length - 1) ? Integer.MAX_VALUE : groupEnds[g];
+        final int first = lowerBound(lowerEvent);
+        final int last = lowerBound(upperEvent);
+        double sum = 0.0;
+        for (int j = first; j < last; j++) {
+            sum += areas[j];
+        }
+        groupSums[g] = sum;
+        groupCounts[g] = Math.max(0, Math.min(upperEvent, totalEvents) - Math.min(lowerEvent, totalEvents));
+    }
+
+    /**
+     * Find the first cached interval with at least a given number of coalescent events before it
+     * @param eventCount the number of coalescent events
+     * @return the index of the interval, or the interval count if there is none
+     */
+    private int lowerBound(int eventCount) {
+        int low = 0;
+        int high = cachedIntervalCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (eventsBefore[mid] < eventCount) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public void store() {
+        if (cacheKnown) {
+            System.arraycopy(widths, 0, storedWidths, 0, cachedIntervalCount);
+            System.arraycopy(lineages, 0, storedLineages, 0, cachedIntervalCount);
+            System.arraycopy(events, 0, storedEvents, 0, cachedIntervalCount);
+            System.arraycopy(eventsBefore, 0, storedEventsBefore, 0, cachedIntervalCount);
+            System.arraycopy(areas, 0, storedAreas, 0, cachedIntervalCount);
+            System.arraycopy(groupEnds, 0, storedGroupEnds, 0, groupEnds.length);
+            System.arraycopy(groupSums, 0, storedGroupSums, 0, groupSums.length);
+            System.arraycopy(groupCounts, 0, storedGroupCounts, 0, groupCounts.length);
+        }
+        storedCachedIntervalCount = cachedIntervalCount;
+        storedIrregularCount = irregularCount;
+        storedTotalEvents = totalEvents;
+        storedCachedVersion = cachedVersion;
+        storedCacheKnown = cacheKnown;
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        if (storedCacheKnown) {
+            double[] tmp = widths;
+            widths = storedWidths;
+            storedWidths = tmp;
+            tmp = areas;
+            areas = storedAreas;
+            storedAreas = tmp;
+            tmp = groupSums;
+            groupSums = storedGroupSums;
+            storedGroupSums = tmp;
+            int[] tmpInts = lineages;
+            lineages = storedLineages;
+            storedLineages = tmpInts;
+            tmpInts = events;
+            events = storedEvents;
+            storedEvents = tmpInts;
+            tmpInts = eventsBefore;
+            eventsBefore = storedEventsBefore;
+            storedEventsBefore = tmpInts;
+            tmpInts = groupEnds;
+            groupEnds = storedGroupEnds;
+            storedGroupEnds = tmpInts;
+            tmpInts = groupCounts;
+            groupCounts = storedGroupCounts;
+            storedGroupCounts = tmpInts;
+            cachedIntervalCount = storedCachedIntervalCount;
+            irregularCount = storedIrregularCount;
+            totalEvents = storedTotalEvents;
+            cachedVersion = storedCachedVersion;
+            cacheKnown = true;
+        } else {
+            cacheKnown = false;
+        }
+        super.restore();
+    }
 }
@@ -25,12 +25,83 @@ import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TreeIntervals;
 import beast.base.util.HeapSort;
 
+import java.util.Arrays;
 import java.util.List;
 
 public class GRTIntervals extends TreeIntervals {
 
     protected boolean isGRT = false;
 
+    /**
+     * node numbers of the events below the mrca, sorted by height, and their heights
+     */
+    protected int[] eventNodeNums;
+    protected double[] eventHeights;
+    protected int[] storedEventNodeNums;
+    protected double[] storedEventHeights;
+
+    /**
+     * position of each event in the event order, indexed by node number, or -1 for nodes that are not events
+     */
+    protected int[] eventPositions;
+
+    /**
+     * number of children and node number of each event in pre-order, only used while sorting
+     */
+    protected int[] eventChildCounts;
+    protected int[] preOrderNums;
+
+    /**
+     * for each position in the event order, whether a group of simultaneous events starts there, and if so the
+     * interval count, lineage count and interval start time at the start of the group
+     */
+    protected boolean[] groupStarts;
+    protected int[] groupIntervalCounts;
+    protected int[] groupLineCounts;
+    protected double[] groupStartTimes;
+    protected boolean[] storedGroupStarts;
+    protected int[] storedGroupIntervalCounts;
+    protected int[] storedGroupLineCounts;
+    protected double[] storedGroupStartTimes;
+
+    /**
+     * the mrca and the number of events the event order was built for
+     */
+    protected int eventMrcaNum = -1;
+    protected int storedEventMrcaNum = -1;
+    protected int eventCount = 0;
+
+    /**
+     * the version of the tree the event heights were last brought up to date with, or -1 if that is not known
+     */
+    protected long eventsTreeVersion = -1;
+    protected long storedEventsTreeVersion = -1;
+
+    /**
+     * the first position in the event order from which the events or group records may differ from the stored ones
+     */
+    protected int changedFrom = 0;
+
+    /**
+     * whether the event order and group records are consistent with the intervals, and can be updated incrementally
+     */
+    protected boolean eventsKnown = false;
+    protected boolean storedEventsKnown = false;
+    protected boolean storedIntervalsKnown = false;
+
+    /**
+     * whether the lists of lineages added and removed in each interval are up to date
+     */
+    protected boolean lineagesKnown = false;
+
+    /**
+     * incremented every time the intervals of a germline root tree are recalculated, with the first interval that was
+     * rewritten by the latest recalculation, so that consumers can update only what changed
+     */
+    protected long intervalsVersion = 0;
+    protected long storedIntervalsVersion = 0;
+    protected int recalculatedFrom = 0;
+
     @Override
     public void initAndValidate() {
         super.initAndValidate();
@@ -58,6 +129,31 @@ public class GRTIntervals extends TreeIntervals {
         }
     }
 
+    /**
+     * extract coalescent times and tip information into array times from the primitive mirror of a germline root tree,
+     * without walking the nodes.
+     *
+     * @param tree        the germline root tree
+     * @param mrca        the node representing the mrca
+     * @param times       the times of the nodes in the beast.tree
+     * @param childCounts the number of children of each node
+     * @param indices     the node number of each node
+     */
+    protected static void collectGRTTimes(GermlineRootTree tree, Node mrca, double[] times, int[] childCounts, int[] indices) {
+        final Node[] preOrder = tree.getPreOrder();
+        final double[] heights = tree.getNodeHeights();
+        final int[] leftNums = tree.getLeftNums();
+        final int start = tree.getPreOrderPosition(mrca.getNr());
+        final int count = tree.getSubtreeSize(mrca.getNr());
+
+        for (int i = 0; i < count; i++) {
+            final int nodeNum = preOrder[start + i].getNr();
+            times[i] = heights[nodeNum];
+            childCounts[i] = leftNums[nodeNum] < 0 ? 0 : 2;
+            indices[i] = nodeNum;
+        }
+    }
+
     public int getTotalCoalescentEvents() {
         Tree tree = treeInput.get();
         int allEvents = tree.getInternalNodeCount();
@@ -69,39 +165,41 @@ public class GRTIntervals extends TreeIntervals {
         return allEvents;
     }
 
+    /**
+     * Calculate the intervals of a germline root tree. Event order is kept between calls: the first time (or when the
+     * mrca changes) the events are sorted by height, and afterwards only the events whose heights changed are moved to
+     * their new place by local reinsertion, looking them up from the nodes the tree lists as changed where it can. Intervals are then recalculated from the first group of events that was
+     * affected, resuming from the lineage count recorded there, so events and intervals below the change are untouched.
+     * Lineage lists are only rebuilt when asked for.
+     * @param tree the germline root tree
+     */
+    @SuppressWarnings("unchecked")
     protected void calculateGRTIntervals(GermlineRootTree tree) {
         // let's get the proper mrca:
         Node root = tree.getRoot();
-        Node mrca;
-        Node left = root.getLeft();
-        Node right = root.getRight();
-        if (left.getID() != null && left.getID().toUpperCase().contains("germline".toUpperCase())) {
-            mrca = right;
-        } else if (right.getID() != null && right.getID().toUpperCase().contains("germline".toUpperCase())) {
-            mrca = left;
-        } else {
+        Node mrca = tree.getMRCA();
+        if (mrca == root) {
             if (tree.getGermlineNum() > 0) {
                 throw new IllegalArgumentException("Germline Root Tree not properly configured.");
             }
-            mrca = root;
 //            System.out.println("we're here");
 //            super.calculateIntervals();
 //            return;
 //            throw new IllegalArgumentException("Germline Root Tree not properly configured.");
         }
 
-        final int nodeCount = mrca.getNodeCount();
-
-        times = new double[nodeCount];
-        int[] childCounts = new int[nodeCount];
-
-        int[] treeIndices = new int[nodeCount];
-
-        collectGRTTimes(mrca, times, childCounts, treeIndices);
-
-        indices = new int[nodeCount];
+        final int mrcaNum = mrca.getNr();
+        final int nodeCount = tree.getSubtreeSize(mrcaNum);
+        final double[] heights = tree.getNodeHeights();
 
-        HeapSort.sort(times, indices);
+        int firstChanged;
+        if (!eventsKnown || mrcaNum != eventMrcaNum || nodeCount != eventCount) {
+            sortEvents(tree, mrca, nodeCount);
+            firstChanged = 0;
+        } else {
+            firstChanged = reorderEvents(tree, heights);
+        }
+        changedFrom = Math.min(changedFrom, firstChanged);
 
         if (intervals == null || intervals.length != nodeCount) {
             intervals = new double[nodeCount];
@@ -112,56 +210,247 @@ public class GRTIntervals extends TreeIntervals {
 
             storedIntervals = new double[nodeCount];
             storedLineageCounts = new int[nodeCount];
+            firstChanged = 0;
+        }
 
-        } else {
-            for (List<Node> l : lineagesAdded) {
-                if (l != null) {
-                    l.clear();
+        if (firstChanged < nodeCount) {
+            calculateIntervalsFrom(tree, firstChanged, false);
+            lineagesKnown = false;
+            intervalsVersion++;
+        }
+        eventsKnown = true;
+        eventsTreeVersion = tree.getVersion();
+        intervalsKnown = true;
+    }
+
+    /**
+     * Collect the events below the mrca and sort them by height, (re)allocating the event arrays if needed
+     * @param tree      the germline root tree
+     * @param mrca      the node representing the mrca
+     * @param nodeCount the number of nodes below and including the mrca
+     */
+    protected void sortEvents(GermlineRootTree tree, Node mrca, int nodeCount) {
+        if (eventNodeNums == null || eventNodeNums.length != nodeCount) {
+            times = new double[nodeCount];
+            indices = new int[nodeCount];
+            eventChildCounts = new int[nodeCount];
+            preOrderNums = new int[nodeCount];
+            eventNodeNums = new int[nodeCount];
+            eventHeights = new double[nodeCount];
+            groupStarts = new boolean[nodeCount];
+            groupIntervalCounts = new int[nodeCount];
+            groupLineCounts = new int[nodeCount];
+            groupStartTimes = new double[nodeCount];
+            storedEventNodeNums = new int[nodeCount];
+            storedEventHeights = new double[nodeCount];
+            storedGroupStarts = new boolean[nodeCount];
+            storedGroupIntervalCounts = new int[nodeCount];
+            storedGroupLineCounts = new int[nodeCount];
+            storedGroupStartTimes = new double[nodeCount];
+            storedEventsKnown = false;
+        }
+        if (eventPositions == null || eventPositions.length != tree.getNodeCount()) {
+            eventPositions = new int[tree.getNodeCount()];
+        }
+        Arrays.fill(eventPositions, -1);
+
+        collectGRTTimes(tree, mrca, times, eventChildCounts, preOrderNums);
+
+        HeapSort.sort(times, indices);
+
+        for (int i = 0; i < nodeCount; i++) {
+            eventNodeNums[i] = preOrderNums[indices[i]];
+            eventHeights[i] = times[indices[i]];
+            eventPositions[eventNodeNums[i]] = i;
+        }
+
+        eventMrcaNum = mrca.getNr();
+        eventCount = nodeCount;
+        changedFrom = 0;
+    }
+
+    /**
+     * Bring the event heights up to date and restore the order of the events by local reinsertion. If the tree lists
+     * every node changed since the event heights were last brought up to date, only those nodes are looked at,
+     * otherwise the height of every event is checked.
+     * @param tree    the germline root tree
+     * @param heights the node heights, indexed by node number
+     * @return the first position in the event order whose event or height changed, or the number of events if
+     * nothing changed
+     */
+    protected int reorderEvents(GermlineRootTree tree, double[] heights) {
+        if (!tree.knowsChangedNodes() || eventsTreeVersion < tree.getChangedNodesVersion()
+                || eventPositions.length != heights.length) {
+            return reorderAllEvents(heights);
+        }
+        int firstChanged = eventCount;
+        for (int k = 0; k < tree.getChangedNodeCount(); k++) {
+            final int nodeNum = tree.getChangedNode(k).getNr();
+            // the germline and the root are not events
+            if (nodeNum < 0 || nodeNum >= eventPositions.length || eventPositions[nodeNum] < 0) {
+                continue;
+            }
+            firstChanged = Math.min(firstChanged, moveEvent(eventPositions[nodeNum], heights[nodeNum]));
+        }
+        return firstChanged;
+    }
+
+    /**
+     * Give one event its new height and move it to its place in the event order, which stays sorted by the event
+     * heights as they are recorded
+     * @param position the position of the event in the event order
+     * @param height   the new height of the event
+     * @return the first position in the event order that changed, or the number of events if the height is the same
+     */
+    protected int moveEvent(int position, double height) {
+        if (height == eventHeights[position]) {
+            return eventCount;
+        }
+        final int nodeNum = eventNodeNums[position];
+        int j = position;
+        while (j > 0 && eventHeights[j - 1] > height) {
+            eventHeights[j] = eventHeights[j - 1];
+            eventNodeNums[j] = eventNodeNums[j - 1];
+            eventPositions[eventNodeNums[j]] = j;
+            j--;
+        }
+        while (j < eventCount - 1 && eventHeights[j + 1] < height) {
+            eventHeights[j] = eventHeights[j + 1];
+            eventNodeNums[j] = eventNodeNums[j + 1];
+            eventPositions[eventNodeNums[j]] = j;
+            j++;
+        }
+        eventHeights[j] = height;
+        eventNodeNums[j] = nodeNum;
+        eventPositions[nodeNum] = j;
+        return Math.min(position, j);
+    }
+
+    /**
+     * Bring the height of every event up to date and restore the order of the events by local reinsertion
+     * @param heights the node heights, indexed by node number
+     * @return the first position in the event order whose event or height changed, or the number of events if
+     * nothing changed
+     */
+    protected int reorderAllEvents(double[] heights) {
+        final int nodeCount = eventCount;
+        int firstChanged = nodeCount;
+        for (int i = 0; i < nodeCount; i++) {
+            final double height = heights[eventNodeNums[i]];
+            if (height != eventHeights[i]) {
+                eventHeights[i] = height;
+                if (i < firstChanged) {
+                    firstChanged = i;
                 }
             }
-            for (List<Node> l : lineagesRemoved) {
-                if (l != null) {
-                    l.clear();
+        }
+        if (firstChanged == nodeCount) {
+            return nodeCount;
+        }
+
+        // insertion sort, which only moves events that are out of order
+        for (int i = Math.max(firstChanged, 1); i < nodeCount; i++) {
+            final double height = eventHeights[i];
+            if (height < eventHeights[i - 1]) {
+                final int nodeNum = eventNodeNums[i];
+                int j = i;
+                while (j > 0 && eventHeights[j - 1] > height) {
+                    eventHeights[j] = eventHeights[j - 1];
+                    eventNodeNums[j] = eventNodeNums[j - 1];
+                    j--;
+                }
+                eventHeights[j] = height;
+                eventNodeNums[j] = nodeNum;
+                if (j < firstChanged) {
+                    firstChanged = j;
                 }
             }
         }
+        for (int i = firstChanged; i < nodeCount; i++) {
+            eventPositions[eventNodeNums[i]] = i;
+        }
+        return firstChanged;
+    }
+
+    /**
+     * Recalculate the intervals from the group of events that contains the event before the first changed position.
+     * Everything before that group is unaffected by the change, so its interval count, lineage count and start time
+     * are picked up from what was recorded when it was last calculated.
+     * @param tree           the germline root tree
+     * @param firstChanged   the first position in the event order whose event or height changed
+     * @param recordLineages whether to record the lineages added and removed in each interval, which requires
+     *                       starting from the first event
+     */
+    protected void calculateIntervalsFrom(GermlineRootTree tree, int firstChanged, boolean recordLineages) {
+        final int nodeCount = eventCount;
+        final int[] leftNums = tree.getLeftNums();
 
-        // start is the time of the first tip
-        double start = times[indices[0]];
-        int numLines = 0;
         int nodeNo = 0;
-        intervalCount = 0;
+        if (!recordLineages && firstChanged > 0) {
+            nodeNo = firstChanged - 1;
+            while (!groupStarts[nodeNo]) {
+                nodeNo--;
+            }
+        }
+
+        if (!recordLineages) {
+            changedFrom = Math.min(changedFrom, nodeNo);
+        }
+
+        double start;
+        int numLines;
+        if (nodeNo == 0) {
+            // start is the time of the first tip
+            start = eventHeights[0];
+            numLines = 0;
+            intervalCount = 0;
+            recalculatedFrom = 0;
+        } else {
+            start = groupStartTimes[nodeNo];
+            numLines = groupLineCounts[nodeNo];
+            intervalCount = groupIntervalCounts[nodeNo];
+            recalculatedFrom = intervalCount;
+        }
+
         while (nodeNo < nodeCount) {
 
+            final int groupStart = nodeNo;
+            groupStarts[nodeNo] = true;
+            groupStartTimes[nodeNo] = start;
+            groupLineCounts[nodeNo] = numLines;
+            groupIntervalCounts[nodeNo] = intervalCount;
+
             int lineagesRemoved = 0;
             int lineagesAdded = 0;
 
-            double finish = times[indices[nodeNo]];
+            double finish = eventHeights[nodeNo];
             double next;
 
             do {
-                final int childIndex = indices[nodeNo];
-                final int childTreeIndex = treeIndices[childIndex];
-                final int childCount = childCounts[childIndex];
+                final int childTreeIndex = eventNodeNums[nodeNo];
+                final boolean isTip = leftNums[childTreeIndex] < 0;
+                if (nodeNo != groupStart) {
+                    groupStarts[nodeNo] = false;
+                }
                 // don't use nodeNo from here on in do loop
                 nodeNo += 1;
-                if (childCount == 0) {
-                    addLineage(intervalCount, tree.getNode(childTreeIndex));
+                if (isTip) {
+                    if (recordLineages) {
+                        addLineage(intervalCount, tree.getNode(childTreeIndex));
+                    }
                     lineagesAdded += 1;
                 } else {
-                    lineagesRemoved += (childCount - 1);
-
-                    // record removed lineages
-                    final Node parent = tree.getNode(childTreeIndex);
-                    //assert childCounts[indices[nodeNo]] == beast.tree.getChildCount(parent);
-                    //for (int j = 0; j < lineagesRemoved + 1; j++) {
-                    for (int j = 0; j < childCount; j++) {
-                        Node child = j == 0 ? parent.getLeft() : parent.getRight();
-                        removeLineage(intervalCount, child);
-                    }
+                    lineagesRemoved += 1;
+
+                    if (recordLineages) {
+                        // record removed lineages
+                        final Node parent = tree.getNode(childTreeIndex);
+                        removeLineage(intervalCount, parent.getLeft());
+                        removeLineage(intervalCount, parent.getRight());
 
-                    // record added lineages
-                    addLineage(intervalCount, parent);
+                        // record added lineages
+                        addLineage(intervalCount, parent);
+                    }
                     // no mix of removed lineages when 0 th
                     if (multifurcationLimit == 0.0) {
                         break;
@@ -169,7 +458,7 @@ public class GRTIntervals extends TreeIntervals {
                 }
 
                 if (nodeNo < nodeCount) {
-                    next = times[indices[nodeNo]];
+                    next = eventHeights[nodeNo];
                 } else break;
             } while (Math.abs(next - finish) <= multifurcationLimit);
 
@@ -197,9 +486,86 @@ public class GRTIntervals extends TreeIntervals {
             // coalescent event
             numLines -= lineagesRemoved;
         }
+    }
 
-        intervalsKnown = true;
+    /**
+     * Rebuild the lists of lineages added and removed in each interval, if they are out of date
+     */
+    protected void updateLineages() {
+        if (lineagesKnown || !(treeInput.get() instanceof GermlineRootTree) || !eventsKnown) {
+            return;
+        }
+        for (List<Node> l : lineagesAdded) {
+            if (l != null) {
+                l.clear();
+            }
+        }
+        for (List<Node> l : lineagesRemoved) {
+            if (l != null) {
+                l.clear();
+            }
+        }
+        calculateIntervalsFrom((GermlineRootTree) treeInput.get(), 0, true);
+        lineagesKnown = true;
+    }
 
+    /**
+     * Whether the intervals are calculated incrementally for a germline root tree, so that getIntervalsVersion and
+     * getRecalculatedFrom can be used
+     * @return true if the tree is a germline root tree with a germline, otherwise false
+     */
+    public boolean isIncremental() {
+        Tree tree = treeInput.get();
+        return tree instanceof GermlineRootTree && ((GermlineRootTree) tree).getGermlineNum() > 0;
+    }
+
+    /**
+     * Get the version of the intervals, which changes every time they are recalculated
+     * @return the current version of the intervals
+     */
+    public long getIntervalsVersion() {
+        if (!intervalsKnown) {
+            calculateIntervals();
+        }
+        return intervalsVersion;
+    }
+
+    /**
+     * Get the first interval that may have changed since an earlier version of the intervals. Intervals before it are
+     * the same as they were in that version.
+     * @param version a version previously returned by getIntervalsVersion
+     * @return the index of the first interval that may differ, the interval count if nothing has changed, or 0 if the
+     * version is too old to tell
+     */
+    public int getRecalculatedFrom(long version) {
+        if (!intervalsKnown) {
+            calculateIntervals();
+        }
+        if (version == intervalsVersion) {
+            return intervalCount;
+        }
+        if (version == intervalsVersion - 1) {
+            return recalculatedFrom;
+        }
+        return 0;
+    }
+
+    @Override
+    public List<Node> getLineagesAdded(int i) {
+        if (!intervalsKnown) {
+            calculateIntervals();
+        }
+        updateLineages();
+        return super.getLineagesAdded(i);
+    }
+
+    @Override
+    public List<Node> getLineagesRemoved(int i) {
+        if (!intervalsKnown) {
+            calculateIntervals();
+        }
+        updateLineages();
+        return super.getLineagesRemoved(i);
     }
 
     @Override
@@ -220,22 +586,98 @@ public class GRTIntervals extends TreeIntervals {
 
     }
 
+    @Override
+    protected void store() {
+        super.store();
+        if (eventsKnown && changedFrom < eventCount) {
+            // the stored events only differ from changedFrom on, so the current ones become the stored ones and that
+            // range is copied back
+            swapEvents();
+            copyStoredEvents();
+        }
+        if (eventsKnown) {
+            changedFrom = eventCount;
+        }
+        storedEventsKnown = eventsKnown;
+        storedEventMrcaNum = eventMrcaNum;
+        storedEventsTreeVersion = eventsTreeVersion;
+        storedIntervalsKnown = intervalsKnown;
+        storedIntervalsVersion = intervalsVersion;
+    }
+
     @Override
     protected void restore() {
+        // the intervals, lineage counts and interval count are swapped with the stored ones by super
         super.restore();
-        //intervalsKnown = false;
-        intervalsKnown = false;
-////        double[] tmp = storedIntervals;
-//        storedIntervals = intervals;
-////        intervals = tmp;
-//
-//        int[] tmp2 = storedLineageCounts;
-////        storedLineageCounts = lineageCounts;
-//        lineageCounts = tmp2;
-//
-//        int tmp3 = storedIntervalCount;
-////        storedIntervalCount = intervalCount;
-//        intervalCount = tmp3;
+        if (storedEventsKnown) {
+            if (changedFrom < eventCount) {
+                if (changedFrom == 0) {
+                    // the events may have been collected again for another mrca
+                    Arrays.fill(eventPositions, -1);
+                }
+                copyStoredEvents();
+                for (int i = changedFrom; i < eventCount; i++) {
+                    eventPositions[eventNodeNums[i]] = i;
+                }
+                changedFrom = eventCount;
+            }
+            eventMrcaNum = storedEventMrcaNum;
+            eventsKnown = true;
+            intervalsKnown = storedIntervalsKnown;
+            // the tree has been restored as well, so if the stored heights were up to date when the tree was stored,
+            // they are up to date with the tree as it is now
+            final Tree tree = treeInput.get();
+            if (tree instanceof GermlineRootTree
+                    && storedEventsTreeVersion == ((GermlineRootTree) tree).getChangedNodesVersion()) {
+                eventsTreeVersion = ((GermlineRootTree) tree).getVersion();
+            } else {
+                eventsTreeVersion = -1;
+            }
+        } else {
+            eventsKnown = false;
+            intervalsKnown = false;
+        }
+        // lineage lists are not stored
+        lineagesKnown = false;
+        intervalsVersion = storedIntervalsVersion;
+    }
+
+    /**
+     * Swap the events and group records with the stored ones
+     */
+    private void swapEvents() {
+        int[] tmp = eventNodeNums;
+        eventNodeNums = storedEventNodeNums;
+        storedEventNodeNums = tmp;
+        double[] tmpHeights = eventHeights;
+        eventHeights = storedEventHeights;
+        storedEventHeights = tmpHeights;
+        boolean[] tmpStarts = groupStarts;
+        groupStarts = storedGroupStarts;
+        storedGroupStarts = tmpStarts;
+        tmp = groupIntervalCounts;
+        groupIntervalCounts = storedGroupIntervalCounts;
+        storedGroupIntervalCounts = tmp;
+        tmp = groupLineCounts;
+        groupLineCounts = storedGroupLineCounts;
+        storedGroupLineCounts = tmp;
+        double[] tmpTimes = groupStartTimes;
+        groupStartTimes = storedGroupStartTimes;
+        storedGroupStartTimes = tmpTimes;
+    }
+
+    /**
+     * Copy the stored events and group records from changedFrom on over the current ones. Before changedFrom they are
+     * the same.
+     */
+    private void copyStoredEvents() {
+        final int length = eventCount - changedFrom;
+        System.arraycopy(storedEventNodeNums, changedFrom, eventNodeNums, changedFrom, length);
+        System.arraycopy(storedEventHeights, changedFrom, eventHeights, changedFrom, length);
+        System.arraycopy(storedGroupStarts, changedFrom, groupStarts, changedFrom, length);
+        System.arraycopy(storedGroupIntervalCounts, changedFrom, groupIntervalCounts, changedFrom, length);
+        System.arraycopy(storedGroupLineCounts, changedFrom, groupLineCounts, changedFrom, length);
+        System.arraycopy(storedGroupStartTimes, changedFrom, groupStartTimes, changedFrom, length);
     }
 
     @Override
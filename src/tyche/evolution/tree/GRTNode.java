@@ -25,10 +25,12 @@ import beast.base.core.Description;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
+import java.util.Map;
 /**
  * @author Jessie Fielding
  * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
@@ -56,13 +58,26 @@ public class GRTNode extends Node {
     }
 
     /**
-     * is this node the germline?
+     * the label last checked for "germline" and the result, so labels are only matched when they change
+     */
+    private String checkedID = null;
+    private boolean checkedIDIsGermline = false;
+
+    /**
+     * is this node the germline? Uses the node roles of the GermlineRootTree if they are known, otherwise checks
+     * whether the label contains "germline".
      * @return true if germline, otherwise false
      */
-    protected boolean isGermline() {
+    public boolean isGermline() {
+        if (m_tree instanceof GermlineRootTree && ((GermlineRootTree) m_tree).hasNodeRoles()) {
+            return ((GermlineRootTree) m_tree).isGermline(this);
+        }
         if (this.ID == null) return false;
-        if (this.ID.toUpperCase().contains("germline".toUpperCase())) return true;
-        return false;
+        if (this.ID != checkedID) {
+            checkedIDIsGermline = this.ID.toUpperCase().contains("germline".toUpperCase());
+            checkedID = this.ID;
+        }
+        return checkedIDIsGermline;
     }
 
     /**
@@ -71,7 +86,7 @@ public class GRTNode extends Node {
     final static double EPSILON = 0.0000001;
 
     private boolean addIfGermline(Node node) {
-        if ((node.getID() + " ").toUpperCase().contains("germline".toUpperCase())) {
+        if (((GRTNode) node).isGermline()) {
             addGermline((GRTNode) node);
             return true;
         }
@@ -80,7 +95,9 @@ public class GRTNode extends Node {
 
     public void resetGermline() {
         germline = null;
-        getChildren().forEach(this::addIfGermline);
+        for (int i = 0; i < getChildCount(); i++) {
+            addIfGermline(getChild(i));
+        }
     }
 
 
@@ -89,14 +106,9 @@ public class GRTNode extends Node {
      * @return true if germline is associated with this node, otherwise false
      */
     public boolean hasGermline() {
-        boolean hasGermChild = getChildren().stream().anyMatch(this::addIfGermline);
-//        if (germline == null && hasGermChild) {
-//            for (Node child : getChildren()) {
-//                if ((child.getID() + " ").contains("germline".toUpperCase())) addGermline((GRTNode) child);
-//            }
-//        }
-        if (germline == null && hasGermChild) {
-            System.out.println("Howwwww");
+        boolean hasGermChild = false;
+        for (int i = 0; i < getChildCount() && !hasGermChild; i++) {
+            hasGermChild = addIfGermline(getChild(i));
         }
         return (germline != null) && hasGermChild;
     }
@@ -114,7 +126,9 @@ public class GRTNode extends Node {
      * @param isDA is this data augmentation?
      */
     private void setHeight(final double height, boolean isDA) {
+        // start editing first, as the first edit of a proposal stores the tree, which starts a new journal
         startEditing();
+        willChange(false);
         if (this.m_tree == null) {
             // we haven't finish initializing the tree, so we don't care about setting the root and germline together yet
             setSuperHeight(height, isDA);
@@ -134,6 +148,7 @@ public class GRTNode extends Node {
                 // this is not the root and the parent is not the root, so we can set the germline height
                 setSuperHeight(height, isDA);
             }
+            heightChanged();
         }
     }
 
@@ -240,8 +255,21 @@ public class GRTNode extends Node {
      * @param newHeight new root height
      */
     private void adjustRootAndGermline(double newHeight) {
+        willChange(false);
+        germline.willChange(false);
         germline.height = newHeight - EPSILON;
         height = newHeight;
+        germline.heightChanged();
+        heightChanged();
+    }
+
+    /**
+     * let a GermlineRootTree know that the height of this node has changed, so that it can update its primitive mirror
+     */
+    private void heightChanged() {
+        if (m_tree instanceof GermlineRootTree) {
+            ((GermlineRootTree) m_tree).heightChanged(this, height);
+        }
     }
 
 
@@ -251,38 +279,68 @@ public class GRTNode extends Node {
      * @return a new GRTNode
      */
     public static GRTNode makeNewFromNode(Node original) {
-        final GRTNode node = new GRTNode();
-        node.height = original.getHeight();
-        node.labelNr = original.getNr();
-
-        for (String key : original.getMetaDataNames()) {
-            node.setMetaData(key, original.getMetaData(key));
+        // collect the nodes to convert in pre-order without recursion, keeping any GRTNode descendants (and their
+        // subtrees) as they are
+        final List<Node> toConvert = new ArrayList<>();
+        final ArrayDeque<Node> stack = new ArrayDeque<>();
+        stack.push(original);
+        while (!stack.isEmpty()) {
+            final Node n = stack.pop();
+            toConvert.add(n);
+            for (int i = n.getChildCount() - 1; i >= 0; i--) {
+                if (!(n.getChild(i) instanceof GRTNode)) {
+                    stack.push(n.getChild(i));
+                }
+            }
         }
-        node.parent = null;
-        node.setID(original.getID());
 
-        for (Node child : original.getChildren()) {
-            if (!(child instanceof GRTNode)) {
-                child = makeNewFromNode(child);
+        final Map<Node, GRTNode> converted = new IdentityHashMap<>();
+        for (final Node n : toConvert) {
+            final GRTNode node = new GRTNode();
+            node.copyValuesFrom(n);
+            converted.put(n, node);
+        }
+        for (final Node n : toConvert) {
+            final GRTNode node = converted.get(n);
+            for (Node child : n.getChildren()) {
+                final GRTNode convertedChild = converted.get(child);
+                node.addChild(convertedChild != null ? convertedChild : child);
             }
-            node.addChild(child);
         }
-        // remove children and parent from original so that nothing points to it and garbage collection can clean it up
-        original.removeAllChildren(false);
-        original.setParent(null,false);
-        return node;
+        // remove children and parent from the originals so that nothing points to them and garbage collection can clean them up
+        for (final Node n : toConvert) {
+            n.removeAllChildren(false);
+            n.setParent(null, false);
+        }
+        return converted.get(original);
     }
 
 
     /**
-     * get the height of this node
+     * Copy the height, number, metadata and ID of a node that may not be a GRTNode into this node, using only the
+     * accessors of Node. The parent and children are not copied.
+     * @param original the node to copy from
+     */
+    private void copyValuesFrom(final Node original) {
+        height = original.getHeight();
+        labelNr = original.getNr();
+        for (String key : original.getMetaDataNames()) {
+            setMetaData(key, original.getMetaData(key));
+        }
+        parent = null;
+        setID(original.getID());
+    }
+
+    /**
+     * get the height of this node. The height of a germline below the root follows the root height, and is worked out
+     * from it without being stored, so that reading a height never changes the node.
      * @return double representing the height of this node
      */
     @Override
     public double getHeight() {
         // TODO: theoretically, this should always be correct anyway, so check if we can remove this
         if (isGermline() && parent != null && parent.isRoot()) {
-            height = parent.getHeight() - EPSILON;
+            return parent.getHeight() - EPSILON;
         }
         return height;
     }
@@ -307,15 +365,159 @@ public class GRTNode extends Node {
         if (!(child instanceof GRTNode)) {
             child = makeNewFromNode(child);
         }
+        startEditing();
+        willChange(true);
+        ((GRTNode) child).willChange(true);
         if (((GRTNode) child).isGermline()) {
             addGermline((GRTNode) child);
         }
         super.addChild(child);
+        topologyChanged();
     }
 
     public void removeChild(final Node child) {
+        startEditing();
+        willChange(true);
+        ((GRTNode) child).willChange(true);
         super.removeChild(child);
         if (((GRTNode) child).isGermline() && germline != null) germline = null;
+        topologyChanged();
+    }
+
+    @Override
+    public void removeAllChildren(final boolean inOperator) {
+        if (inOperator) {
+            startEditing();
+        }
+        willChange(true);
+        for (int i = 0; i < getChildCount(); i++) {
+            ((GRTNode) getChild(i)).willChange(true);
+        }
+        super.removeAllChildren(inOperator);
+        topologyChanged();
+    }
+
+    @Override
+    public void setParent(final Node parent) {
+        final boolean changed = this.parent != parent;
+        startEditing();
+        if (changed) {
+            willChange(true);
+        }
+        super.setParent(parent);
+        if (changed) {
+            topologyChanged();
+        }
+    }
+
+    @Override
+    public void setParent(final Node parent, final boolean inOperator) {
+        final boolean changed = this.parent != parent;
+        if (inOperator) {
+            startEditing();
+        }
+        if (changed) {
+            willChange(true);
+        }
+        super.setParent(parent, inOperator);
+        if (changed) {
+            topologyChanged();
+        }
+    }
+
+    @Override
+    public void setLeft(final Node leftChild) {
+        startEditing();
+        willChange(true);
+        super.setLeft(leftChild);
+        topologyChanged();
+    }
+
+    @Override
+    public void setRight(final Node rightChild) {
+        startEditing();
+        willChange(true);
+        super.setRight(rightChild);
+        topologyChanged();
+    }
+
+    @Override
+    public void setChild(final int childIndex, final Node node) {
+        startEditing();
+        willChange(true);
+        super.setChild(childIndex, node);
+        topologyChanged();
+    }
+
+    @Override
+    public void makeDirty(final int dirty) {
+        startEditing();
+        willChange(false);
+        super.makeDirty(dirty);
+    }
+
+    /**
+     * the store of the GermlineRootTree in which this node was last recorded for copy-on-write restore
+     */
+    long journalStamp = 0;
+
+    /**
+     * let a GermlineRootTree know that this node is about to change, so that it can record the node's state if it
+     * restores by copy-on-write. Call startEditing first, as starting to edit may store the tree and start a new
+     * journal, which would drop anything recorded before it.
+     * @param topology whether the parent or children of this node are changing
+     */
+    private void willChange(final boolean topology) {
+        if (m_tree instanceof GermlineRootTree) {
+            ((GermlineRootTree) m_tree).willChange(this, topology);
+        }
+    }
+
+    /**
+     * get the height of this node without updating the germline height from the root
+     * @return the height of this node
+     */
+    double getRawHeight() {
+        return height;
+    }
+
+    /**
+     * put back a recorded state of this node, for copy-on-write restore. The node is marked clean.
+     * @param height     the recorded height
+     * @param parent     the recorded parent, or null
+     * @param children   the recorded children
+     * @param childCount the number of recorded children
+     */
+    void restoreState(final double height, final Node parent, final Node[] children, final int childCount) {
+        this.height = height;
+        this.parent = parent;
+        this.children.clear();
+        for (int i = 0; i < childCount; i++) {
+            this.children.add(children[i]);
+        }
+        this.isDirty = Tree.IS_CLEAN;
+    }
+
+    /**
+     * mark this node and its children clean, for copy-on-write accept and restore
+     */
+    void cleanWithChildren() {
+        isDirty = Tree.IS_CLEAN;
+        for (int i = 0; i < getChildCount(); i++) {
+            final Node child = getChild(i);
+            if (child instanceof GRTNode) {
+                ((GRTNode) child).isDirty = Tree.IS_CLEAN;
+            }
+        }
+    }
+
+    /**
+     * let a GermlineRootTree know that the topology has changed, so that it can update its cached traversals
+     */
+    private void topologyChanged() {
+        if (m_tree instanceof GermlineRootTree) {
+            ((GermlineRootTree) m_tree).topologyChanged(this);
+        }
     }
 
 
@@ -326,26 +528,44 @@ public class GRTNode extends Node {
      */
     @Override
     public Node copy() {
-        final GRTNode node = new GRTNode();
-        node.height = height;
-        node.labelNr = labelNr;
-        node.metaDataString = metaDataString;
-        node.lengthMetaDataString = lengthMetaDataString;
-        node.metaData = new TreeMap<>(metaData);
-        node.lengthMetaData = new TreeMap<>(lengthMetaData);
-        node.parent = null;
-        node.setID(getID());
-
-        for (final Node child : getChildren()) {
-            Node childCopy;
-
-            if (!(child instanceof GRTNode)) {
-                childCopy = makeNewFromNode(child).copy(); // necessary for it to be deep copy
+        // copy the subtree in post-order, so that the copies of each node's children are on top of the stack
+        final Node[] subtree = getSubtreePostOrder();
+        final GRTNode[] copies = new GRTNode[subtree.length];
+        int top = 0;
+        // make the copies with the node factory of this tree if there is one, which constructs them without reflection
+        final GRTNodeFactory factory = (m_tree instanceof GermlineRootTree) ? ((GermlineRootTree) m_tree).getNodeFactory() : null;
+        for (final Node n : subtree) {
+            final GRTNode node = (factory != null) ? factory.newNode() : new GRTNode();
+            if (n instanceof GRTNode) {
+                final GRTNode original = (GRTNode) n;
+                node.height = original.getHeight();
+                node.labelNr = original.labelNr;
+                node.metaDataString = original.metaDataString;
+                node.lengthMetaDataString = original.lengthMetaDataString;
+                // new nodes have empty metadata maps, so only fill them if there is something to copy
+                if (!original.metaData.isEmpty()) {
+                    node.metaData.putAll(original.metaData);
+                }
+                if (!original.lengthMetaData.isEmpty()) {
+                    node.lengthMetaData.putAll(original.lengthMetaData);
+                }
+                node.parent = null;
+                node.setID(original.getID());
             } else {
-                childCopy = child.copy();
+                // copy nodes of other types directly, rather than converting them first, which would detach them from
+                // their children and leave nothing below them to copy
+                node.copyValuesFrom(n);
+            }
+
+            final int childCount = n.getChildCount();
+            top -= childCount;
+            for (int i = 0; i < childCount; i++) {
+                node.addChild(copies[top + i]); // this should handle setting the germline correctly
+                copies[top + i] = null;
             }
-            node.addChild(childCopy); // this should handle setting the germline correctly
+            copies[top++] = node;
         }
+        final GRTNode node = copies[0];
         if (isRoot()) node.resetGermline();
         return node;
     } // copy
@@ -358,43 +578,69 @@ public class GRTNode extends Node {
      */
     @Override
     public int scale(final double scale) {
-        startEditing();
-
         int dof = 0;
 
-        isDirty |= Tree.IS_DIRTY;
-        if (!isLeaf() && !isFake()) {
-            if (isRoot() && hasGermline()) {
-                adjustRootAndGermline(height*scale);
-            } else {
-                height *= scale;
+        // scale parents before children, as the degrees of freedom depend on the scaled parent height
+        final Node[] subtree = getSubtreePreOrder();
+        for (final Node n : subtree) {
+            final GRTNode node = (GRTNode) n;
+            node.startEditing();
+            node.willChange(false);
+            node.isDirty |= Tree.IS_DIRTY;
+            if (!node.isLeaf() && !node.isFake()) {
+                if (node.isRoot() && node.hasGermline()) {
+                    node.adjustRootAndGermline(node.height*scale);
+                } else {
+                    node.height *= scale;
+                    node.heightChanged();
+                }
+
+                if (node.isRoot() || node.parent.getHeight() != node.getHeight())
+                    dof += 1;
             }
-
-            if (isRoot() || parent.getHeight() != getHeight())
-                dof += 1;
         }
-        if (!isLeaf()) {
-            dof += getLeft().scale(scale);
-            if (getRight() != null) {
-                dof += getRight().scale(scale);
-            }
-            if (height < getLeft().getHeight() || height < getRight().getHeight()) {
-                throw new IllegalArgumentException("Scale gives negative branch length");
+        for (final Node node : subtree) {
+            if (!node.isLeaf()) {
+                if (node.getHeight() < node.getLeft().getHeight() || node.getHeight() < node.getRight().getHeight()) {
+                    throw new IllegalArgumentException("Scale gives negative branch length");
+                }
             }
         }
 
         return dof;
     }
 
+    /**
+     * Get this node and all its descendants, with each node before its children
+     * @return a list of the nodes in this subtree
+     */
     public List<Node> getSubtreeNodesAsArray() {
-        List<Node> nodes = new ArrayList<>();
-        nodes.add(this);
-        for (Node child : getChildren()) {
-            if (child instanceof GRTNode) {
-                nodes.addAll(((GRTNode) child).getSubtreeNodesAsArray());
-            }
+        return Arrays.asList(getSubtreePreOrder());
+    }
+
+    /**
+     * Get this node and all its descendants in pre-order, from the tree's cached traversal if this node belongs to the
+     * current nodes of a GermlineRootTree
+     * @return a new array of the nodes in this subtree
+     */
+    protected Node[] getSubtreePreOrder() {
+        if (m_tree instanceof GermlineRootTree && m_tree.getNode(labelNr) == this) {
+            GermlineRootTree tree = (GermlineRootTree) m_tree;
+            int start = tree.getPreOrderPosition(labelNr);
+            return Arrays.copyOfRange(tree.getPreOrder(), start, start + tree.getSubtreeSize(labelNr));
         }
-        return nodes;
+        TreeTraversal traversal = new TreeTraversal();
+        int count = traversal.preOrder(this);
+        return Arrays.copyOf(traversal.getNodes(), count);
+    }
 
+    /**
+     * Get this node and all its descendants in post-order
+     * @return a new array of the nodes in this subtree
+     */
+    protected Node[] getSubtreePostOrder() {
+        TreeTraversal traversal = new TreeTraversal();
+        int count = traversal.postOrder(this);
+        return Arrays.copyOf(traversal.getNodes(), count);
     }
 }
@@ -0,0 +1,88 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.tree;
+
+import beast.pkgmgmt.BEASTClassLoader;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Makes nodes of a GRTNode type for a tree. The node class and its no-argument constructor are looked up once, rather
+ * than reflectively for every node.
+ */
+public class GRTNodeFactory {
+
+    /**
+     * the name of the node type this factory makes
+     */
+    private final String nodeType;
+
+    /**
+     * the no-argument constructor of the node class, adapted to return a GRTNode
+     */
+    private final MethodHandle constructor;
+
+    /**
+     * Look up the node class and its constructor
+     * @param nodeType the name of a class that is GRTNode or extends it
+     */
+    public GRTNodeFactory(final String nodeType) {
+        this.nodeType = nodeType;
+        try {
+            final Class<?> nodeClass = BEASTClassLoader.forName(nodeType);
+            if (!GRTNode.class.isAssignableFrom(nodeClass)) {
+                throw new IllegalArgumentException("Node type " + nodeType + " is not compatible with " + GRTNode.class.getName());
+            }
+            constructor = MethodHandles.publicLookup()
+                    .findConstructor(nodeClass, MethodType.methodType(void.class))
+                    .asType(MethodType.methodType(GRTNode.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Cannot create node of type " + nodeType + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Construct a new node
+     * @return a node with no parent, children, metadata or ID
+     */
+    public GRTNode newNode() {
+        try {
+            return (GRTNode) constructor.invokeExact();
+        } catch (Throwable e) {
+            throw new RuntimeException("Cannot create node of type " + nodeType + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Get the name of the node type this factory makes
+     * @return the node type
+     */
+    public String getNodeType() {
+        return nodeType;
+    }
+}
@@ -29,29 +29,91 @@ import beast.base.evolution.tree.Tree;
 import beast.base.inference.StateNode;
 import beast.base.inference.parameter.Parameter;
 import beast.base.inference.parameter.RealParameter;
+import tyche.evolution.branchratemodel.AbstractTycheTypeLinkedClockModel;
+import tyche.inference.parameter.NodeTypeParameter;
 
 import java.io.PrintStream;
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
+import java.util.Arrays;
 import java.util.List;
 
 public class GRTRootlessLogger extends TreeWithMetaDataLogger {
 
+    /**
+     * the buffer is written to the output when it gets longer than this, between nodes
+     */
+    private static final int FLUSH_LENGTH = 1 << 16;
+
     boolean someMetaDataNeedsLogging;
     boolean substitutions = false;
 
-    private DecimalFormat df;
+    private DecimalFormatter formatter;
     private boolean sortTree;
 
+    /**
+     * reused buffer the Newick string is written into before it goes to the output
+     */
+    private final StringBuilder buf = new StringBuilder();
+
+    /**
+     * explicit stack of the nodes being written, and how many of their children have been written
+     */
+    private Node[] stack = new Node[16];
+    private int[] childrenWritten = new int[16];
+
+    /**
+     * the text written after the children of each node in the last log (its label or closing bracket, metadata and
+     * branch length), kept one after another in a reused buffer, and where each node's text is in it, indexed by node
+     * number. Only the text of nodes that have changed since the last log is written again.
+     */
+    private final StringBuilder nodeText = new StringBuilder();
+    private int[] textStart = new int[0];
+    private int[] textEnd = new int[0];
+    private int liveTextLength = 0;
+    private long[] compactOrder = new long[0];
+
+    /**
+     * the number of the current log, and for each node the number of the log it was last written in
+     */
+    private int logStamp = 0;
+    private int[] loggedStamp = new int[0];
+
+    /**
+     * the values written for each node in the last log (branch length, rate and metadata, valueStride per node), only
+     * recorded for those that have no version to check instead
+     */
+    private double[] loggedValues = new double[0];
+    private int valueStride = -1;
+
+    /**
+     * whether every node has to be written again in the current log
+     */
+    private boolean allChanged;
+
+    /**
+     * the tree, its version, and the version of each metadata parameter that has one, at the last log
+     */
+    private Tree loggedTree;
+    private GermlineRootTree versionedTree;
+    private long loggedTreeVersion;
+    private Function[] loggedMetadata = new Function[0];
+    private long[] loggedMetadataVersions = new long[0];
+
+    /**
+     * the node types of a type-linked clock model, if its rates can be checked by version, the version of the node
+     * types, and the values all the rates depend on, at the last log
+     */
+    private NodeTypeParameter rateTypes;
+    private long loggedRateTypesVersion;
+    private double[] sharedRateInputs;
+    private double[] newSharedRateInputs;
+
     @Override
     public void initAndValidate() {
         int dp = decimalPlacesInput.get();
         if (dp < 0) {
-            df = null;
+            formatter = null;
         } else {
-            // just new DecimalFormat("#.######") (with dp time '#' after the decimal)
-            df = new DecimalFormat("#."+new String(new char[dp]).replace('\0', '#'));
-            df.setRoundingMode(RoundingMode.HALF_UP);
+            formatter = new DecimalFormatter(dp);
         }
 
         if (parameterInput.get().size() == 0 && clockModelInput.get() == null) {
@@ -89,37 +151,324 @@ public class GRTRootlessLogger extends TreeWithMetaDataLogger {
 
         Node root = tree.getRoot();
         Node mrca = root;
-        if (root instanceof GRTNode) {
-            Node left = root.getLeft();
-            Node right = root.getRight();
-            if (left.getID() != null && left.getID().toUpperCase().contains("germline".toUpperCase())) {
-                mrca = right;
-            } else if (right.getID() != null && right.getID().toUpperCase().contains("germline".toUpperCase())) {
-                mrca = left;
+        if (tree instanceof GermlineRootTree) {
+            mrca = ((GermlineRootTree) tree).getMRCA();
+        } else if (root instanceof GRTNode) {
+            if (((GRTNode) root.getLeft()).isGermline()) {
+                mrca = root.getRight();
+            } else if (((GRTNode) root.getRight()).isGermline()) {
+                mrca = root.getLeft();
             }
         }
 
-        out.print(toNewick(mrca, metadata, branchRateModel));
+        writeNewick(mrca, metadata, branchRateModel, out);
         //out.print(tree.getRoot().toShortNewick(false));
         out.print(";");
     }
 
     String toNewick(Node node, List<Function> metadataList, BranchRateModel.Base branchRateModel) {
-        StringBuffer buf = new StringBuffer();
-        if (node.getLeft() != null) {
-            buf.append("(");
-            buf.append(toNewick(node.getLeft(), metadataList, branchRateModel));
-            if (node.getRight() != null) {
-                buf.append(',');
-                buf.append(toNewick(node.getRight(), metadataList, branchRateModel));
+        buf.setLength(0);
+        appendNewick((Tree) treeInput.get().getCurrent(), node, metadataList, branchRateModel, null);
+        String newick = buf.toString();
+        buf.setLength(0);
+        return newick;
+    }
+
+    /**
+     * Write the Newick string of a subtree to the output
+     * @param node the root of the subtree
+     * @param metadataList the metadata to log
+     * @param branchRateModel the clock model, or null
+     * @param out the output
+     */
+    void writeNewick(Node node, List<Function> metadataList, BranchRateModel.Base branchRateModel, PrintStream out) {
+        buf.setLength(0);
+        appendNewick((Tree) treeInput.get().getCurrent(), node, metadataList, branchRateModel, out);
+        out.append(buf);
+        buf.setLength(0);
+    }
+
+    /**
+     * Append the Newick string of a subtree to the buffer, without recursion, writing the buffer to the output whenever
+     * it gets long. The text of nodes that haven't changed since the last log is copied from the last log.
+     * @param tree the tree the subtree is part of
+     * @param node the root of the subtree
+     * @param metadataList the metadata to log
+     * @param branchRateModel the clock model, or null
+     * @param out the output, or null to keep everything in the buffer
+     */
+    private void appendNewick(Tree tree, Node node, List<Function> metadataList, BranchRateModel.Base branchRateModel, PrintStream out) {
+        startLog(tree, metadataList, branchRateModel);
+        int top = 0;
+        push(top++, node);
+        while (top > 0) {
+            final Node current = stack[top - 1];
+            final int written = childrenWritten[top - 1];
+            // only the left and right children are written
+            final Node next = written == 0 ? current.getLeft() : written == 1 ? current.getRight() : null;
+            if (current.getLeft() != null && next != null) {
+                buf.append(written == 0 ? '(' : ',');
+                childrenWritten[top - 1]++;
+                push(top++, next);
+                continue;
+            }
+            final int nr = current.getNr();
+            ensureCapacity(nr + 1);
+            if (hasChanged(current, metadataList, branchRateModel)) {
+                writeNodeText(current, metadataList, branchRateModel);
+            }
+            buf.append(nodeText, textStart[nr], textEnd[nr]);
+            liveTextLength += textEnd[nr] - textStart[nr];
+            loggedStamp[nr] = logStamp;
+            stack[--top] = null;
+            if (out != null && buf.length() > FLUSH_LENGTH) {
+                out.append(buf);
+                buf.setLength(0);
+            }
+        }
+        finishLog(metadataList);
+    }
+
+    /**
+     * Put a node on the stack
+     * @param top the position on the stack
+     * @param node the node
+     */
+    private void push(final int top, final Node node) {
+        if (top == stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+            childrenWritten = Arrays.copyOf(childrenWritten, childrenWritten.length * 2);
+        }
+        stack[top] = node;
+        childrenWritten[top] = 0;
+    }
+
+    /**
+     * Start a new log: find out whether anything that affects every node has changed since the last log, in which case
+     * every node is written again
+     * @param tree the tree being logged
+     * @param metadataList the metadata to log
+     * @param branchRateModel the clock model, or null
+     */
+    private void startLog(Tree tree, List<Function> metadataList, BranchRateModel.Base branchRateModel) {
+        logStamp++;
+        liveTextLength = 0;
+        allChanged = tree != loggedTree || metadataList.size() != loggedMetadata.length;
+        loggedTree = tree;
+        versionedTree = tree instanceof GermlineRootTree ? (GermlineRootTree) tree : null;
+
+        int stride = 2;
+        for (int i = 0; i < metadataList.size(); i++) {
+            final Function metadata = metadataList.get(i);
+            stride += metadata instanceof Parameter<?> ? Math.max(((Parameter<?>) metadata).getMinorDimension1(), 1) : 1;
+            allChanged |= i >= loggedMetadata.length || metadata != loggedMetadata[i];
+        }
+        if (stride != valueStride) {
+            valueStride = stride;
+            loggedValues = new double[loggedStamp.length * stride];
+            allChanged = true;
+        }
+
+        // the rates of a type-linked clock model only change with the branch and the types at either end of it, as
+        // long as the values shared by all branches stay the same
+        rateTypes = null;
+        if (versionedTree != null && branchRateModel instanceof AbstractTycheTypeLinkedClockModel) {
+            final AbstractTycheTypeLinkedClockModel clockModel = (AbstractTycheTypeLinkedClockModel) branchRateModel;
+            if (clockModel.nodeTypesInput.get() instanceof NodeTypeParameter) {
+                rateTypes = (NodeTypeParameter) clockModel.nodeTypesInput.get();
+                newSharedRateInputs = clockModel.getSharedRateInputs(newSharedRateInputs);
+                allChanged |= !Arrays.equals(newSharedRateInputs, sharedRateInputs);
+                final double[] tmp = sharedRateInputs;
+                sharedRateInputs = newSharedRateInputs;
+                newSharedRateInputs = tmp;
+            }
+        }
+        if (rateTypes == null) {
+            sharedRateInputs = null;
+        }
+    }
+
+    /**
+     * Finish a log: record the versions it was written at, and drop the text of nodes that weren't written if it
+     * takes up more space than the text that was
+     * @param metadataList the metadata that was logged
+     */
+    private void finishLog(List<Function> metadataList) {
+        final int metadataCount = metadataList.size();
+        if (loggedMetadata.length != metadataCount) {
+            loggedMetadata = new Function[metadataCount];
+            loggedMetadataVersions = new long[metadataCount];
+        }
+        for (int i = 0; i < metadataCount; i++) {
+            final Function metadata = metadataList.get(i);
+            loggedMetadata[i] = metadata;
+            if (metadata instanceof NodeTypeParameter) {
+                loggedMetadataVersions[i] = ((NodeTypeParameter) metadata).getVersion();
+            }
+        }
+        if (versionedTree != null) {
+            loggedTreeVersion = versionedTree.getVersion();
+        }
+        if (rateTypes != null) {
+            loggedRateTypesVersion = rateTypes.getVersion();
+        }
+        if (nodeText.length() > 2 * liveTextLength + FLUSH_LENGTH) {
+            compactNodeText();
+        }
+    }
+
+    /**
+     * Move the text of the nodes written in this log to the start of the text buffer, dropping the rest
+     */
+    private void compactNodeText() {
+        int count = 0;
+        for (int nr = 0; nr < loggedStamp.length; nr++) {
+            if (loggedStamp[nr] == logStamp) {
+                compactOrder[count++] = ((long) textStart[nr] << 32) | nr;
+            }
+        }
+        // moving the texts in the order they are in the buffer never overwrites one that hasn't moved yet
+        Arrays.sort(compactOrder, 0, count);
+        int length = 0;
+        for (int k = 0; k < count; k++) {
+            final int nr = (int) compactOrder[k];
+            final int start = textStart[nr];
+            final int end = textEnd[nr];
+            textStart[nr] = length;
+            for (int i = start; i < end; i++) {
+                nodeText.setCharAt(length++, nodeText.charAt(i));
+            }
+            textEnd[nr] = length;
+        }
+        nodeText.setLength(length);
+    }
+
+    /**
+     * Make sure the arrays indexed by node number can hold a node number
+     * @param size one more than the node number
+     */
+    private void ensureCapacity(final int size) {
+        if (size <= loggedStamp.length) {
+            return;
+        }
+        final int capacity = Math.max(size, loggedStamp.length * 2);
+        final int oldCapacity = loggedStamp.length;
+        loggedStamp = Arrays.copyOf(loggedStamp, capacity);
+        Arrays.fill(loggedStamp, oldCapacity, capacity, -1);
+        textStart = Arrays.copyOf(textStart, capacity);
+        textEnd = Arrays.copyOf(textEnd, capacity);
+        compactOrder = new long[capacity];
+        loggedValues = Arrays.copyOf(loggedValues, capacity * valueStride);
+    }
+
+    /**
+     * Whether the text of a node may differ from the last log: the node wasn't in the last log, or it, its branch or
+     * any of its values has changed since. Changes are found from the versions of a germline root tree, node types
+     * parameters and the node types of a type-linked clock model; anything else is read and compared with the value
+     * recorded at the last log.
+     * @param node the node
+     * @param metadataList the metadata to log
+     * @param branchRateModel the clock model, or null
+     * @return true if the text of the node has to be written again, otherwise false
+     */
+    private boolean hasChanged(final Node node, List<Function> metadataList, BranchRateModel.Base branchRateModel) {
+        final int nr = node.getNr();
+        final Node parent = node.getParent();
+        boolean changed = allChanged || loggedStamp[nr] != logStamp - 1;
+
+        int k = nr * valueStride;
+        if (versionedTree != null) {
+            changed |= versionedTree.getNodeVersion(nr) > loggedTreeVersion
+                    || (parent != null && versionedTree.getNodeVersion(parent.getNr()) > loggedTreeVersion);
+        } else {
+            changed |= setLoggedValue(k, node.getLength());
+        }
+        k++;
+        if (rateTypes != null) {
+            changed |= rateTypes.getVersion(nr) > loggedRateTypesVersion
+                    || (parent != null && rateTypes.getVersion(parent.getNr()) > loggedRateTypesVersion);
+        } else if (branchRateModel != null) {
+            // values that are read are always recorded, so that they are compared with what was last written
+            changed |= setLoggedValue(k, branchRateModel.getRateForBranch(node));
+        }
+        k++;
+        for (int i = 0; i < metadataList.size(); i++) {
+            final Function metadata = metadataList.get(i);
+            if (metadata instanceof NodeTypeParameter) {
+                final NodeTypeParameter types = (NodeTypeParameter) metadata;
+                changed |= types.getDimension() > nr && types.getVersion(nr) > loggedMetadataVersions[i];
+                k++;
+            } else if (metadata instanceof Parameter<?>) {
+                Parameter<?> p = (Parameter<?>) metadata;
+                int dim = Math.max(p.getMinorDimension1(), 1);
+                boolean logged = p.getMinorDimension2() > nr;
+                if (dim > 1) {
+                    for (int j = 0; j < dim; j++) {
+                        changed |= setLoggedValue(k++, logged ? p.getMatrixValue(nr, j) : Double.NaN);
+                    }
+                } else {
+                    changed |= setLoggedValue(k++, logged ? metadata.getArrayValue(nr) : Double.NaN);
+                }
+            } else {
+                changed |= setLoggedValue(k++, metadata.getDimension() > nr ? metadata.getArrayValue(nr) : Double.NaN);
             }
-            buf.append(")");
+        }
+        return changed;
+    }
+
+    /**
+     * Write the text of a node to the end of the text buffer
+     * @param node the node
+     * @param metadataList the metadata to log
+     * @param branchRateModel the clock model, or null
+     */
+    private void writeNodeText(final Node node, List<Function> metadataList, BranchRateModel.Base branchRateModel) {
+        final int nr = node.getNr();
+        final double rate;
+        if (branchRateModel == null) {
+            rate = 1.0;
+        } else if (rateTypes != null) {
+            rate = branchRateModel.getRateForBranch(node);
         } else {
-            buf.append(node.getNr() + 1);
+            // already read to check whether it changed
+            rate = loggedValues[nr * valueStride + 1];
         }
-        StringBuffer buf2 = new StringBuffer();
+        textStart[nr] = nodeText.length();
+        if (node.getLeft() == null) {
+            nodeText.append(nr + 1);
+        } else {
+            nodeText.append(')');
+        }
+        appendMetaData(nodeText, node, metadataList, branchRateModel, rate);
+        textEnd[nr] = nodeText.length();
+    }
+
+    /**
+     * Record a value written for a node
+     * @param index the index of the value
+     * @param value the value
+     * @return true if the value differs from the last log, otherwise false
+     */
+    private boolean setLoggedValue(final int index, final double value) {
+        if (Double.doubleToRawLongBits(loggedValues[index]) == Double.doubleToRawLongBits(value)) {
+            return false;
+        }
+        loggedValues[index] = value;
+        return true;
+    }
+
+    /**
+     * Appends the metadata and branch length of a node to its Newick string
+     * @param buf the Newick string of the node so far
+     * @param node the node
+     * @param metadataList the metadata to log
+     * @param branchRateModel the clock model, or null
+     * @param rate the rate of the node's branch, which is needed for both the metadata and the branch length
+     */
+    void appendMetaData(StringBuilder buf, Node node, List<Function> metadataList, BranchRateModel.Base branchRateModel, double rate) {
+        final int start = buf.length();
         if (someMetaDataNeedsLogging) {
-            buf2.append("[&");
+            buf.append("[&");
             if (metadataList.size() > 0) {
                 boolean needsComma = false;
                 for (Function metadata : metadataList) {
@@ -128,83 +477,81 @@ public class GRTRootlessLogger extends TreeWithMetaDataLogger {
                         int dim = p.getMinorDimension1();
                         if (p.getMinorDimension2() > node.getNr()) {
                             if (needsComma) {
-                                buf2.append(",");
+                                buf.append(",");
                             }
-                            buf2.append(((BEASTObject) metadata).getID());
-                            buf2.append('=');
+                            buf.append(((BEASTObject) metadata).getID());
+                            buf.append('=');
                             if (dim > 1) {
-                                buf2.append('{');
+                                buf.append('{');
                                 for (int i = 0; i < dim; i++) {
                                     if (metadata instanceof RealParameter) {
                                         RealParameter rp = (RealParameter) metadata;
-                                        appendDouble(buf2, rp.getMatrixValue(node.getNr(), i));
+                                        appendDouble(buf, rp.getMatrixValue(node.getNr(), i));
                                     } else {
-                                        buf2.append(p.getMatrixValue(node.getNr(), i));
+                                        buf.append(p.getMatrixValue(node.getNr(), i));
                                     }
                                     if (i < dim - 1) {
-                                        buf2.append(',');
+                                        buf.append(',');
                                     }
                                 }
-                                buf2.append('}');
+                                buf.append('}');
                             } else {
                                 if (metadata instanceof RealParameter) {
                                     RealParameter rp = (RealParameter) metadata;
-                                    appendDouble(buf2, rp.getArrayValue(node.getNr()));
+                                    appendDouble(buf, rp.getArrayValue(node.getNr()));
                                 } else {
-                                    buf2.append(metadata.getArrayValue(node.getNr()));
+                                    buf.append(metadata.getArrayValue(node.getNr()));
                                 }
                             }
                             needsComma = true;
-                        } else {
-
                         }
                     } else {
                         if (metadata.getDimension() > node.getNr()) {
                             if (needsComma) {
-                                buf2.append(",");
+                                buf.append(",");
                             }
-                            buf2.append(((BEASTObject) metadata).getID());
-                            buf2.append('=');
-                            buf2.append(metadata.getArrayValue(node.getNr()));
+                            buf.append(((BEASTObject) metadata).getID());
+                            buf.append('=');
+                            buf.append(metadata.getArrayValue(node.getNr()));
                             needsComma = true;
                         }
                     }
                 }
-                if (buf2.length() > 2 && branchRateModel != null) {
-                    buf2.append(",");
+                if (buf.length() - start > 2 && branchRateModel != null) {
+                    buf.append(",");
                 }
             }
             if (branchRateModel != null) {
-                buf2.append("rate=");
-                appendDouble(buf2, branchRateModel.getRateForBranch(node));
+                buf.append("rate=");
+                appendDouble(buf, rate);
+            }
+            buf.append(']');
+            if (buf.length() - start <= 3) {
+                // nothing was written between "[&" and "]"
+                buf.setLength(start);
             }
-            buf2.append(']');
-        }
-        if (buf2.length() > 3) {
-            buf.append(buf2.toString());
         }
         buf.append(":");
         if (substitutions) {
-            appendDouble(buf, node.getLength() * branchRateModel.getRateForBranch(node));
+            appendDouble(buf, node.getLength() * rate);
         } else {
             appendDouble(buf, node.getLength());
         }
-        return buf.toString();
     }
 
     /**
-     * Appends a double to the given StringBuffer, formatting it using
-     * the private DecimalFormat instance, if the input 'dp' has been
+     * Appends a double to the given StringBuilder, formatting it using
+     * the private DecimalFormatter instance, if the input 'dp' has been
      * given a non-negative integer, otherwise just uses default
      * formatting.
      * @param buf
      * @param d
      */
-    private void appendDouble(StringBuffer buf, double d) {
-        if (df == null) {
+    private void appendDouble(StringBuilder buf, double d) {
+        if (formatter == null) {
             buf.append(d);
         } else {
-            buf.append(df.format(d));
+            formatter.append(buf, d);
         }
     }
 }
@@ -24,6 +24,7 @@ package tyche.evolution.tree;
 import beast.base.core.BEASTInterface;
 import beast.base.core.Citation;
 import beast.base.core.Description;
+import beast.base.core.Input;
 import beast.base.core.Log;
 import beast.base.evolution.operator.Exchange;
 import beast.base.evolution.operator.ScaleOperator;
@@ -38,6 +39,7 @@ import beast.base.inference.StateNode;
 import beast.pkgmgmt.BEASTClassLoader;
 import tyche.evolution.operator.*;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
@@ -59,10 +61,113 @@ import java.util.Objects;
         year = 2025, firstAuthorSurname = "Fielding", DOI="10.1101/2025.10.21.683591")
 public class GermlineRootTree extends MetadataTree {
 
+    /**
+     * the node number of the germline, or -1 if there is no germline. Tip numbers do not change with the topology, so
+     * this is the index that nodes, likelihoods, operators and loggers use to identify the germline instead of matching
+     * taxon labels.
+     */
     protected int germlineNum = -1;
 
+    /**
+     * whether the germline has been looked for, so that germlineNum can be relied on
+     */
+    protected boolean nodeRolesKnown = false;
+
     protected String nodeType;
 
+    /**
+     * makes the nodes of this tree, reusing released nodes
+     */
+    protected GRTNodeFactory nodeFactory;
+
+    /**
+     * input object for whether to store and restore by copy-on-write
+     */
+    public Input<Boolean> copyOnWriteInput = new Input<>("copyOnWrite", "whether to store only the nodes that change after each store and restore just those, instead of copying every node on each store (default false)", false);
+
+    /**
+     * whether to store and restore by copy-on-write
+     */
+    protected boolean copyOnWrite = false;
+
+    /**
+     * copy-on-write journal: the nodes changed since the last store, with their height, parent and children as they
+     * were at the store. journalStamp identifies the current store, and nodes remember the stamp they were last
+     * recorded in, so each node is only recorded once per store.
+     */
+    private boolean journalActive = false;
+    private long journalStamp = 0;
+    private GRTNode[] journalNodes = new GRTNode[16];
+    private double[] journalHeights = new double[16];
+    private double[] journalMirrorHeights = new double[16];
+    private Node[] journalParents = new Node[16];
+    private Node[][] journalChildren = new Node[16][];
+    private int[] journalChildCounts = new int[16];
+    private int journalCount = 0;
+    private Node journalRoot;
+
+    /**
+     * whether journalNodes lists every node changed since the last store. Without copy-on-write only the nodes are
+     * listed, so that likelihoods can update just the changed nodes instead of scanning the whole tree.
+     */
+    private boolean changedNodesKnown = false;
+
+    /**
+     * the version when the list of changed nodes was last started
+     */
+    private long journalVersion = 0;
+
+    /**
+     * incremented whenever a node changes, with the value it had after the last change of each node, indexed by node
+     * number, and after the last change that may have changed every node
+     */
+    private long nodeVersion = 0;
+    private long[] nodeVersions = new long[0];
+    private long allNodesVersion = 0;
+
+    /**
+     * the order of the nodes at the last store, only saved if the root changes, as that can renumber nodes
+     */
+    private Node[] journalNodeOrder;
+    private boolean journalNodeOrderSaved = false;
+
+    /**
+     * whether every node may be dirty, so that cleaning has to visit every node
+     */
+    private boolean allNodesDirty = true;
+
+    /**
+     * incremented whenever the topology of the current nodes changes, so cached traversals know to update
+     */
+    protected long topologyVersion = 0;
+
+    private final TreeTraversal traversal = new TreeTraversal();
+
+    /**
+     * the last topology version handed out, so that every topology gets a new version, and the topology version at
+     * the last store, or -1 if it is not known
+     */
+    private long lastTopologyVersion = 0;
+    private long storedTopologyVersion = -1;
+
+    /**
+     * cached whole-tree traversals and struct-of-arrays mirror of the current nodes. The topology arrays come in two
+     * sets so that store only keeps a reference to the current set and restore only swaps it back. A set kept by store
+     * is not written to for any other topology: the first rebuild after the topology changes moves to the other set.
+     * There is one array of heights, updated by GRTNode as they change. The height each changed node had in it at the
+     * store is recorded in the journal, so restore only puts those back.
+     */
+    private final TopologyArrays[] topologyArraysPair = {new TopologyArrays(), new TopologyArrays()};
+    private TopologyArrays topologyArrays = topologyArraysPair[0];
+    private TopologyArrays storedTopologyArrays = null;
+    private final HeightMirror heightMirror = new HeightMirror();
+
+    /**
+     * whether the heights were known at the last store and the journal has the stored height of every node whose
+     * height has changed since, so that restore can undo the changes rather than rebuild the heights
+     */
+    private boolean heightMirrorRestorable = false;
+
     private static final Map<String, String> GRTCompatibleOperatorsSuggestions = new HashMap<>(){
         {
             put(WilsonBalding.class.getName(), GRTWilsonBalding.class.getName());
@@ -92,8 +197,13 @@ public class GermlineRootTree extends MetadataTree {
             // throw error if the input node type can't be found by BEASTClassLoader
             throw new IllegalArgumentException("Cannot find type of nodeTypeInput " + nodeTypeInput.get() + ": " + e.getMessage());
         }
+        if (nodeFactory != null && !nodeFactory.getNodeType().equals(nodeType)) {
+            // made before the node type was known
+            nodeFactory = null;
+        }
         // initialize the tree as any normal tree would be initialized
         super.initAndValidate();
+        copyOnWrite = copyOnWriteInput.get();
 
         // get the germline number and validate there's only one germline
         findGermline();
@@ -109,6 +219,7 @@ public class GermlineRootTree extends MetadataTree {
      * checks all external nodes to see if any contain "germline" in their name
      */
     protected void findGermline() {
+        germlineNum = -1;
         for (Node node : getExternalNodes()) {
             if (node.getID().toUpperCase().contains("germline".toUpperCase())) {
                 if (germlineNum != -1) {
@@ -117,6 +228,7 @@ public class GermlineRootTree extends MetadataTree {
                 this.germlineNum = node.getNr();
             }
         }
+        nodeRolesKnown = true;
     }
 
     /**
@@ -127,6 +239,58 @@ public class GermlineRootTree extends MetadataTree {
         return germlineNum;
     }
 
+    /**
+     * Get the topology version, which changes whenever the topology of the current nodes changes, so that callers can
+     * tell when something they worked out from the topology needs updating
+     * @return the topology version
+     */
+    public long getTopologyVersion() {
+        return topologyVersion;
+    }
+
+    /**
+     * Whether the germline has been looked for, so that the node roles of this tree can be relied on
+     * @return true if the node roles are known, otherwise false
+     */
+    public boolean hasNodeRoles() {
+        return nodeRolesKnown;
+    }
+
+    /**
+     * Is this node the germline?
+     * @param node the node to check
+     * @return true if the node is the germline of this tree, otherwise false
+     */
+    public boolean isGermline(Node node) {
+        return germlineNum >= 0 && node.getNr() == germlineNum;
+    }
+
+    /**
+     * Is this node the germline, attached directly to the root?
+     * @param node the node to check
+     * @return true if the node is the germline and its parent is the root, otherwise false
+     */
+    public boolean isGermlineRootChild(Node node) {
+        return isGermline(node) && node.getParent() != null && node.getParent().isRoot();
+    }
+
+    /**
+     * Get the most recent common ancestor of the sampled (non-germline) tips, which is the root's other child if the
+     * germline is a child of the root, and otherwise the root itself
+     * @return the node that is the most recent common ancestor of the sampled tips
+     */
+    public Node getMRCA() {
+        Node currentRoot = getRoot();
+        if (germlineNum >= 0 && !currentRoot.isLeaf()) {
+            if (currentRoot.getLeft().getNr() == germlineNum) {
+                return currentRoot.getRight();
+            } else if (currentRoot.getRight().getNr() == germlineNum) {
+                return currentRoot.getLeft();
+            }
+        }
+        return currentRoot;
+    }
+
     /**
      * checks all beast "outputs" associated with this tree to see if any are a RandomTree tree initializer, and if so,
      * ensures that the tree initializer is using a compatible node type.
@@ -197,18 +361,486 @@ public class GermlineRootTree extends MetadataTree {
 
     }
 
+    /**
+     * Record that the topology has changed at this node. Changes to the stored copies of the nodes are ignored.
+     * @param node the node whose parent or children changed, or null if the change is not specific to a node
+     */
+    public void topologyChanged(Node node) {
+        if (node == null || (m_nodes != null && node.getNr() >= 0 && node.getNr() < m_nodes.length && m_nodes[node.getNr()] == node)) {
+            topologyVersion = ++lastTopologyVersion;
+        }
+    }
+
+    /**
+     * Get the set of topology arrays to rebuild for the current topology, moving to the other set if the current set
+     * is kept by the last store for a different topology
+     * @return the set of topology arrays to write to
+     */
+    private TopologyArrays getWritableTopologyArrays() {
+        if (topologyArrays == storedTopologyArrays && topologyVersion != storedTopologyVersion) {
+            topologyArrays = (topologyArrays == topologyArraysPair[0]) ? topologyArraysPair[1] : topologyArraysPair[0];
+        }
+        return topologyArrays;
+    }
+
+    /**
+     * Update the cached traversals if the topology has changed since they were made, and point them at the current
+     * nodes if the nodes have been swapped with the stored nodes since
+     */
+    protected synchronized void updateTraversals() {
+        final TopologyArrays arrays = topologyArrays;
+        if (arrays.traversalVersion == topologyVersion) {
+            if (arrays.nodesResolvedFor != m_nodes) {
+                arrays.resolveNodes(m_nodes);
+            }
+            return;
+        }
+        getWritableTopologyArrays().updateTraversals(traversal, getRoot(), getNodeCount(), m_nodes);
+        topologyArrays.traversalVersion = topologyVersion;
+    }
+
+    /**
+     * Get all nodes of the tree in pre-order (each node before its children), cached until the topology changes.
+     * The subtree of a node is the contiguous range starting at getPreOrderPosition with length getSubtreeSize.
+     * @return the nodes in pre-order, which must not be modified
+     */
+    public Node[] getPreOrder() {
+        updateTraversals();
+        return topologyArrays.preOrderNodes;
+    }
+
+    /**
+     * Get all nodes of the tree in post-order (each node after its children), cached until the topology changes.
+     * @return the nodes in post-order, which must not be modified
+     */
+    public Node[] getPostOrder() {
+        updateTraversals();
+        return topologyArrays.postOrderNodes;
+    }
+
+    /**
+     * Get the position of a node in the cached pre-order
+     * @param nodeNum the node number
+     * @return the index of the node in getPreOrder()
+     */
+    public int getPreOrderPosition(int nodeNum) {
+        updateTraversals();
+        return topologyArrays.preOrderPositions[nodeNum];
+    }
+
+    /**
+     * Get the number of nodes in the subtree below and including a node
+     * @param nodeNum the node number
+     * @return the size of the subtree
+     */
+    public int getSubtreeSize(int nodeNum) {
+        updateTraversals();
+        return topologyArrays.subtreeSizes[nodeNum];
+    }
+
+    /**
+     * Whether a node is one of the current nodes of this tree, rather than a stored copy or a node of another tree
+     * @param node the node to check
+     * @return true if the node is current, otherwise false
+     */
+    protected boolean isCurrentNode(Node node) {
+        final int nodeNum = node.getNr();
+        return m_nodes != null && nodeNum >= 0 && nodeNum < m_nodes.length && m_nodes[nodeNum] == node;
+    }
+
+    /**
+     * Record the new height of a node in the primitive mirror. Changes to the stored copies of the nodes are ignored.
+     * @param node   the node whose height changed
+     * @param height the new height
+     */
+    public void heightChanged(Node node, double height) {
+        if (heightMirror.known && isCurrentNode(node)) {
+            if (!(node instanceof GRTNode) || ((GRTNode) node).journalStamp != journalStamp) {
+                // not recorded in the journal, so restore couldn't put back its stored height
+                heightMirrorRestorable = false;
+            }
+            heightMirror.heights[node.getNr()] = height;
+        }
+    }
+
+    /**
+     * Bring the primitive mirror up to date with the current nodes, rebuilding the topology arrays only if the
+     * topology has changed, and the heights only if they have not been kept up to date since the last store.
+     */
+    protected synchronized void updateMirror() {
+        final int nodeCount = getNodeCount();
+        updateTraversals();
+        if (topologyArrays.mirrorVersion != topologyVersion || topologyArrays.parentNums.length != nodeCount) {
+            getWritableTopologyArrays().updateMirror(m_nodes, nodeCount);
+            topologyArrays.mirrorVersion = topologyVersion;
+            // the germline height follows the root height, which may have changed with the topology
+            if (germlineNum >= 0 && germlineNum < nodeCount) {
+                heightChanged(m_nodes[germlineNum], m_nodes[germlineNum].getHeight());
+            }
+        }
+        if (!heightMirror.known || heightMirror.heights.length != nodeCount) {
+            heightMirror.update(m_nodes, nodeCount);
+            // the journal has no stored heights for nodes that changed before now
+            heightMirrorRestorable = false;
+        }
+    }
+
+    /**
+     * Keep references to the current mirror and topology version, so that restore can put them back
+     */
+    private void storeMirror() {
+        storedTopologyVersion = topologyVersion;
+        storedTopologyArrays = topologyArrays;
+        heightMirrorRestorable = heightMirror.known;
+    }
+
+    /**
+     * Put back the mirror and topology version kept by the last store, after the nodes have been restored
+     * @param journalComplete whether the journal lists every node changed since the last store
+     */
+    private void restoreMirror(final boolean journalComplete) {
+        if (storedTopologyVersion >= 0) {
+            // the nodes are exactly as they were at the store, so the topology version of that store is valid again
+            topologyVersion = storedTopologyVersion;
+        } else {
+            topologyChanged(null);
+        }
+        if (storedTopologyArrays != null) {
+            topologyArrays = storedTopologyArrays;
+        }
+        if (heightMirrorRestorable && journalComplete) {
+            final double[] heights = heightMirror.heights;
+            for (int k = 0; k < journalCount; k++) {
+                heights[journalNodes[k].getNr()] = journalMirrorHeights[k];
+            }
+        } else {
+            heightMirror.known = false;
+        }
+        heightMirrorRestorable = false;
+    }
+
+    /**
+     * Forget the mirror and the stored topology version, for when the nodes are replaced
+     */
+    private void invalidateMirror() {
+        storedTopologyVersion = -1;
+        storedTopologyArrays = null;
+        heightMirrorRestorable = false;
+        heightMirror.known = false;
+        topologyChanged(null);
+    }
+
+    /**
+     * Get the parent number of each node, -1 for the root
+     * @return parent node numbers indexed by node number, which must not be modified
+     */
+    public int[] getParentNums() {
+        updateMirror();
+        return topologyArrays.parentNums;
+    }
+
+    /**
+     * Get the left child number of each node, -1 for tips
+     * @return left child node numbers indexed by node number, which must not be modified
+     */
+    public int[] getLeftNums() {
+        updateMirror();
+        return topologyArrays.leftNums;
+    }
+
+    /**
+     * Get the right child number of each node, -1 for tips
+     * @return right child node numbers indexed by node number, which must not be modified
+     */
+    public int[] getRightNums() {
+        updateMirror();
+        return topologyArrays.rightNums;
+    }
+
+    /**
+     * Get the height of each node
+     * @return node heights indexed by node number, which must not be modified
+     */
+    public double[] getNodeHeights() {
+        updateMirror();
+        return heightMirror.heights;
+    }
+
+    /**
+     * Get the node numbers in post-order (each node after its children)
+     * @return node numbers in post-order, which must not be modified
+     */
+    public int[] getPostOrderNums() {
+        updateMirror();
+        return topologyArrays.postOrderNums;
+    }
+
+    /**
+     * Whether the nodes changed since the last store are listed, which is not the case before the first store or
+     * after everything has been made dirty or replaced
+     * @return true if getChangedNode lists every changed node, otherwise false
+     */
+    public boolean knowsChangedNodes() {
+        return changedNodesKnown;
+    }
+
+    /**
+     * Get the number of nodes changed since the last store. Only meaningful if knowsChangedNodes is true.
+     * @return the number of changed nodes
+     */
+    public int getChangedNodeCount() {
+        return journalCount;
+    }
+
+    /**
+     * Get one of the nodes changed since the last store, in the order they first changed
+     * @param k which of the changed nodes to get, from 0 to getChangedNodeCount() - 1
+     * @return the changed node
+     */
+    public Node getChangedNode(int k) {
+        return journalNodes[k];
+    }
+
+    /**
+     * Get the version when the list of changed nodes was started, so that callers can tell whether a node that is not
+     * listed has changed since they last read it
+     * @return the version at the last store
+     */
+    public long getChangedNodesVersion() {
+        return journalVersion;
+    }
+
+    /**
+     * Get a number that is incremented whenever a node of this tree changes, so that callers can tell which nodes have
+     * changed since they last read it by comparing it with getNodeVersion
+     * @return the current version
+     */
+    public long getVersion() {
+        return nodeVersion;
+    }
+
+    /**
+     * Get the version of the last change to the height, parent or children of a node. Changes that are later restored
+     * still count as changes.
+     * @param nodeNum the number of the node
+     * @return the version after the last change of the node
+     */
+    public long getNodeVersion(int nodeNum) {
+        if (nodeNum >= nodeVersions.length) {
+            return nodeVersion;
+        }
+        return Math.max(nodeVersions[nodeNum], allNodesVersion);
+    }
+
+    /**
+     * Record that every node may have changed
+     */
+    private void allNodesChanged() {
+        allNodesVersion = ++nodeVersion;
+    }
+
+    /**
+     * Record a node before it changes. Only the first change after a store is recorded, and changes to nodes that
+     * are not current nodes of this tree are ignored. If storing by copy-on-write the state of the node is recorded
+     * as well, otherwise only the node is listed.
+     * @param node     the node that is about to change
+     * @param topology whether the parent or children of the node are changing
+     */
+    void willChange(GRTNode node, boolean topology) {
+        if (!isCurrentNode(node)) {
+            return;
+        }
+        final int nodeNum = node.getNr();
+        if (nodeNum >= nodeVersions.length) {
+            nodeVersions = Arrays.copyOf(nodeVersions, m_nodes.length);
+        }
+        nodeVersions[nodeNum] = ++nodeVersion;
+        if (!journalActive && !changedNodesKnown) {
+            return;
+        }
+        if (node.journalStamp == journalStamp) {
+            return;
+        }
+        node.journalStamp = journalStamp;
+        if (journalCount == journalNodes.length) {
+            final int capacity = journalCount * 2;
+            journalNodes = Arrays.copyOf(journalNodes, capacity);
+            journalHeights = Arrays.copyOf(journalHeights, capacity);
+            journalMirrorHeights = Arrays.copyOf(journalMirrorHeights, capacity);
+            journalParents = Arrays.copyOf(journalParents, capacity);
+            journalChildren = Arrays.copyOf(journalChildren, capacity);
+            journalChildCounts = Arrays.copyOf(journalChildCounts, capacity);
+        }
+        final int k = journalCount++;
+        journalNodes[k] = node;
+        if (heightMirrorRestorable) {
+            journalMirrorHeights[k] = heightMirror.heights[nodeNum];
+        }
+        if (!journalActive) {
+            return;
+        }
+        final int childCount = node.getChildCount();
+        if (journalChildren[k] == null || journalChildren[k].length < childCount) {
+            journalChildren[k] = new Node[Math.max(2, childCount)];
+        }
+        for (int i = 0; i < childCount; i++) {
+            journalChildren[k][i] = node.getChild(i);
+        }
+        journalHeights[k] = node.getRawHeight();
+        journalParents[k] = node.getParent();
+        journalChildCounts[k] = childCount;
+    }
+
+    /**
+     * Start a new copy-on-write journal
+     */
+    private void storeByJournal() {
+        resetJournal();
+        journalNodeOrderSaved = false;
+        journalRoot = root;
+        journalActive = true;
+        storeMirror();
+    }
+
+    /**
+     * Start a new list of changed nodes, so that each node is recorded again the first time it changes
+     */
+    private void resetJournal() {
+        journalStamp++;
+        journalVersion = nodeVersion;
+        for (int k = 0; k < journalCount; k++) {
+            journalNodes[k] = null;
+            journalParents[k] = null;
+        }
+        journalCount = 0;
+        changedNodesKnown = true;
+    }
+
+    /**
+     * Undo the changes recorded in the copy-on-write journal
+     */
+    private void restoreByJournal() {
+        if (journalNodeOrderSaved) {
+            // the root changed, which may have renumbered nodes
+            System.arraycopy(journalNodeOrder, 0, m_nodes, 0, m_nodes.length);
+            for (int i = 0; i < m_nodes.length; i++) {
+                m_nodes[i].setNr(i);
+            }
+        }
+        for (int k = 0; k < journalCount; k++) {
+            journalNodes[k].restoreState(journalHeights[k], journalParents[k], journalChildren[k], journalChildCounts[k]);
+        }
+        root = journalRoot;
+        hasStartedEditing = false;
+        restoreMirror(true);
+    }
+
+    /**
+     * Mark the nodes recorded in the copy-on-write journal, and their children, clean. Other nodes can only have been
+     * made dirty through a recorded node.
+     */
+    private void cleanJournaledNodes() {
+        for (int k = 0; k < journalCount; k++) {
+            journalNodes[k].cleanWithChildren();
+        }
+        if (journalRoot instanceof GRTNode) {
+            ((GRTNode) journalRoot).cleanWithChildren();
+        }
+    }
+
+    @Override
+    public void setEverythingDirty(final boolean isDirty) {
+        if (!copyOnWrite || !journalActive || isDirty || allNodesDirty) {
+            super.setEverythingDirty(isDirty);
+            allNodesDirty = isDirty;
+            if (isDirty) {
+                changedNodesKnown = false;
+                allNodesChanged();
+            }
+            return;
+        }
+        setSomethingIsDirty(false);
+        cleanJournaledNodes();
+    }
+
+    @Override
+    public void setRoot(Node root) {
+        if (journalActive && root != this.root && !journalNodeOrderSaved && m_nodes != null) {
+            if (journalNodeOrder == null || journalNodeOrder.length != m_nodes.length) {
+                journalNodeOrder = new Node[m_nodes.length];
+            }
+            System.arraycopy(m_nodes, 0, journalNodeOrder, 0, m_nodes.length);
+            journalNodeOrderSaved = true;
+        }
+        if (root != this.root) {
+            // a new root can renumber nodes, which the heights are indexed by, and a renumbered node is not listed
+            heightMirror.known = false;
+            heightMirrorRestorable = false;
+            changedNodesKnown = false;
+        }
+        super.setRoot(root);
+        topologyChanged(null);
+    }
+
+    /**
+     * Find the germline again after taking the nodes of another tree, as tip numbers may differ between trees
+     * @param other the tree to assign from
+     */
+    @Override
+    public void assignFrom(StateNode other) {
+        allNodesDirty = true;
+        clearJournal();
+        super.assignFrom(other);
+        findGermline();
+        invalidateMirror();
+    }
+
+    /**
+     * Find the germline again after taking the nodes of another tree, as tip numbers may differ between trees
+     * @param other the tree to assign from
+     */
+    @Override
+    public void assignFromWithoutID(StateNode other) {
+        allNodesDirty = true;
+        clearJournal();
+        super.assignFromWithoutID(other);
+        findGermline();
+        invalidateMirror();
+    }
+
     @Override
     public void store() {
         if (root instanceof GRTNode) {
             ((GRTNode) root).resetGermline();
         }
+        if (copyOnWrite) {
+            // only the nodes that change from here on are recorded
+            storeByJournal();
+            return;
+        }
         super.store();
 //        System.out.println("Here?");
+        resetJournal();
+        storeMirror();
     }
 
     @Override
     public void restore() {
+        final boolean journalComplete = changedNodesKnown;
+        // the changed nodes are listed again from the next store
+        changedNodesKnown = false;
+        if (copyOnWrite && journalActive) {
+            restoreByJournal();
+            if (root instanceof GRTNode) {
+                ((GRTNode) root).resetGermline();
+            }
+            return;
+        }
         super.restore();
+        allNodesDirty = false;
+        // the current nodes have been swapped with the stored nodes, which the stored mirror and traversals match once
+        // they are pointed at the nodes that are now current
+        restoreMirror(journalComplete);
         if (root instanceof GRTNode) {
             ((GRTNode) root).resetGermline();
         }
@@ -220,11 +852,151 @@ public class GermlineRootTree extends MetadataTree {
      */
     @Override
     protected GRTNode newNode() {
-        try {
-            return (GRTNode) BEASTClassLoader.forName(nodeType).newInstance();
-        } catch (Exception e) {
-            throw new RuntimeException("Cannot create node of type "
-                    + nodeTypeInput.get() + ": " + e.getMessage());
+        return getNodeFactory().newNode();
+    }
+
+    /**
+     * Get the factory that makes the nodes of this tree, creating it the first time
+     * @return the node factory
+     */
+    public GRTNodeFactory getNodeFactory() {
+        if (nodeFactory == null) {
+            // nodes may be needed before initAndValidate has checked the node type
+            final String type = (nodeType != null) ? nodeType : GRTNode.class.getName();
+            try {
+                nodeFactory = new GRTNodeFactory(type);
+            } catch (IllegalArgumentException e) {
+                throw new RuntimeException("Cannot create node of type "
+                        + nodeTypeInput.get() + ": " + e.getMessage());
+            }
+        }
+        return nodeFactory;
+    }
+
+    /**
+     * Stop the copy-on-write journal before the nodes are replaced, as it refers to the current nodes
+     */
+    protected void clearJournal() {
+        journalActive = false;
+        changedNodesKnown = false;
+        allNodesChanged();
+        for (int k = 0; k < journalCount; k++) {
+            journalNodes[k] = null;
+            journalParents[k] = null;
+        }
+        journalCount = 0;
+    }
+
+    /**
+     * Arrays worked out from the topology of the nodes: the whole-tree traversals, the position of each node in the
+     * pre-order and the size of each node's subtree, valid for traversalVersion, and the parent, left and right child
+     * numbers of each node (-1 if there are none), valid for mirrorVersion. The traversals are kept as node numbers,
+     * and the nodes they refer to are looked up in the array of nodes they were last resolved for.
+     */
+    protected static final class TopologyArrays {
+        Node[] preOrderNodes = new Node[0];
+        Node[] postOrderNodes = new Node[0];
+        int[] preOrderNums = new int[0];
+        int[] postOrderNums = new int[0];
+        int[] preOrderPositions = new int[0];
+        int[] subtreeSizes = new int[0];
+        Node[] nodesResolvedFor = null;
+        long traversalVersion = -1;
+
+        int[] parentNums = new int[0];
+        int[] leftNums = new int[0];
+        int[] rightNums = new int[0];
+        long mirrorVersion = -1;
+
+        /**
+         * Fill the traversals from the tree
+         * @param traversal the traversal to use
+         * @param root      the root of the tree
+         * @param nodeCount the number of nodes
+         * @param nodes     the nodes, indexed by node number
+         */
+        void updateTraversals(final TreeTraversal traversal, final Node root, final int nodeCount, final Node[] nodes) {
+            final int count = traversal.preOrder(root);
+            if (preOrderNodes.length != count || preOrderPositions.length < nodeCount) {
+                preOrderNodes = new Node[count];
+                postOrderNodes = new Node[count];
+                preOrderNums = new int[count];
+                postOrderNums = new int[count];
+                preOrderPositions = new int[nodeCount];
+                subtreeSizes = new int[nodeCount];
+            }
+            System.arraycopy(traversal.getNodes(), 0, preOrderNodes, 0, count);
+            for (int i = 0; i < count; i++) {
+                final int nodeNum = preOrderNodes[i].getNr();
+                preOrderNums[i] = nodeNum;
+                preOrderPositions[nodeNum] = i;
+            }
+            traversal.postOrder(root);
+            System.arraycopy(traversal.getNodes(), 0, postOrderNodes, 0, count);
+            for (int i = 0; i < count; i++) {
+                final Node node = postOrderNodes[i];
+                postOrderNums[i] = node.getNr();
+                int size = 1;
+                for (int j = 0; j < node.getChildCount(); j++) {
+                    size += subtreeSizes[node.getChild(j).getNr()];
+                }
+                subtreeSizes[node.getNr()] = size;
+            }
+            nodesResolvedFor = nodes;
+        }
+
+        /**
+         * Point the traversals at the nodes with the same numbers in another array of nodes with the same topology
+         * @param nodes the nodes, indexed by node number
+         */
+        void resolveNodes(final Node[] nodes) {
+            for (int i = 0; i < preOrderNums.length; i++) {
+                preOrderNodes[i] = nodes[preOrderNums[i]];
+                postOrderNodes[i] = nodes[postOrderNums[i]];
+            }
+            nodesResolvedFor = nodes;
+        }
+
+        /**
+         * Fill the parent and child numbers from the nodes
+         * @param nodes     the nodes, indexed by node number
+         * @param nodeCount the number of nodes
+         */
+        void updateMirror(final Node[] nodes, final int nodeCount) {
+            if (parentNums.length != nodeCount) {
+                parentNums = new int[nodeCount];
+                leftNums = new int[nodeCount];
+                rightNums = new int[nodeCount];
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                final Node node = nodes[i];
+                parentNums[i] = node.getParent() == null ? -1 : node.getParent().getNr();
+                leftNums[i] = node.getLeft() == null ? -1 : node.getLeft().getNr();
+                rightNums[i] = node.getRight() == null ? -1 : node.getRight().getNr();
+            }
+        }
+    }
+
+    /**
+     * Primitive array of the heights of the nodes, indexed by node number
+     */
+    protected static final class HeightMirror {
+        double[] heights = new double[0];
+        boolean known = false;
+
+        /**
+         * Fill the heights from the nodes
+         * @param nodes     the nodes, indexed by node number
+         * @param nodeCount the number of nodes
+         */
+        void update(final Node[] nodes, final int nodeCount) {
+            if (heights.length != nodeCount) {
+                heights = new double[nodeCount];
+            }
+            for (int i = 0; i < nodeCount; i++) {
+                heights[i] = nodes[i].getHeight();
+            }
+            known = true;
         }
     }
 
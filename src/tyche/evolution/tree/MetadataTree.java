@@ -22,6 +22,7 @@ package tyche.evolution.tree;
 
 import beast.base.core.Citation;
 import beast.base.core.Description;
+import beast.base.inference.StateNode;
 import beast.base.evolution.tree.Node;
 import beast.base.evolution.tree.Tree;
 import beast.base.evolution.tree.TraitSet;
@@ -44,10 +45,20 @@ import java.util.*;
 public class MetadataTree extends Tree {
 
     /**
-     * HashMap of metadata hash maps
-     * i.e. tipMetaData.get("traitName") will return a hashmap that maps each tip to its traitName value.
+     * columns of tip metadata by trait name, each indexed by node number
+     * i.e. tipMetaData.get("traitName").getValue(nodeNr) will return the traitName value of that tip.
      */
-    protected Map<String, Map<String, Object>> tipMetaData = new HashMap<>();
+    protected Map<String, TipMetaDataColumn> tipMetaData = new LinkedHashMap<>();
+
+    /**
+     * the ID of each tip when the columns were filled, indexed by node number, to notice when tips are renumbered
+     */
+    protected String[] tipMetaDataIDs;
+
+    /**
+     * the node number of each tip by ID, for looking tips up by taxon
+     */
+    protected Map<String, Integer> tipNumsByID = new HashMap<>();
 
     /**
      * Process trait sets.
@@ -55,20 +66,83 @@ public class MetadataTree extends Tree {
      */
     @Override
     protected void processTraits(List<TraitSet> traitList) {
+        final int nodeCount = Math.max(getNodeCount(), getLeafNodeCount());
+        tipMetaDataIDs = new String[nodeCount];
+        tipNumsByID.clear();
+        for (Node node : getExternalNodes()) {
+            String id = node.getID();
+            if (id != null) {
+                tipMetaDataIDs[node.getNr()] = id;
+                tipNumsByID.put(id, node.getNr());
+            }
+        }
         for (TraitSet traitSet : traitList) {
-            HashMap<String, Object> currentTrait = new HashMap<>();
-            for (Node node : getExternalNodes()) {
-                String id = node.getID();
-                if (id != null) {
-                    currentTrait.put(id, traitSet.getStringValue(id));
+            TipMetaDataColumn column = new TipMetaDataColumn(traitSet.getTraitName(), nodeCount);
+            for (int nodeNr = 0; nodeNr < nodeCount; nodeNr++) {
+                if (tipMetaDataIDs[nodeNr] != null) {
+                    column.setValue(nodeNr, traitSet.getStringValue(tipMetaDataIDs[nodeNr]));
                 }
             }
-            tipMetaData.put(traitSet.getTraitName(), currentTrait);
+            tipMetaData.put(traitSet.getTraitName(), column);
         }
         super.processTraits(traitList);
         traitsProcessed = true;
     }
 
+    /**
+     * Move the metadata to the tips' new node numbers if the tips have been renumbered, e.g. after taking the nodes
+     * of another tree
+     */
+    protected void renumberTipMetaData() {
+        if (tipMetaDataIDs == null || tipMetaData.isEmpty()) {
+            return;
+        }
+        boolean renumbered = false;
+        for (Node node : getExternalNodes()) {
+            int nodeNr = node.getNr();
+            if (nodeNr >= tipMetaDataIDs.length || !Objects.equals(tipMetaDataIDs[nodeNr], node.getID())) {
+                renumbered = true;
+                break;
+            }
+        }
+        if (!renumbered) {
+            return;
+        }
+        final int nodeCount = Math.max(getNodeCount(), getLeafNodeCount());
+        final int[] newNums = new int[tipMetaDataIDs.length];
+        Arrays.fill(newNums, -1);
+        final String[] newIDs = new String[nodeCount];
+        for (Node node : getExternalNodes()) {
+            Integer oldNr = tipNumsByID.get(node.getID());
+            if (oldNr != null) {
+                newNums[oldNr] = node.getNr();
+            }
+        }
+        tipNumsByID.clear();
+        for (Node node : getExternalNodes()) {
+            if (node.getID() != null) {
+                newIDs[node.getNr()] = node.getID();
+                tipNumsByID.put(node.getID(), node.getNr());
+            }
+        }
+        for (TipMetaDataColumn column : tipMetaData.values()) {
+            column.renumber(newNums, nodeCount);
+        }
+        tipMetaDataIDs = newIDs;
+    }
+
+    @Override
+    public void assignFrom(StateNode other) {
+        super.assignFrom(other);
+        renumberTipMetaData();
+    }
+
+    @Override
+    public void assignFromWithoutID(StateNode other) {
+        super.assignFromWithoutID(other);
+        renumberTipMetaData();
+    }
+
     /**
      * Get the metadata value associated with a tip by its trait name
      * @param pattern  a String representing the name of the trait
@@ -76,10 +150,35 @@ public class MetadataTree extends Tree {
      * @return Object representing the metadata value of trait name 'pattern' associated with tip 'tipID'
      */
     public Object getTipMetaData(String pattern, String tipID) {
-        if (!tipMetaData.containsKey(pattern)) {
+        TipMetaDataColumn column = tipMetaData.get(pattern);
+        Integer nodeNr = tipNumsByID.get(tipID);
+        if (column == null || nodeNr == null) {
             return null;
         }
-        return tipMetaData.get(pattern).get(tipID);
+        return column.getValue(nodeNr);
+    }
+
+    /**
+     * Get the metadata value associated with a tip by its trait name
+     * @param pattern  a String representing the name of the trait
+     * @param nodeNr   the node number of the tip to get metadata for
+     * @return Object representing the metadata value of trait name 'pattern' associated with tip 'nodeNr'
+     */
+    public Object getTipMetaData(String pattern, int nodeNr) {
+        TipMetaDataColumn column = tipMetaData.get(pattern);
+        if (column == null) {
+            return null;
+        }
+        return column.getValue(nodeNr);
+    }
+
+    /**
+     * Get the column of metadata for a trait, for reading the values of many tips by node number
+     * @param pattern a String representing the name of the trait
+     * @return the column, or null if there is no trait with this name
+     */
+    public TipMetaDataColumn getTipMetaDataColumn(String pattern) {
+        return tipMetaData.get(pattern);
     }
 
     /**
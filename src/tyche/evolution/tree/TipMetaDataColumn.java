@@ -0,0 +1,209 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.tree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * One trait of tip metadata, stored by node number. Each distinct value is stored once as a level, and each tip holds
+ * the integer code of its level, so looking up a tip is an array read and comparing tips to a value is an integer
+ * comparison. If every value is a number, the values are also available as a primitive double column.
+ */
+public class TipMetaDataColumn {
+
+    /**
+     * code for tips without a value, and for values that aren't levels of this trait
+     */
+    public static final int MISSING = -1;
+
+    /**
+     * the name of the trait
+     */
+    private final String traitName;
+
+    /**
+     * the code of each tip's level, indexed by node number, MISSING for internal nodes and tips without a value
+     */
+    private int[] codes;
+
+    /**
+     * the distinct values, indexed by code, and the code of each value
+     */
+    private final List<String> levels = new ArrayList<>();
+    private final Map<String, Integer> levelCodes = new HashMap<>();
+
+    /**
+     * each tip's value as a number, indexed by node number, NaN for nodes without a value; null if any value is not a
+     * number
+     */
+    private double[] numericValues;
+
+    /**
+     * Make an empty column
+     * @param traitName the name of the trait
+     * @param nodeCount the number of nodes, or at least the largest tip node number plus one
+     */
+    public TipMetaDataColumn(final String traitName, final int nodeCount) {
+        this.traitName = traitName;
+        codes = new int[nodeCount];
+        Arrays.fill(codes, MISSING);
+        numericValues = new double[nodeCount];
+        Arrays.fill(numericValues, Double.NaN);
+    }
+
+    /**
+     * Set the value of a tip
+     * @param nodeNum the node number of the tip
+     * @param value   the value, or null if the tip has no value
+     */
+    public void setValue(final int nodeNum, final String value) {
+        if (value == null) {
+            codes[nodeNum] = MISSING;
+            if (numericValues != null) {
+                numericValues[nodeNum] = Double.NaN;
+            }
+            return;
+        }
+        Integer code = levelCodes.get(value);
+        if (code == null) {
+            code = levels.size();
+            levels.add(value);
+            levelCodes.put(value, code);
+        }
+        codes[nodeNum] = code;
+        if (numericValues != null) {
+            try {
+                numericValues[nodeNum] = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                // not a numeric trait
+                numericValues = null;
+            }
+        }
+    }
+
+    /**
+     * Get the name of the trait
+     * @return the trait name
+     */
+    public String getTraitName() {
+        return traitName;
+    }
+
+    /**
+     * Get the code of a tip's value
+     * @param nodeNum the node number
+     * @return the code, or MISSING if the node has no value
+     */
+    public int getCode(final int nodeNum) {
+        return nodeNum >= 0 && nodeNum < codes.length ? codes[nodeNum] : MISSING;
+    }
+
+    /**
+     * Get the code of a value
+     * @param value the value
+     * @return the code, or MISSING if no tip has this value
+     */
+    public int getLevelCode(final String value) {
+        final Integer code = levelCodes.get(value);
+        return code == null ? MISSING : code;
+    }
+
+    /**
+     * Get the value with a code
+     * @param code the code
+     * @return the value, or null for MISSING
+     */
+    public String getLevel(final int code) {
+        return code == MISSING ? null : levels.get(code);
+    }
+
+    /**
+     * Get the number of distinct values
+     * @return the number of levels
+     */
+    public int getLevelCount() {
+        return levels.size();
+    }
+
+    /**
+     * Get a tip's value
+     * @param nodeNum the node number
+     * @return the value, or null if the node has no value
+     */
+    public String getValue(final int nodeNum) {
+        return getLevel(getCode(nodeNum));
+    }
+
+    /**
+     * Whether every value of this trait is a number
+     * @return true if the numeric column is available, otherwise false
+     */
+    public boolean isNumeric() {
+        return numericValues != null;
+    }
+
+    /**
+     * Get a tip's value as a number
+     * @param nodeNum the node number
+     * @return the value, or NaN if the node has no value
+     * @throws IllegalStateException if the trait is not numeric
+     */
+    public double getNumericValue(final int nodeNum) {
+        if (numericValues == null) {
+            throw new IllegalStateException("Trait " + traitName + " is not numeric");
+        }
+        return nodeNum >= 0 && nodeNum < numericValues.length ? numericValues[nodeNum] : Double.NaN;
+    }
+
+    /**
+     * Move the values to new node numbers, for when the tips of the tree have been renumbered
+     * @param newNums the new node number of each old node number, or -1 if the node is gone
+     * @param nodeCount the new number of nodes
+     */
+    public void renumber(final int[] newNums, final int nodeCount) {
+        final int[] newCodes = new int[nodeCount];
+        Arrays.fill(newCodes, MISSING);
+        final double[] newNumericValues = numericValues == null ? null : new double[nodeCount];
+        if (newNumericValues != null) {
+            Arrays.fill(newNumericValues, Double.NaN);
+        }
+        for (int oldNum = 0; oldNum < codes.length && oldNum < newNums.length; oldNum++) {
+            final int newNum = newNums[oldNum];
+            if (newNum >= 0 && newNum < nodeCount) {
+                newCodes[newNum] = codes[oldNum];
+                if (newNumericValues != null) {
+                    newNumericValues[newNum] = numericValues[oldNum];
+                }
+            }
+        }
+        codes = newCodes;
+        numericValues = newNumericValues;
+    }
+}
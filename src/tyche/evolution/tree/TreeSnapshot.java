@@ -0,0 +1,287 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.tree;
+
+import beast.base.evolution.branchratemodel.BranchRateModel;
+import beast.base.evolution.tree.Node;
+import beast.base.evolution.tree.Tree;
+import beast.base.inference.parameter.IntegerParameter;
+
+import java.util.Arrays;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * A copy of the state of a tree at one sample, as primitive arrays indexed by node number: the children and heights of
+ * each node, and optionally its type and branch rate. A snapshot doesn't refer to the tree it was taken from, so it can
+ * be written out on another thread or after the tree has moved on. Snapshots are meant to be reused, so taking one
+ * only allocates when the tree has grown.
+ */
+public class TreeSnapshot {
+
+    private int nodeCount = 0;
+    private long sample = -1;
+    private int root = -1;
+    private int germlineNum = -1;
+    private boolean hasTypes = false;
+    private boolean hasRates = false;
+    private String typesName = "";
+
+    int[] left = new int[0];
+    int[] right = new int[0];
+    int[] parent = new int[0];
+    double[] heights = new double[0];
+    int[] types = new int[0];
+    double[] rates = new double[0];
+
+    /**
+     * explicit stack of nodes being written by appendNewick, and how many of their children have been written
+     */
+    private int[] stack = new int[16];
+    private int[] childrenWritten = new int[16];
+
+    /**
+     * Make an empty snapshot, to be filled by take or by a reader
+     */
+    public TreeSnapshot() {
+    }
+
+    /**
+     * Make an empty snapshot with room for a number of nodes
+     * @param nodeCount the number of nodes
+     * @param germlineNum the node number of the germline tip, or -1 if there is none
+     * @param typesName the name to write types under, or null if there are no types
+     * @param hasRates whether there are branch rates
+     */
+    public TreeSnapshot(final int nodeCount, final int germlineNum, final String typesName, final boolean hasRates) {
+        setNodeCount(nodeCount);
+        this.germlineNum = germlineNum;
+        this.hasTypes = typesName != null;
+        this.typesName = typesName != null ? typesName : "";
+        this.hasRates = hasRates;
+    }
+
+    /**
+     * Copy the current state of a tree
+     * @param sample the sample number
+     * @param tree the tree
+     * @param nodeTypes the node types, or null
+     * @param branchRateModel the clock model, or null; each rate is read once
+     */
+    public void take(final long sample, final Tree tree, final IntegerParameter nodeTypes, final BranchRateModel.Base branchRateModel) {
+        final Node[] nodes = tree.getNodesAsArray();
+        setNodeCount(nodes.length);
+        this.sample = sample;
+        root = tree.getRoot().getNr();
+        germlineNum = tree instanceof GermlineRootTree ? ((GermlineRootTree) tree).getGermlineNum() : -1;
+        hasTypes = nodeTypes != null;
+        hasRates = branchRateModel != null;
+        if (hasTypes) {
+            typesName = nodeTypes.getID() != null ? nodeTypes.getID() : "";
+        }
+        parent[root] = -1;
+        for (final Node node : nodes) {
+            final int nr = node.getNr();
+            left[nr] = node.getLeft() == null ? -1 : node.getLeft().getNr();
+            right[nr] = node.getRight() == null ? -1 : node.getRight().getNr();
+            if (node.getParent() != null) {
+                parent[nr] = node.getParent().getNr();
+            }
+            heights[nr] = node.getHeight();
+            if (hasTypes) {
+                types[nr] = nr < nodeTypes.getDimension() ? nodeTypes.getValue(nr) : 0;
+            }
+            if (hasRates) {
+                rates[nr] = branchRateModel.getRateForBranch(node);
+            }
+        }
+    }
+
+    /**
+     * Set the number of nodes, growing the arrays if needed
+     */
+    void setNodeCount(final int nodeCount) {
+        this.nodeCount = nodeCount;
+        if (left.length < nodeCount) {
+            left = new int[nodeCount];
+            right = new int[nodeCount];
+            parent = new int[nodeCount];
+            heights = new double[nodeCount];
+            types = new int[nodeCount];
+            rates = new double[nodeCount];
+        }
+    }
+
+    /**
+     * Set the sample number and root, and work out the parents from the children
+     */
+    void setSample(final long sample, final int root) {
+        this.sample = sample;
+        this.root = root;
+        parent[root] = -1;
+        for (int nr = 0; nr < nodeCount; nr++) {
+            if (left[nr] >= 0) {
+                parent[left[nr]] = nr;
+            }
+            if (right[nr] >= 0) {
+                parent[right[nr]] = nr;
+            }
+        }
+    }
+
+    /**
+     * Get the subtree logged by GRTRootlessLogger: the subtree below the germline root without the germline, or the
+     * whole tree if there is no germline
+     * @return the node number of the root of the subtree
+     */
+    public int getMRCA() {
+        if (germlineNum >= 0 && parent[germlineNum] == root) {
+            return left[root] == germlineNum ? right[root] : left[root];
+        }
+        return root;
+    }
+
+    /**
+     * Append the Newick string of a subtree, in the same layout as GRTRootlessLogger: tips are numbered from 1 in taxon
+     * order, and each node has its type and rate as metadata
+     * @param buf the buffer to append to
+     * @param start the node number of the root of the subtree
+     * @param formatter the formatter for heights and rates, or null for full precision
+     */
+    public void appendNewick(final StringBuilder buf, final int start, final DecimalFormatter formatter) {
+        int top = 0;
+        stack[top] = start;
+        childrenWritten[top++] = 0;
+        while (top > 0) {
+            final int nr = stack[top - 1];
+            final int written = childrenWritten[top - 1];
+            final int next = written == 0 ? left[nr] : written == 1 ? right[nr] : -1;
+            if (left[nr] < 0) {
+                buf.append(nr + 1);
+            } else if (next >= 0) {
+                buf.append(written == 0 ? '(' : ',');
+                childrenWritten[top - 1]++;
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                    childrenWritten = Arrays.copyOf(childrenWritten, top * 2);
+                }
+                stack[top] = next;
+                childrenWritten[top++] = 0;
+                continue;
+            } else {
+                buf.append(')');
+            }
+            if (hasTypes || hasRates) {
+                buf.append("[&");
+                if (hasTypes) {
+                    // written as a double, the way GRTRootlessLogger writes integer parameters
+                    buf.append(typesName.isEmpty() ? "type" : typesName).append('=').append((double) types[nr]);
+                }
+                if (hasRates) {
+                    if (hasTypes) {
+                        buf.append(',');
+                    }
+                    buf.append("rate=");
+                    appendDouble(buf, rates[nr], formatter);
+                }
+                buf.append(']');
+            }
+            buf.append(':');
+            appendDouble(buf, parent[nr] < 0 ? 0.0 : heights[parent[nr]] - heights[nr], formatter);
+            top--;
+        }
+    }
+
+    private static void appendDouble(final StringBuilder buf, final double d, final DecimalFormatter formatter) {
+        if (formatter == null) {
+            buf.append(d);
+        } else {
+            formatter.append(buf, d);
+        }
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public long getSample() {
+        return sample;
+    }
+
+    public int getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the node number of the germline tip, or -1 if the tree had no germline
+     */
+    public int getGermlineNum() {
+        return germlineNum;
+    }
+
+    public boolean hasTypes() {
+        return hasTypes;
+    }
+
+    public boolean hasRates() {
+        return hasRates;
+    }
+
+    public String getTypesName() {
+        return typesName;
+    }
+
+    /**
+     * @return the node number of the left child, or -1 for tips
+     */
+    public int getLeft(final int nr) {
+        return left[nr];
+    }
+
+    /**
+     * @return the node number of the right child, or -1 if there is none
+     */
+    public int getRight(final int nr) {
+        return right[nr];
+    }
+
+    /**
+     * @return the node number of the parent, or -1 for the root
+     */
+    public int getParent(final int nr) {
+        return parent[nr];
+    }
+
+    public double getHeight(final int nr) {
+        return heights[nr];
+    }
+
+    public int getType(final int nr) {
+        return types[nr];
+    }
+
+    public double getRate(final int nr) {
+        return rates[nr];
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.evolution.tree;
+
+import beast.base.evolution.tree.Node;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Recursion-free pre-order and post-order traversals of a (sub)tree, using an explicit stack so that deep,
+ * caterpillar-like trees cannot overflow the call stack. Buffers are reused between traversals, so an instance should
+ * be kept by its owner and not shared between threads. Children are visited in order, left before right, as in the
+ * equivalent recursive traversals.
+ */
+public class TreeTraversal {
+
+    /**
+     * the nodes visited by the last traversal, in order
+     */
+    private Node[] nodes = new Node[16];
+
+    /**
+     * the number of nodes visited by the last traversal
+     */
+    private int count = 0;
+
+    /**
+     * explicit stack of nodes still to visit, and their depth below the start node
+     */
+    private Node[] stack = new Node[16];
+    private int[] depths = new int[16];
+    private int top = 0;
+
+    /**
+     * Visit a node and all of its descendants in pre-order (each node before its children)
+     * @param start the root of the subtree to traverse
+     * @return the number of nodes visited, which are available from getNodes
+     */
+    public int preOrder(final Node start) {
+        return preOrder(start, -1);
+    }
+
+    /**
+     * Visit a node and its descendants in pre-order (each node before its children), down to a limited number of
+     * generations
+     * @param start       the root of the subtree to traverse
+     * @param generations how many generations to visit, where 1 is only the start node, or -1 (or any value less than
+     *                    0) for "all the way to tips"
+     * @return the number of nodes visited, which are available from getNodes
+     */
+    public int preOrder(final Node start, final int generations) {
+        count = 0;
+        top = 0;
+        if (generations == 0) {
+            return 0;
+        }
+        push(start, 0);
+        while (top > 0) {
+            top--;
+            final Node node = stack[top];
+            final int depth = depths[top];
+            stack[top] = null;
+            add(node);
+            if (generations < 0 || depth + 1 < generations) {
+                for (int i = node.getChildCount() - 1; i >= 0; i--) {
+                    push(node.getChild(i), depth + 1);
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Visit a node and all of its descendants in post-order (each node after its children)
+     * @param start the root of the subtree to traverse
+     * @return the number of nodes visited, which are available from getNodes
+     */
+    public int postOrder(final Node start) {
+        count = 0;
+        top = 0;
+        // a pre-order that visits children last to first is the reverse of a post-order
+        push(start, 0);
+        while (top > 0) {
+            top--;
+            final Node node = stack[top];
+            stack[top] = null;
+            add(node);
+            for (int i = 0; i < node.getChildCount(); i++) {
+                push(node.getChild(i), 0);
+            }
+        }
+        for (int i = 0, j = count - 1; i < j; i++, j--) {
+            final Node tmp = nodes[i];
+            nodes[i] = nodes[j];
+            nodes[j] = tmp;
+        }
+        return count;
+    }
+
+    /**
+     * Get the nodes visited by the last traversal. Only the first getCount() entries are valid.
+     * @return the visited nodes, in order
+     */
+    public Node[] getNodes() {
+        return nodes;
+    }
+
+    /**
+     * Get the number of nodes visited by the last traversal
+     * @return the number of visited nodes
+     */
+    public int getCount() {
+        return count;
+    }
+
+    private void add(final Node node) {
+        if (count == nodes.length) {
+            Node[] grown = new Node[nodes.length * 2];
+            System.arraycopy(nodes, 0, grown, 0, count);
+            nodes = grown;
+        }
+        nodes[count++] = node;
+    }
+
+    private void push(final Node node, final int depth) {
+        if (top == stack.length) {
+            Node[] grownStack = new Node[stack.length * 2];
+            System.arraycopy(stack, 0, grownStack, 0, top);
+            stack = grownStack;
+            int[] grownDepths = new int[depths.length * 2];
+            System.arraycopy(depths, 0, grownDepths, 0, top);
+            depths = grownDepths;
+        }
+        stack[top] = node;
+        depths[top] = depth;
+        top++;
+    }
+}
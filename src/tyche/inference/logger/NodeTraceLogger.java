@@ -0,0 +1,336 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.inference.logger;
+
+import beast.base.core.BEASTObject;
+import beast.base.core.Citation;
+import beast.base.core.Description;
+import beast.base.core.Function;
+import beast.base.core.Input;
+import beast.base.core.Log;
+import beast.base.core.Loggable;
+import beast.base.inference.Logger;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.IntegerParameter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static tyche.evolution.tree.BinaryTreeLogFormat.*;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Logs per-node values such as node types, branch rates or expected occupancies to a compact binary trace, in the
+ * format described in NodeTraceReader. Each sample only stores the entries that changed since the previous sample,
+ * with a full key record every keyRecordEvery samples, and an index of the records is written at the end so that
+ * NodeTraceReader can go straight to any sample.
+ * This logger writes its own file rather than to the logger it is placed in, so it should be given a logger of its own.
+ * When resuming, records are appended to the existing trace, starting with a key record, and the index written on
+ * close covers the records of both runs.
+ */
+@Description("Logs per-node values (e.g. nodeTypes, branch rates, expected occupancy) to a compact binary trace that stores only the entries that changed since the previous sample. " +
+        "Writes to its own fileName rather than to the logger it is in. Use tyche.inference.logger.NodeTraceReader to read samples or per-node series.")
+@Citation(value="Fielding, J. J., Wu, S., Melton, H. J., Fisk, N., du Plessis, L., & Hoehn, K. B. (2025).\n" +
+        "TyCHE enables time-resolved lineage tracing of heterogeneously-evolving populations.\n" +
+        "bioRxiv https://doi.org/10.1101/2025.10.21.683591 (2025) doi:10.1101/2025.10.21.683591.",
+        year = 2025, firstAuthorSurname = "Fielding", DOI="10.1101/2025.10.21.683591")
+public class NodeTraceLogger extends BEASTObject implements Loggable {
+
+    /**
+     * input object for the values to log
+     */
+    public Input<List<Function>> functionsInput = new Input<>("log", "per-node values to log, e.g. nodeTypes or a TypeLinkedBranchStatistic", new ArrayList<>(), Input.Validate.REQUIRED);
+
+    /**
+     * input object for the name of the trace file
+     */
+    public Input<String> fileNameInput = new Input<>("fileName", "name of the binary trace file to write", Input.Validate.REQUIRED);
+
+    /**
+     * input object for how often to write a full record
+     */
+    public Input<Integer> keyRecordEveryInput = new Input<>("keyRecordEvery", "write every entry, rather than only changes, once every this many samples", 100);
+
+    private CountingOutputStream counter;
+    private DataOutputStream out;
+    private int keyRecordEvery;
+
+    /**
+     * for each function, whether its values are integers, and the values written by the previous record
+     */
+    private boolean[] isInteger;
+    private double[][] loggedValues;
+
+    /**
+     * node numbers of the entries changed in the current record
+     */
+    private int[] changed;
+
+    /**
+     * the sample, offset and kind of each record written, for the index
+     */
+    private long[] recordSamples = new long[256];
+    private long[] recordOffsets = new long[256];
+    private boolean[] recordIsKey = new boolean[256];
+    private int recordCount = 0;
+
+    /**
+     * the number of the next record to write every entry
+     */
+    private int nextKeyRecord = 0;
+
+    /**
+     * Initialize and validate inputs
+     */
+    @Override
+    public void initAndValidate() {
+        keyRecordEvery = keyRecordEveryInput.get();
+        if (keyRecordEvery < 1) {
+            throw new IllegalArgumentException("keyRecordEvery should be at least 1, not " + keyRecordEvery);
+        }
+        for (Function function : functionsInput.get()) {
+            if (!(function instanceof BEASTObject) || ((BEASTObject) function).getID() == null) {
+                throw new IllegalArgumentException("Every value logged by " + getClass().getSimpleName() + " needs an id");
+            }
+        }
+    }
+
+    @Override
+    public void init(PrintStream printStream) {
+        List<Function> functions = functionsInput.get();
+        isInteger = new boolean[functions.size()];
+        loggedValues = new double[functions.size()][];
+        int maxDimension = 0;
+        for (int f = 0; f < functions.size(); f++) {
+            Function function = functions.get(f);
+            isInteger[f] = function instanceof IntegerParameter;
+            loggedValues[f] = new double[function.getDimension()];
+            maxDimension = Math.max(maxDimension, function.getDimension());
+        }
+        changed = new int[maxDimension];
+        recordCount = 0;
+
+        File file = new File(fileNameInput.get());
+        if (Logger.FILE_MODE == Logger.LogFileMode.resume && file.exists() && file.length() > 0) {
+            // like the text loggers, carry on from the end of the existing trace without writing the header again
+            try {
+                long end = readExistingIndex(file);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(end);
+                }
+                counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file, true), 1 << 16), end);
+                out = new DataOutputStream(counter);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to resume node trace " + fileNameInput.get() + ": " + e.getMessage());
+            }
+            // the previous values aren't known, so start with a key record
+            nextKeyRecord = recordCount;
+            return;
+        }
+        nextKeyRecord = 0;
+        try {
+            counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16), 0);
+            out = new DataOutputStream(counter);
+            out.write(NodeTraceReader.MAGIC);
+            out.writeInt(NodeTraceReader.VERSION);
+            writeVarInt(out, functions.size());
+            for (int f = 0; f < functions.size(); f++) {
+                Function function = functions.get(f);
+                out.writeUTF(((BEASTObject) function).getID());
+                writeVarInt(out, function.getDimension());
+                out.writeByte(isInteger[f] ? NodeTraceReader.INTEGER : NodeTraceReader.DOUBLE);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open node trace " + fileNameInput.get() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Check that an existing node trace was written for the same values, and take over the index of its records,
+     * read from the end of the file or, if it wasn't closed, by scanning the records
+     * @param file the existing node trace
+     * @return the position after the last complete record, dropping the index and any record that was only partly
+     * written
+     * @throws IOException if the file cannot be read or was written for other values
+     */
+    private long readExistingIndex(File file) throws IOException {
+        List<Function> functions = functionsInput.get();
+        try (NodeTraceReader reader = new NodeTraceReader(file.getPath())) {
+            if (reader.getFunctionCount() != functions.size()) {
+                throw new IOException("the existing file was written for different values");
+            }
+            for (int f = 0; f < functions.size(); f++) {
+                if (!reader.getName(f).equals(((BEASTObject) functions.get(f)).getID())
+                        || reader.getDimension(f) != loggedValues[f].length || reader.isInteger(f) != isInteger[f]) {
+                    throw new IOException("the existing file was written for different values");
+                }
+            }
+            for (int k = 0; k < reader.getRecordCount(); k++) {
+                addRecord(reader.getSample(k), reader.getOffset(k), reader.isKeyRecord(k));
+            }
+            long end = reader.getDataEnd();
+            if (end < file.length() && !hasIndex(file, end)) {
+                Log.warning("Node trace " + fileNameInput.get() + " ends with an incomplete sample, which is dropped");
+            }
+            return end;
+        }
+    }
+
+    /**
+     * Check whether what follows the records of an existing trace is its index
+     */
+    private static boolean hasIndex(File file, long end) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(end);
+            return raf.readUnsignedByte() == NodeTraceReader.INDEX;
+        }
+    }
+
+    @Override
+    public void log(long sample, PrintStream printStream) {
+        if (out == null) {
+            // a resumed logger doesn't initialise loggables whose header it has already written
+            init(printStream);
+        }
+        List<Function> functions = functionsInput.get();
+        boolean key = recordCount >= nextKeyRecord;
+        if (key) {
+            nextKeyRecord = recordCount + keyRecordEvery;
+        }
+        try {
+            addRecord(sample, counter.getCount(), key);
+            out.writeByte(key ? NodeTraceReader.KEY_RECORD : NodeTraceReader.RECORD);
+            writeVarLong(out, sample);
+            for (int f = 0; f < functions.size(); f++) {
+                Function function = functions.get(f);
+                if (function instanceof StateNode) {
+                    // make sure we get the current version of the inputs
+                    function = ((StateNode) function).getCurrent();
+                }
+                double[] logged = loggedValues[f];
+                if (function.getDimension() != logged.length) {
+                    throw new RuntimeException("Node trace " + fileNameInput.get() + " expected " + logged.length + " values for "
+                            + ((BEASTObject) function).getID() + ", not " + function.getDimension());
+                }
+                int count = 0;
+                for (int i = 0; i < logged.length; i++) {
+                    double value = function.getArrayValue(i);
+                    if (key || Double.doubleToRawLongBits(value) != Double.doubleToRawLongBits(logged[i])) {
+                        logged[i] = value;
+                        changed[count++] = i;
+                    }
+                }
+                writeVarInt(out, count);
+                for (int k = 0, previous = -1; k < count; k++) {
+                    int i = changed[k];
+                    writeVarInt(out, i - previous - 1);
+                    if (isInteger[f]) {
+                        writeVarInt(out, zigZag((int) logged[i]));
+                    } else {
+                        out.writeDouble(logged[i]);
+                    }
+                    previous = i;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write node trace " + fileNameInput.get() + ": " + e.getMessage());
+        }
+    }
+
+    private void addRecord(long sample, long offset, boolean key) {
+        if (recordCount == recordSamples.length) {
+            recordSamples = Arrays.copyOf(recordSamples, recordCount * 2);
+            recordOffsets = Arrays.copyOf(recordOffsets, recordCount * 2);
+            recordIsKey = Arrays.copyOf(recordIsKey, recordCount * 2);
+        }
+        recordSamples[recordCount] = sample;
+        recordOffsets[recordCount] = offset;
+        recordIsKey[recordCount] = key;
+        recordCount++;
+    }
+
+    @Override
+    public void close(PrintStream printStream) {
+        if (out == null) {
+            return;
+        }
+        try {
+            // the index of records, then where it starts, so a reader can find it from the end of the file
+            long indexOffset = counter.getCount();
+            out.writeByte(NodeTraceReader.INDEX);
+            writeVarInt(out, recordCount);
+            for (int k = 0; k < recordCount; k++) {
+                writeVarLong(out, recordSamples[k]);
+                writeVarLong(out, recordOffsets[k]);
+                out.writeBoolean(recordIsKey[k]);
+            }
+            out.writeLong(indexOffset);
+            out.write(NodeTraceReader.MAGIC);
+            out.close();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to close node trace " + fileNameInput.get() + ": " + e.getMessage());
+        }
+        out = null;
+    }
+
+    /**
+     * Counts the bytes written, to record where each record starts
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream(OutputStream out, long count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
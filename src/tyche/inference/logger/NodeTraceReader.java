@@ -0,0 +1,456 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.inference.logger;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+
+import static tyche.evolution.tree.BinaryTreeLogFormat.*;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Reader for node traces written by NodeTraceLogger. Any sample can be rebuilt by going to the last key record at or
+ * before it and applying the changes from there, and the series of one entry over all samples can be read in one pass,
+ * so the file never has to be loaded as a whole.
+ *
+ * A node trace is a header, one record per sample, an index of the records and a trailer:
+ * <pre>
+ * header:  magic "TYCHENTL", int version, varint function count, for each function: UTF id, varint dimension,
+ *          byte INTEGER or DOUBLE
+ * record:  byte RECORD or KEY_RECORD, varlong sample,
+ *          for each function: varint count, count x (varint gap, zigzag varint or double value)
+ * index:   byte INDEX, varint record count, for each record: varlong sample, varlong offset, boolean key
+ * trailer: long offset of the index, magic
+ * </pre>
+ * A record lists only the entries that changed since the previous record, except key records, which list every entry.
+ * Entry indices are increasing and stored as the gap from the previous one minus one, starting from -1. If the run was
+ * stopped before the logger was closed there is no index, and the records are scanned to build one.
+ */
+public class NodeTraceReader implements Closeable {
+
+    static final byte[] MAGIC = {'T', 'Y', 'C', 'H', 'E', 'N', 'T', 'L'};
+    static final int VERSION = 1;
+
+    /**
+     * kinds of function
+     */
+    static final int INTEGER = 1;
+    static final int DOUBLE = 2;
+
+    /**
+     * kinds of record
+     */
+    static final int RECORD = 1;
+    static final int KEY_RECORD = 2;
+    static final int INDEX = 3;
+
+    private final RandomAccessFile file;
+
+    private final String[] names;
+    private final boolean[] isInteger;
+
+    /**
+     * the sample, offset and kind of each record
+     */
+    private long[] samples;
+    private long[] offsets;
+    private boolean[] isKey;
+    private int recordCount;
+
+    /**
+     * the position after the last complete record
+     */
+    private long dataEnd;
+
+    /**
+     * the values of the current record
+     */
+    private final double[][] values;
+    private int currentRecord = -1;
+
+    /**
+     * the input, and the index of the record it is positioned at
+     */
+    private CountingInputStream counter;
+    private DataInputStream in;
+    private int nextRecord = -1;
+
+    /**
+     * Open a node trace and read its header and index
+     * @param fileName the name of the file
+     * @throws IOException if the file cannot be read or is not a node trace
+     */
+    public NodeTraceReader(final String fileName) throws IOException {
+        file = new RandomAccessFile(fileName, "r");
+        seek(0);
+        for (byte b : MAGIC) {
+            if (in.readByte() != b) {
+                throw new IOException("Not a node trace");
+            }
+        }
+        final int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported node trace version " + version);
+        }
+        final int functionCount = readVarInt(in);
+        names = new String[functionCount];
+        isInteger = new boolean[functionCount];
+        values = new double[functionCount][];
+        for (int f = 0; f < functionCount; f++) {
+            names[f] = in.readUTF();
+            values[f] = new double[readVarInt(in)];
+            isInteger[f] = in.readUnsignedByte() == INTEGER;
+        }
+        final long dataStart = counter.getPosition();
+        if (!readIndex()) {
+            scanIndex(dataStart);
+        }
+    }
+
+    /**
+     * Read the index from the end of the file
+     * @return true if there was an index, otherwise false
+     */
+    private boolean readIndex() throws IOException {
+        final long length = file.length();
+        if (length < MAGIC.length + 8) {
+            return false;
+        }
+        file.seek(length - MAGIC.length);
+        for (byte b : MAGIC) {
+            if (file.readByte() != b) {
+                return false;
+            }
+        }
+        file.seek(length - MAGIC.length - 8);
+        final long indexOffset = file.readLong();
+        if (indexOffset < 0 || indexOffset >= length) {
+            return false;
+        }
+        seek(indexOffset);
+        if (in.readUnsignedByte() != INDEX) {
+            return false;
+        }
+        recordCount = readVarInt(in);
+        samples = new long[recordCount];
+        offsets = new long[recordCount];
+        isKey = new boolean[recordCount];
+        for (int k = 0; k < recordCount; k++) {
+            samples[k] = readVarLong(in);
+            offsets[k] = readVarLong(in);
+            isKey[k] = in.readBoolean();
+        }
+        dataEnd = indexOffset;
+        nextRecord = -1;
+        return true;
+    }
+
+    /**
+     * Build the index by reading every record, for traces that weren't closed. An incomplete last record is ignored.
+     */
+    private void scanIndex(final long dataStart) throws IOException {
+        samples = new long[256];
+        offsets = new long[256];
+        isKey = new boolean[256];
+        recordCount = 0;
+        dataEnd = dataStart;
+        seek(dataStart);
+        while (true) {
+            final long offset = counter.getPosition();
+            final int kind = in.read();
+            if (kind != RECORD && kind != KEY_RECORD) {
+                break;
+            }
+            final long sample;
+            try {
+                sample = readVarLong(in);
+                skipRecord();
+            } catch (EOFException e) {
+                break;
+            }
+            if (recordCount == samples.length) {
+                samples = Arrays.copyOf(samples, recordCount * 2);
+                offsets = Arrays.copyOf(offsets, recordCount * 2);
+                isKey = Arrays.copyOf(isKey, recordCount * 2);
+            }
+            samples[recordCount] = sample;
+            offsets[recordCount] = offset;
+            isKey[recordCount] = kind == KEY_RECORD;
+            recordCount++;
+            dataEnd = counter.getPosition();
+        }
+        nextRecord = -1;
+    }
+
+    /**
+     * Skip the entries of a record
+     */
+    private void skipRecord() throws IOException {
+        for (int f = 0; f < names.length; f++) {
+            final int count = readVarInt(in);
+            for (int k = 0; k < count; k++) {
+                readVarInt(in);
+                if (isInteger[f]) {
+                    readVarInt(in);
+                } else {
+                    in.skipNBytes(8);
+                }
+            }
+        }
+    }
+
+    /**
+     * Position the input at an offset in the file
+     */
+    private void seek(final long offset) throws IOException {
+        file.getChannel().position(offset);
+        counter = new CountingInputStream(new BufferedInputStream(Channels.newInputStream(file.getChannel()), 1 << 16), offset);
+        in = new DataInputStream(counter);
+    }
+
+    /**
+     * Read the next record at the input into the current values
+     */
+    private void applyNextRecord() throws IOException {
+        final int kind = in.readUnsignedByte();
+        if (kind != RECORD && kind != KEY_RECORD) {
+            throw new IOException("Malformed node trace: unknown record kind " + kind);
+        }
+        readVarLong(in);
+        for (int f = 0; f < names.length; f++) {
+            final double[] current = values[f];
+            final int count = readVarInt(in);
+            for (int k = 0, i = -1; k < count; k++) {
+                i += readVarInt(in) + 1;
+                if (i >= current.length) {
+                    throw new IOException("Malformed node trace: index out of range for " + names[f]);
+                }
+                current[i] = isInteger[f] ? unZigZag(readVarInt(in)) : in.readDouble();
+            }
+        }
+        currentRecord = nextRecord;
+        nextRecord++;
+    }
+
+    /**
+     * Make a record the current one
+     * @param record the index of the record, from 0 to getRecordCount() - 1
+     * @throws IOException if the trace cannot be read
+     */
+    public void readRecord(final int record) throws IOException {
+        if (record < 0 || record >= recordCount) {
+            throw new IllegalArgumentException("Record " + record + " is out of range, there are " + recordCount);
+        }
+        if (record == currentRecord) {
+            return;
+        }
+        int key = record;
+        while (!isKey[key]) {
+            key--;
+            if (key < 0) {
+                throw new IOException("Malformed node trace: no key record before record " + record);
+            }
+        }
+        if (nextRecord < 0 || nextRecord > record || nextRecord <= key) {
+            // can't carry on from where the input is
+            seek(offsets[key]);
+            nextRecord = key;
+        }
+        while (nextRecord <= record) {
+            applyNextRecord();
+        }
+    }
+
+    /**
+     * Make the record of a sample the current one
+     * @param sample the sample number
+     * @throws IOException if the trace cannot be read
+     * @throws IllegalArgumentException if there is no record for this sample
+     */
+    public void readSample(final long sample) throws IOException {
+        final int record = Arrays.binarySearch(samples, 0, recordCount, sample);
+        if (record < 0) {
+            throw new IllegalArgumentException("There is no record for sample " + sample);
+        }
+        readRecord(record);
+    }
+
+    /**
+     * Read one entry of one function for every sample, in a single pass through the trace
+     * @param function the index of the function
+     * @param index the index of the entry, usually a node number
+     * @return the value of the entry in each record
+     * @throws IOException if the trace cannot be read
+     */
+    public double[] readSeries(final int function, final int index) throws IOException {
+        if (index < 0 || index >= values[function].length) {
+            throw new IllegalArgumentException("Index " + index + " is out of range for " + names[function]);
+        }
+        final double[] series = new double[recordCount];
+        if (recordCount == 0) {
+            return series;
+        }
+        seek(offsets[0]);
+        nextRecord = 0;
+        for (int record = 0; record < recordCount; record++) {
+            applyNextRecord();
+            series[record] = values[function][index];
+        }
+        return series;
+    }
+
+    /**
+     * Get the values of a function in the current record. The array is updated in place when another record is read.
+     * @param function the index of the function
+     * @return the values, indexed like the logged function
+     */
+    public double[] getValues(final int function) {
+        return values[function];
+    }
+
+    /**
+     * Get the index of a function by its id
+     * @param name the id
+     * @return the index, or -1 if no function has this id
+     */
+    public int getFunctionIndex(final String name) {
+        for (int f = 0; f < names.length; f++) {
+            if (names[f].equals(name)) {
+                return f;
+            }
+        }
+        return -1;
+    }
+
+    public int getFunctionCount() {
+        return names.length;
+    }
+
+    public String getName(final int function) {
+        return names[function];
+    }
+
+    public int getDimension(final int function) {
+        return values[function].length;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    public long getSample(final int record) {
+        return samples[record];
+    }
+
+    /**
+     * @return whether a record lists every entry
+     */
+    boolean isKeyRecord(final int record) {
+        return isKey[record];
+    }
+
+    /**
+     * @return where a record starts in the file
+     */
+    long getOffset(final int record) {
+        return offsets[record];
+    }
+
+    /**
+     * @return the position after the last complete record, where the index starts if there is one
+     */
+    long getDataEnd() {
+        return dataEnd;
+    }
+
+    /**
+     * @return whether the values of a function are integers
+     */
+    boolean isInteger(final int function) {
+        return isInteger[function];
+    }
+
+    /**
+     * @return the index of the current record, or -1 if none has been read
+     */
+    public int getCurrentRecord() {
+        return currentRecord;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    /**
+     * Keeps track of the position in the file, to find where records start when scanning
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long position;
+
+        CountingInputStream(InputStream in, long position) {
+            super(in);
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = in.read();
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int n = in.read(b, off, len);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long skipped = in.skip(n);
+            position += skipped;
+            return skipped;
+        }
+
+        long getPosition() {
+            return position;
+        }
+    }
+}
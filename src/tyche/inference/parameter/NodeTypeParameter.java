@@ -0,0 +1,343 @@
+/*
+ *  Copyright (C) 2025 Hoehn Lab, Dartmouth College
+ *
+ * This file is part of TyCHE.
+ *
+ * TyCHE is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * TyCHE is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with TyCHE.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package tyche.inference.parameter;
+
+import beast.base.core.Citation;
+import beast.base.core.Description;
+import beast.base.inference.StateNode;
+import beast.base.inference.parameter.IntegerParameter;
+
+import java.util.Arrays;
+
+/**
+ * @author Jessie Fielding
+ * This class is part of the TyCHE package - https://github.com/hoehnlab/tyche
+ */
+
+/**
+ * Integer parameter for node types, backed by primitive current and stored buffers.
+ * Writes are tracked in a dirty bitset together with a list of the dirty indices, so that storing, restoring and
+ * accepting a proposal only touch the values that were changed: storing copies the dirty values into the stored buffers
+ * (which are otherwise kept equal to the current ones), restoring swaps the buffers, and accepting or rejecting copies
+ * the dirty values back so that the buffers are equal again. The boxed values of IntegerParameter are kept in step
+ * with the primitive ones, so that XML, loggers and anything else using IntegerParameter see the same values.
+ */
+@Description("Integer parameter for node types, backed by primitive buffers with dirty tracking so that store and restore only touch changed types. " +
+        "Can be used anywhere an IntegerParameter is used for nodeTypes.")
+@Citation(value="Fielding, J. J., Wu, S., Melton, H. J., Fisk, N., du Plessis, L., & Hoehn, K. B. (2025).\n" +
+        "TyCHE enables time-resolved lineage tracing of heterogeneously-evolving populations.\n" +
+        "bioRxiv https://doi.org/10.1101/2025.10.21.683591 (2025) doi:10.1101/2025.10.21.683591.",
+        year = 2025, firstAuthorSurname = "Fielding", DOI="10.1101/2025.10.21.683591")
+public class NodeTypeParameter extends IntegerParameter {
+
+    /**
+     * current and stored types, indexed by node number
+     */
+    protected int[] types;
+    protected int[] storedTypes;
+
+    /**
+     * bitset of the indices changed since the buffers were last made equal, and the same indices as a list
+     */
+    protected long[] dirtyBits;
+    protected int[] dirtyIndices;
+    protected int dirtyCount = 0;
+
+    /**
+     * whether everything has been marked dirty
+     */
+    protected boolean allDirty = false;
+
+    /**
+     * the index of the last changed value
+     */
+    protected int lastDirtyIndex = -1;
+
+    /**
+     * incremented whenever a value changes, with the value it had after the last change at each index, and after the
+     * last change of every value
+     */
+    protected long typeVersion = 0;
+    protected long[] typeVersions;
+    protected long allTypesVersion = 0;
+
+    public NodeTypeParameter() {
+    }
+
+    public NodeTypeParameter(final Integer[] values) {
+        super(values);
+        syncFromValues();
+    }
+
+    /**
+     * Initialize and validate inputs
+     */
+    @Override
+    public void initAndValidate() {
+        super.initAndValidate();
+        syncFromValues();
+    }
+
+    /**
+     * Rebuild the primitive buffers from the boxed values, and mark everything dirty
+     */
+    protected void syncFromValues() {
+        final int dimension = values.length;
+        if (types == null || types.length != dimension) {
+            types = new int[dimension];
+            storedTypes = new int[dimension];
+            dirtyBits = new long[(dimension + 63) >> 6];
+            dirtyIndices = new int[dimension];
+            typeVersions = new long[dimension];
+        }
+        if (storedValues == null || storedValues.length != dimension) {
+            storedValues = values.clone();
+        }
+        for (int i = 0; i < dimension; i++) {
+            types[i] = values[i];
+            storedTypes[i] = storedValues[i];
+        }
+        Arrays.fill(dirtyBits, 0);
+        dirtyCount = 0;
+        allDirty = true;
+        allTypesVersion = ++typeVersion;
+    }
+
+    /**
+     * Get the type at an index without boxing
+     * @param index the index, usually a node number
+     * @return the type
+     */
+    public int getType(final int index) {
+        return types[index];
+    }
+
+    @Override
+    public double getArrayValue() {
+        return types[0];
+    }
+
+    @Override
+    public double getArrayValue(final int index) {
+        return types[index];
+    }
+
+    @Override
+    public void setValue(final Integer value) {
+        setValue(0, value);
+    }
+
+    @Override
+    public void setValue(final int index, final Integer value) {
+        startEditing(null);
+        types[index] = value;
+        values[index] = value;
+        markDirty(index);
+    }
+
+    @Override
+    public void swap(final int left, final int right) {
+        startEditing(null);
+        final int tmp = types[left];
+        setType(left, types[right]);
+        setType(right, tmp);
+    }
+
+    /**
+     * Set a type without boxing
+     * @param index the index, usually a node number
+     * @param type  the new type
+     */
+    public void setType(final int index, final int type) {
+        startEditing(null);
+        types[index] = type;
+        // small integers are cached by Integer.valueOf, so this doesn't allocate
+        values[index] = type;
+        markDirty(index);
+    }
+
+    /**
+     * Record that the value at an index has changed
+     * @param index the index of the changed value
+     */
+    protected void markDirty(final int index) {
+        lastDirtyIndex = index;
+        typeVersions[index] = ++typeVersion;
+        final long bit = 1L << index;
+        final int word = index >> 6;
+        if ((dirtyBits[word] & bit) == 0) {
+            dirtyBits[word] |= bit;
+            dirtyIndices[dirtyCount++] = index;
+        }
+    }
+
+    @Override
+    public boolean isDirty(final int index) {
+        return allDirty || (dirtyBits[index >> 6] & (1L << index)) != 0;
+    }
+
+    @Override
+    public int getLastDirty() {
+        return lastDirtyIndex;
+    }
+
+    /**
+     * Get the number of values changed since the last accept or reject. Not meaningful if everything is dirty.
+     * @return the number of dirty indices
+     */
+    public int getDirtyCount() {
+        return dirtyCount;
+    }
+
+    /**
+     * Get one of the values changed since the last accept or reject, in the order they were first changed
+     * @param k which of the dirty indices to get, from 0 to getDirtyCount() - 1
+     * @return the dirty index
+     */
+    public int getDirtyIndex(final int k) {
+        return dirtyIndices[k];
+    }
+
+    /**
+     * Whether everything has been marked dirty, in which case the dirty indices are not listed
+     * @return true if every value should be treated as dirty
+     */
+    public boolean isAllDirty() {
+        return allDirty;
+    }
+
+    /**
+     * Get a number that is incremented whenever a value changes, so that callers can tell which values have changed
+     * since they last read it by comparing it with getVersion(index)
+     * @return the current version
+     */
+    public long getVersion() {
+        return typeVersion;
+    }
+
+    /**
+     * Get the version of the last change to the value at an index. Changes that are later restored still count as
+     * changes.
+     * @param index the index, usually a node number
+     * @return the version after the last change of the value
+     */
+    public long getVersion(final int index) {
+        return Math.max(typeVersions[index], allTypesVersion);
+    }
+
+    @Override
+    public void store() {
+        // values that aren't dirty are already equal in both buffers
+        copyDirtyValues(values, types, storedValues, storedTypes);
+    }
+
+    @Override
+    public void restore() {
+        // swaps the boxed buffers
+        super.restore();
+        final int[] tmp = types;
+        types = storedTypes;
+        storedTypes = tmp;
+        // the stored buffers now hold the rejected values until the dirt is cleared
+    }
+
+    @Override
+    public void setEverythingDirty(final boolean isDirty) {
+        setSomethingIsDirty(isDirty);
+        if (isDirty) {
+            allDirty = true;
+            allTypesVersion = ++typeVersion;
+        } else {
+            // make the buffers equal again, so that the next store only has to copy what changes
+            copyDirtyValues(values, types, storedValues, storedTypes);
+            clearDirt();
+        }
+    }
+
+    /**
+     * Copy the dirty values from one pair of buffers to the other
+     */
+    private void copyDirtyValues(final Integer[] fromValues, final int[] fromTypes, final Integer[] toValues, final int[] toTypes) {
+        if (allDirty) {
+            System.arraycopy(fromValues, 0, toValues, 0, fromValues.length);
+            System.arraycopy(fromTypes, 0, toTypes, 0, fromTypes.length);
+        } else {
+            for (int k = 0; k < dirtyCount; k++) {
+                final int index = dirtyIndices[k];
+                toValues[index] = fromValues[index];
+                toTypes[index] = fromTypes[index];
+            }
+        }
+    }
+
+    /**
+     * Mark every value as clean
+     */
+    private void clearDirt() {
+        for (int k = 0; k < dirtyCount; k++) {
+            dirtyBits[dirtyIndices[k] >> 6] = 0;
+        }
+        if (allDirty) {
+            Arrays.fill(dirtyBits, 0);
+        }
+        dirtyCount = 0;
+        allDirty = false;
+    }
+
+    @Override
+    public void setDimension(final int dimension) {
+        super.setDimension(dimension);
+        syncFromValues();
+    }
+
+    @Override
+    public void assignFrom(final StateNode other) {
+        super.assignFrom(other);
+        syncFromValues();
+    }
+
+    @Override
+    public void assignFromWithoutID(final StateNode other) {
+        super.assignFromWithoutID(other);
+        syncFromValues();
+    }
+
+    @Override
+    public void assignFromFragile(final StateNode other) {
+        super.assignFromFragile(other);
+        syncFromValues();
+    }
+
+    @Override
+    public void fromXML(final org.w3c.dom.Node node) {
+        super.fromXML(node);
+        syncFromValues();
+    }
+
+    @Override
+    public NodeTypeParameter copy() {
+        final NodeTypeParameter copy = (NodeTypeParameter) super.copy();
+        // the clone shares the primitive buffers, so give it its own
+        copy.types = null;
+        copy.syncFromValues();
+        return copy;
+    }
+}